@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.light2d.AbstractLightingAlgorithm;
+import pl.graniec.coralreef.light2d.LightResistor;
+import pl.graniec.coralreef.light2d.LightSource;
+import pl.graniec.coralreef.light2d.SimpleLightAlgorithm;
+import pl.graniec.coralreef.light2d.SweepLightAlgorithm;
+
+/**
+ * Measures the throughput of <code>createRays</code>. Single light
+ * benchmarks go thru all the lights one by one, so every call computes
+ * a different light. Run with <code>-prof gc</code> to get allocated
+ * bytes per call (<code>gc.alloc.rate.norm</code>).
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateRaysBenchmark {
+	
+	/** Seed of all generated scenes */
+	private static final long SEED = 20090501L;
+	
+	@Param({SceneGenerator.SPARSE, SceneGenerator.CITY, SceneGenerator.MAZE, SceneGenerator.CONCAVE})
+	public String scene;
+	
+	@Param({"sweep", "simple"})
+	public String algorithm;
+	
+	@Param({"100", "1000", "10000"})
+	public int resistors;
+	
+	@Param({"1", "64"})
+	public int lights;
+	
+	@Param({"100", "400"})
+	public float intensity;
+	
+	@Param({"32", "256"})
+	public int partsNum;
+	
+	private AbstractLightingAlgorithm lighting;
+	private LightSource[] sources;
+	private List/*<LightSource>*/ sourceList;
+	private float[] out;
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		if ("sweep".equals(algorithm)) {
+			lighting = new SweepLightAlgorithm();
+		} else if ("simple".equals(algorithm)) {
+			lighting = new SimpleLightAlgorithm();
+		} else {
+			throw new IllegalArgumentException("unknown algorithm: " + algorithm);
+		}
+		
+		lighting.setPartsNum(partsNum);
+		
+		final List scene = SceneGenerator.createScene(this.scene, SEED, resistors);
+		
+		for (int i = 0; i < scene.size(); ++i) {
+			lighting.addLightResistor((LightResistor) scene.get(i));
+		}
+		
+		sources = SceneGenerator.createLights(SEED + 1, lights, resistors, intensity);
+		sourceList = Arrays.asList(sources);
+		out = new float[1024];
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		// stop the batch threads
+		lighting.setParallelism(1);
+	}
+	
+	/**
+	 * Creates the light geometry.
+	 */
+	@Benchmark
+	public Geometry geometry() {
+		return lighting.createRays(nextSource());
+	}
+	
+	/**
+	 * Writes the light to reused array, it shouldn't allocate.
+	 */
+	@Benchmark
+	public int floatArray() {
+		final LightSource source = nextSource();
+		final int count = lighting.createRays(source, out);
+		
+		if (count * 2 > out.length) {
+			out = new float[count * 4];
+			return lighting.createRays(source, out);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Creates all the lights in parallel.
+	 */
+	@Benchmark
+	public Geometry[] batch() {
+		return lighting.createRays(sourceList);
+	}
+	
+	private LightSource nextSource() {
+		final LightSource source = sources[next];
+		next = (next + 1) % sources.length;
+		
+		return source;
+	}
+}
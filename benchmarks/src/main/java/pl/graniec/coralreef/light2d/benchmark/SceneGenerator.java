@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import pl.graniec.coralreef.geometry.Point2;
+import pl.graniec.coralreef.light2d.LightResistor;
+import pl.graniec.coralreef.light2d.LightSource;
+
+/**
+ * Generates scenes for benchmarks. The same seed always gives the same
+ * scene, so results of different runs can be compared.
+ * <p>
+ * Scenes are spread over a square world that grows with the number
+ * of resistors, so the density stays the same and lights of the same
+ * intensity see similar number of resistors in every scene size.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class SceneGenerator {
+	
+	/** Sparse field of small boxes */
+	public static final String SPARSE = "sparse";
+	/** Dense grid of building blocks separated by streets */
+	public static final String CITY = "city";
+	/** Thin single edge walls on a grid */
+	public static final String MAZE = "maze";
+	/** Star shaped polygons with many verticles */
+	public static final String CONCAVE = "concave";
+	
+	/** Size of the world cell that holds single resistor */
+	private static final float CELL = 40f;
+	
+	/** Number of verticles of concave polygons */
+	private static final int CONCAVE_VERTICLES = 24;
+	
+	private SceneGenerator() {
+	}
+	
+	/**
+	 * Creates the resistors of scene <code>type</code>.
+	 * 
+	 * @param type One of {@link #SPARSE}, {@link #CITY}, {@link #MAZE}
+	 * and {@link #CONCAVE}.
+	 * @param seed Seed of the scene.
+	 * @param count Number of resistors.
+	 * 
+	 * @return List of {@link LightResistor}s.
+	 */
+	public static List/*<LightResistor>*/ createScene(final String type, final long seed, final int count) {
+		final Random random = new Random(seed);
+		
+		if (SPARSE.equals(type)) {
+			return sparseBoxes(random, count);
+		} else if (CITY.equals(type)) {
+			return cityGrid(random, count);
+		} else if (MAZE.equals(type)) {
+			return maze(random, count);
+		} else if (CONCAVE.equals(type)) {
+			return concavePolygons(random, count);
+		}
+		
+		throw new IllegalArgumentException("unknown scene type: " + type);
+	}
+	
+	/**
+	 * Creates lights placed randomly in the world of scene with
+	 * <code>resistorCount</code> resistors.
+	 */
+	public static LightSource[] createLights(final long seed, final int count, final int resistorCount, final float intensity) {
+		final Random random = new Random(seed);
+		final float size = getWorldSize(resistorCount);
+		final LightSource[] lights = new LightSource[count];
+		
+		for (int i = 0; i < count; ++i) {
+			lights[i] = new LightSource(random.nextFloat() * size, random.nextFloat() * size, intensity);
+		}
+		
+		return lights;
+	}
+	
+	/**
+	 * @return Side of the square world holding <code>resistorCount</code>
+	 * resistors.
+	 */
+	public static float getWorldSize(final int resistorCount) {
+		return getCellsPerSide(resistorCount) * CELL;
+	}
+	
+	private static int getCellsPerSide(final int resistorCount) {
+		return (int) Math.ceil(Math.sqrt(resistorCount));
+	}
+	
+	private static List sparseBoxes(final Random random, final int count) {
+		final float size = getWorldSize(count);
+		final List result = new ArrayList(count);
+		
+		for (int i = 0; i < count; ++i) {
+			final float side = 2 + random.nextFloat() * 8;
+			result.add(createBox(random.nextFloat() * size, random.nextFloat() * size, side, side));
+		}
+		
+		return result;
+	}
+	
+	private static List cityGrid(final Random random, final int count) {
+		final int side = getCellsPerSide(count);
+		final List result = new ArrayList(count);
+		
+		for (int i = 0; i < count; ++i) {
+			final float street = 4 + random.nextFloat() * 4;
+			final float left = (i % side) * CELL + street;
+			final float bottom = (i / side) * CELL + street;
+			
+			result.add(createBox(left, bottom, CELL - 2 * street, CELL - 2 * street));
+		}
+		
+		return result;
+	}
+	
+	private static List maze(final Random random, final int count) {
+		final int side = getCellsPerSide(count);
+		final List result = new ArrayList(count);
+		
+		for (int i = 0; i < count; ++i) {
+			final float x = (i % side) * CELL;
+			final float y = (i / side) * CELL;
+			
+			final LightResistor wall = new LightResistor();
+			wall.addVerticle(new Point2(x, y));
+			
+			if (random.nextBoolean()) {
+				wall.addVerticle(new Point2(x + CELL, y));
+			} else {
+				wall.addVerticle(new Point2(x, y + CELL));
+			}
+			
+			result.add(wall);
+		}
+		
+		return result;
+	}
+	
+	private static List concavePolygons(final Random random, final int count) {
+		final float size = getWorldSize(count);
+		final List result = new ArrayList(count);
+		
+		for (int i = 0; i < count; ++i) {
+			final float cx = random.nextFloat() * size;
+			final float cy = random.nextFloat() * size;
+			final float radius = 8 + random.nextFloat() * 12;
+			
+			final LightResistor polygon = new LightResistor();
+			
+			for (int k = 0; k < CONCAVE_VERTICLES; ++k) {
+				final double angle = 2 * Math.PI * k / CONCAVE_VERTICLES;
+				final float r = (k & 1) == 0 ? radius : radius * (0.2f + random.nextFloat() * 0.3f);
+				
+				polygon.addVerticle(new Point2(cx + (float) Math.cos(angle) * r, cy + (float) Math.sin(angle) * r));
+			}
+			
+			result.add(polygon);
+		}
+		
+		return result;
+	}
+	
+	private static LightResistor createBox(final float left, final float bottom, final float width, final float height) {
+		final LightResistor resistor = new LightResistor();
+		resistor.addVerticle(new Point2(left, bottom));
+		resistor.addVerticle(new Point2(left + width, bottom));
+		resistor.addVerticle(new Point2(left + width, bottom + height));
+		resistor.addVerticle(new Point2(left, bottom + height));
+		
+		return resistor;
+	}
+}
@@ -28,26 +28,1046 @@
  */
 package pl.graniec.coralreef.light2d;
 
-import java.util.HashSet;
+import java.nio.FloatBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import pl.graniec.coralreef.geometry.Box2;
 import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.geometry.Point2;
 
 /**
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
 public abstract class AbstractLightingAlgorithm {
-	/** All light resistors */
-	protected final Set resistors = new HashSet();
+	
+	/** Number of lights below which batch task is not split any more */
+	private static final int BATCH_GRANULARITY = 2;
+	/** Minimum number of parts of light with adaptive parts */
+	private static final int MIN_ADAPTIVE_PARTS = 4;
+	/** Adaptive number of parts is up to 15 times two to this power */
+	private static final int MAX_ADAPTIVE_SHIFT = 10;
+	
+	/**
+	 * Level of detail of resistors distant from the light, see
+	 * {@link AbstractLightingAlgorithm#setDetailMode(int)}.
+	 */
+	public static final class Detail {
+		/** All edges of every resistor are used */
+		public static final int Full = 1;
+		/** Distant concave resistors are replaced by their convex hull */
+		public static final int Hull = 2;
+		/** Distant resistors are replaced by their bounding box */
+		public static final int Box = 3;
+		
+		private Detail() {
+		}
+	}
+	
+	/**
+	 * Part of lights batch. It computes its lights or splits itself
+	 * in halves that can be stolen by other workers.
+	 */
+	private final class BatchTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final LightSource[] sources;
+		private final Geometry[] result;
+		private final int from, to;
+		
+		BatchTask(final LightSource[] sources, final Geometry[] result, final int from, final int to) {
+			this.sources = sources;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected void compute() {
+			if (to - from <= BATCH_GRANULARITY) {
+				for (int i = from; i < to; ++i) {
+					result[i] = createRays(sources[i]);
+				}
+				
+				return;
+			}
+			
+			final int middle = (from + to) >>> 1;
+			
+			invokeAll(
+					new BatchTask(sources, result, from, middle),
+					new BatchTask(sources, result, middle, to));
+		}
+	}
+	
+	/** All light resistors, by identity so changing verticles doesn't matter */
+	protected final Set resistors = Collections.newSetFromMap(new IdentityHashMap());
+	/** Spatial index of all light resistors */
+	protected ResistorIndex resistorIndex = new DynamicTreeResistorIndex();
+	/** Light sources added for visibility queries */
+	private final LightRegistry lights = new LightRegistry();
+	/** Visibility queries and raycasts over the scene */
+	private final SceneQueries queries = new SceneQueries(this, lights);
+	/** Resistors visible from parts of the scene, null if not used */
+	private volatile VisibilitySet visibilitySet;
+	/** Number of added resistors that are not in the visibility set */
+	private volatile int resistorsOutsideSet;
+	/** Edges of all light resistors shared by all lights */
+	final CompiledScene scene = new CompiledScene();
+	/** Last known bounding box of every resistor as left, bottom, right, top */
+	private final Map/*<LightResistor, float[]>*/ resistorBounds = new IdentityHashMap();
+	/** Cache of computed geometries, null if disabled */
+	private LightCache cache;
 	/** Number of parts of which light with no resistance should be build of */
 	protected int partsNum = 32;
+	/** Should edges of closed resistors facing away from light be skipped */
+	protected boolean backFaceCulling = true;
+	/** Level of detail of distant resistors, one of {@link Detail} constants */
+	protected int detailMode = Detail.Full;
+	/** Distance from which resistor is distant as fraction of light intensity */
+	protected float detailDistance = 0.5f;
+	/** Maximum distance between light range and its chords, 0 if partsNum is used */
+	protected float chordError;
+	/** Directions of non-resistance rays for partsNum */
+	private volatile RayFan rayFan;
+	/** Full fans of adaptive number of parts, see {@link #getAdaptiveFan(int)} */
+	private final RayFan[] adaptiveFans = new RayFan[(MAX_ADAPTIVE_SHIFT + 1) * 16];
+	/** Receiver of light statistics, null if disabled */
+	private volatile LightingStatsListener statsListener;
+	/** Number of threads computing batch of lights */
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	/** Pool of batch computing threads, created when needed */
+	private ForkJoinPool pool;
+	/** Recent scene changes checked by tracked lights */
+	final SceneChanges changes = new SceneChanges();
+	/** Incremented when setting that changes light geometry is changed */
+	int settingsVersion;
 	
 	public void addLightResistor(LightResistor resistor) {
-		resistors.add(resistor);
+		if (resistors.add(resistor)) {
+			resistorIndex.add(resistor);
+			scene.add(resistor);
+			sceneChanged(resistor);
+			
+			if (isOutsideSet(resistor)) {
+				++resistorsOutsideSet;
+			}
+		}
+	}
+	
+	/**
+	 * Removes the resistor from the scene.
+	 * 
+	 * @param resistor The resistor to remove.
+	 */
+	public void removeLightResistor(LightResistor resistor) {
+		if (resistors.remove(resistor)) {
+			resistorIndex.remove(resistor);
+			scene.remove(resistor);
+			sceneChanged(resistor);
+			resistorBounds.remove(resistor);
+			
+			if (isOutsideSet(resistor)) {
+				--resistorsOutsideSet;
+			}
+		}
+	}
+	
+	/**
+	 * Tells the algorithm that verticles of <code>resistor</code> has
+	 * been changed after it was added. This must be called every time
+	 * the resistor is moved or reshaped. Resistors that are not added
+	 * are ignored.
+	 * 
+	 * @param resistor The changed resistor.
+	 */
+	public void updateLightResistor(LightResistor resistor) {
+		resistor.invalidate();
+		
+		if (!resistors.contains(resistor)) {
+			return;
+		}
+		
+		resistorIndex.update(resistor);
+		scene.update(resistor);
+		sceneChanged(resistor);
+	}
+	
+	/**
+	 * Adds the light source used by {@link #isLit(float, float)} and
+	 * {@link #litBy(float, float, Collection)}. Geometry can be created
+	 * for any light, added or not.
+	 * 
+	 * @param source The light source to add.
+	 */
+	public void addLightSource(LightSource source) {
+		lights.add(source);
+	}
+	
+	/**
+	 * Removes the light source added by
+	 * {@link #addLightSource(LightSource)}.
+	 * 
+	 * @param source The light source to remove.
+	 */
+	public void removeLightSource(LightSource source) {
+		lights.remove(source);
+	}
+	
+	/**
+	 * Tells the algorithm that the added light source has been moved or
+	 * its intensity has been changed.
+	 * 
+	 * @param source The changed light source.
+	 */
+	public void updateLightSource(LightSource source) {
+		lights.update(source);
+	}
+	
+	/**
+	 * Gets the added light sources which geometry may have changed
+	 * since the previous call and forgets them, so it's called once a
+	 * frame to find the lights to compute again. A light is out of date
+	 * when it's added or updated, when a resistor overlapping its range
+	 * is added, removed or updated in the old or the new place, and when
+	 * a setting that changes geometry is changed. Lights that are not
+	 * added are never reported.
+	 * 
+	 * @param result Collection where out of date lights will be added.
+	 * 
+	 * @return Number of out of date lights.
+	 */
+	public int pollDirtyLights(Collection/*<LightSource>*/ result) {
+		return lights.pollDirty(result);
+	}
+	
+	/**
+	 * Tells if geometry of the added light may have changed since the
+	 * last {@link #pollDirtyLights(Collection)}.
+	 */
+	public boolean isLightDirty(LightSource source) {
+		return lights.isDirty(source);
+	}
+	
+	/**
+	 * Tells if the point is lit by any of the added light sources. It
+	 * doesn't create any light geometry, only the resistors between
+	 * the point and lights in range are tested. Light range is the exact
+	 * circle (or its cone) and not its polygon of
+	 * {@link #getPartsNum()} parts.
+	 * <p>
+	 * Like {@link #createRays(LightSource)} it can be called from many
+	 * threads as long as the scene doesn't change.
+	 * 
+	 * @return <code>true</code> if any light reaches the point.
+	 */
+	public boolean isLit(float x, float y) {
+		return queries.findLights(x, y, null) > 0;
+	}
+	
+	/**
+	 * Finds the added light sources that reach the point, see
+	 * {@link #isLit(float, float)}.
+	 * 
+	 * @param result Collection where lights reaching the point will be
+	 * added.
+	 * 
+	 * @return Number of found lights.
+	 */
+	public int litBy(float x, float y, Collection/*<LightSource>*/ result) {
+		if (result == null) {
+			throw new IllegalArgumentException("result cannot be null");
+		}
+		
+		return queries.findLights(x, y, result);
+	}
+	
+	/**
+	 * Tells if no resistor edge crosses the segment from
+	 * <code>(ax, ay)</code> to <code>(bx, by)</code>. Edges touching the
+	 * segment only at its ends don't block it, so a point on a resistor
+	 * border sees the side it faces. The test stops at the first
+	 * blocking edge.
+	 * 
+	 * @return <code>true</code> if the segment is not blocked.
+	 */
+	public boolean hasLineOfSight(float ax, float ay, float bx, float by) {
+		return queries.hasLineOfSight(ax, ay, bx, by);
+	}
+	
+	/**
+	 * Tests many points at once, see {@link #isLit(float, float)}.
+	 * Points are tested in parallel by {@link #getParallelism()}
+	 * threads.
+	 * 
+	 * @param points Points as x, y pairs.
+	 * @param result Receives the result for each point, its length is
+	 * the number of points.
+	 */
+	public void isLit(float[] points, boolean[] result) {
+		queries.isLit(points, result);
+	}
+	
+	/**
+	 * Tests many segments at once, see
+	 * {@link #hasLineOfSight(float, float, float, float)}. Segments are
+	 * tested in parallel by {@link #getParallelism()} threads.
+	 * 
+	 * @param segments Segments as x1, y1, x2, y2.
+	 * @param result Receives the result for each segment, its length is
+	 * the number of segments.
+	 */
+	public void hasLineOfSight(float[] segments, boolean[] result) {
+		queries.hasLineOfSight(segments, result);
+	}
+	
+	/**
+	 * Finds the nearest resistor edge hit by the ray. Only resistors
+	 * which bounding box the ray crosses are tested, as found by
+	 * {@link ResistorIndex#querySegment(float, float, float, float, Collection)}.
+	 * Edges going thru the ray origin are not hit, so a ray can start
+	 * on a resistor border. Ray starting inside of closed resistor hits
+	 * its border from inside.
+	 * <p>
+	 * Like {@link #createRays(LightSource)} it can be called from many
+	 * threads as long as the scene doesn't change.
+	 * 
+	 * @param origin The ray origin.
+	 * @param direction The ray direction, doesn't have to be normalized.
+	 * @param maxDistance Maximum distance from the origin.
+	 * 
+	 * @return The hit or <code>null</code> if nothing is hit.
+	 */
+	public RaycastHit raycast(Point2 origin, Point2 direction, float maxDistance) {
+		final RaycastHit hit = new RaycastHit();
+		return raycast(origin.x, origin.y, direction.x, direction.y, maxDistance, hit) ? hit : null;
+	}
+	
+	/**
+	 * The same as {@link #raycast(Point2, Point2, float)} but fills the
+	 * given <code>hit</code> instead of creating one.
+	 * 
+	 * @return <code>true</code> if something is hit.
+	 */
+	public boolean raycast(float x, float y, float dx, float dy, float maxDistance, RaycastHit hit) {
+		return queries.raycast(x, y, dx, dy, maxDistance, hit);
+	}
+	
+	/**
+	 * Casts many rays at once, see {@link #raycast(Point2, Point2, float)}.
+	 * Rays are cast in parallel by {@link #getParallelism()} threads.
+	 * 
+	 * @param rays Rays as origin x, y and direction x, y.
+	 * @param maxDistance Maximum distance of every ray.
+	 * @param distances Receives the hit distance of each ray or
+	 * {@link Float#POSITIVE_INFINITY} if it hits nothing. Its length is
+	 * the number of rays.
+	 * @param resistors Receives the hit resistor of each ray or
+	 * <code>null</code>. It can be <code>null</code> if not needed.
+	 */
+	public void raycast(float[] rays, float maxDistance, float[] distances, LightResistor[] resistors) {
+		queries.raycast(rays, maxDistance, distances, resistors);
+	}
+	
+	/**
+	 * Creates the light geometry of <code>source</code>. If cache is
+	 * enabled by {@link #setCacheSize(int)} then geometry computed
+	 * before is returned as long as the scene in light range and
+	 * light parameters didn't change.
+	 * <p>
+	 * Algorithms implement {@link #computeRays(LightSource)}, this method
+	 * adds the cache and statistics around it.
+	 * 
+	 * @param source The light source.
+	 * 
+	 * @return Light geometry.
+	 */
+	public final Geometry createRays(LightSource source) {
+		final LightCache cache = this.cache;
+		
+		if (cache == null) {
+			return computeMeasured(source);
+		}
+		
+		final LightCache.Key key = new LightCache.Key(source, partsNum);
+		Geometry geometry = cache.get(key);
+		
+		if (geometry == null) {
+			geometry = computeMeasured(source);
+			cache.put(key, geometry);
+		}
+		
+		return geometry;
+	}
+	
+	/**
+	 * Writes the light geometry of <code>source</code> to
+	 * <code>out</code> as x, y pairs. If the array is too small only
+	 * the verticles that fit are written, so the caller can compare
+	 * the returned count with the array length and call again with
+	 * bigger array.
+	 * <p>
+	 * Intermediate data is kept in {@link LightingContext#current()},
+	 * so nothing is allocated as long as the cache is disabled.
+	 * 
+	 * @param source The light source.
+	 * @param out Array for verticles.
+	 * 
+	 * @return Number of verticles of light geometry.
+	 */
+	public final int createRays(LightSource source, float[] out) {
+		return createRays(source, LightingContext.current(), out, 0);
+	}
+	
+	/**
+	 * The same as {@link #createRays(LightSource, float[])} but writes
+	 * from <code>offset</code> in <code>out</code>.
+	 */
+	public final int createRays(LightSource source, float[] out, int offset) {
+		return createRays(source, LightingContext.current(), out, offset);
+	}
+	
+	/**
+	 * The same as {@link #createRays(LightSource, float[], int)} but
+	 * uses given <code>context</code> for intermediate data.
+	 */
+	public final int createRays(LightSource source, LightingContext context, float[] out, int offset) {
+		final LightCache cache = this.cache;
+		
+		if (cache == null) {
+			return computeMeasured(source, context, out, offset);
+		}
+		
+		final LightCache.Key key = new LightCache.Key(source, partsNum);
+		int count = cache.get(key, out, offset);
+		
+		if (count == -1) {
+			count = computeMeasured(source, context, out, offset);
+			
+			if (offset + count * 2 <= out.length) {
+				cache.put(key, out, offset, count);
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Writes the light geometry of <code>source</code> to
+	 * <code>out</code> as x, y pairs from its current position. If
+	 * there is not enough space remaining only the verticles that fit
+	 * are written. Position is moved after the written verticles.
+	 * 
+	 * @param source The light source.
+	 * @param out Buffer for verticles.
+	 * 
+	 * @return Number of verticles of light geometry.
+	 */
+	public final int createRays(LightSource source, FloatBuffer out) {
+		return createRays(source, LightingContext.current(), out);
+	}
+	
+	/**
+	 * The same as {@link #createRays(LightSource, FloatBuffer)} but
+	 * uses given <code>context</code> for intermediate data.
+	 */
+	public final int createRays(LightSource source, LightingContext context, FloatBuffer out) {
+		int count = createRays(source, context, context.verticles, 0);
+		
+		if (count * 2 > context.verticles.length) {
+			context.verticles = new float[count * 4];
+			count = createRays(source, context, context.verticles, 0);
+		}
+		
+		out.put(context.verticles, 0, Math.min(count, out.remaining() / 2) * 2);
+		
+		return count;
+	}
+	
+	/**
+	 * Creates the light geometry of tracked <code>light</code>, see
+	 * {@link TrackedLight}. Geometries of tracked lights are never
+	 * cached.
+	 * 
+	 * @param light The tracked light.
+	 * 
+	 * @return Light geometry.
+	 */
+	public final Geometry createRays(TrackedLight light) {
+		final LightingContext context = LightingContext.current();
+		int count = createRays(light, context.verticles, 0);
+		
+		if (count * 2 > context.verticles.length) {
+			context.verticles = new float[count * 4];
+			count = createRays(light, context.verticles, 0);
+		}
+		
+		final float[] verticles = context.verticles;
+		final Geometry geometry = new Geometry();
+		
+		for (int i = 0; i < count; ++i) {
+			geometry.addVerticle(new Point2(verticles[2 * i], verticles[2 * i + 1]));
+		}
+		
+		return geometry;
+	}
+	
+	/**
+	 * Writes the light geometry of tracked <code>light</code> to
+	 * <code>out</code> from <code>offset</code> as described in
+	 * {@link #createRays(LightSource, float[])}.
+	 * 
+	 * @param light The tracked light.
+	 * @param out Array for verticles.
+	 * @param offset Index of the first written value.
+	 * 
+	 * @return Number of verticles of light geometry.
+	 */
+	public final int createRays(TrackedLight light, float[] out, int offset) {
+		final LightingContext context = LightingContext.current();
+		final LightingStatsListener listener = statsListener;
+		
+		if (listener == null) {
+			return computeRays(light, context, out, offset);
+		}
+		
+		final LightingStats stats = startStats(context);
+		
+		final int count;
+		
+		try {
+			final long start = System.nanoTime();
+			count = computeRays(light, context, out, offset);
+			stats.totalNanos = System.nanoTime() - start;
+		} finally {
+			context.stats = null;
+		}
+		
+		listener.lightComputed(stats);
+		
+		return count;
+	}
+	
+	/**
+	 * Computes the light geometry of <code>source</code>. This is what
+	 * algorithms implement, it was <code>createRays</code> before 0.3.
+	 */
+	protected abstract Geometry computeRays(LightSource source);
+	
+	/**
+	 * Computes the light geometry of tracked <code>light</code>. By
+	 * default it's computed from scratch as any other light, algorithms
+	 * that can reuse the previous frame should override it.
+	 * 
+	 * @return Number of verticles of light geometry.
+	 */
+	protected int computeRays(TrackedLight light, LightingContext context, float[] out, int offset) {
+		return computeRays(light.getSource(), context, out, offset);
+	}
+	
+	/**
+	 * Computes the light geometry of <code>source</code> as described in
+	 * {@link #createRays(LightSource, float[])}. By default the verticles
+	 * are copied from {@link #computeRays(LightSource)}, algorithms
+	 * should override it to write them directly using
+	 * <code>context</code>.
+	 * 
+	 * @return Number of verticles of light geometry.
+	 */
+	protected int computeRays(LightSource source, LightingContext context, float[] out, int offset) {
+		final Point2[] verticles = computeRays(source).getVerticles();
+		final int count = Math.min(verticles.length, (out.length - offset) / 2);
+		
+		for (int i = 0; i < count; ++i) {
+			out[offset + 2 * i] = verticles[i].x;
+			out[offset + 2 * i + 1] = verticles[i].y;
+		}
+		
+		return verticles.length;
+	}
+	
+	/**
+	 * Creates rays for many light sources at once. Lights are computed
+	 * in parallel by {@link #getParallelism()} threads, so
+	 * {@link #createRays(LightSource)} must be safe to call from many
+	 * threads. The scene must not be changed until this method returns.
+	 * 
+	 * @param sources Collection of {@link LightSource}s.
+	 * 
+	 * @return Light geometries in the iteration order of
+	 * <code>sources</code>.
+	 */
+	public final Geometry[] createRays(Collection/*<LightSource>*/ sources) {
+		final LightSource[] array = (LightSource[]) sources.toArray(new LightSource[sources.size()]);
+		final Geometry[] result = new Geometry[array.length];
+		
+		if (parallelism <= 1 || array.length <= BATCH_GRANULARITY) {
+			for (int i = 0; i < array.length; ++i) {
+				result[i] = createRays(array[i]);
+			}
+			
+			return result;
+		}
+		
+		getPool().invoke(new BatchTask(array, result, 0, array.length));
+		
+		return result;
+	}
+	
+	/**
+	 * Computes the geometry and reports its statistics if the
+	 * listener is set.
+	 */
+	private Geometry computeMeasured(final LightSource source) {
+		final LightingStatsListener listener = statsListener;
+		
+		if (listener == null) {
+			return computeRays(source);
+		}
+		
+		final LightingContext context = LightingContext.current();
+		final LightingStats stats = startStats(context);
+		
+		final Geometry geometry;
+		
+		try {
+			final long start = System.nanoTime();
+			geometry = computeRays(source);
+			stats.totalNanos = System.nanoTime() - start;
+		} finally {
+			context.stats = null;
+		}
+		
+		listener.lightComputed(stats);
+		
+		return geometry;
+	}
+	
+	/**
+	 * Computes the verticles and reports their statistics if the
+	 * listener is set.
+	 */
+	private int computeMeasured(final LightSource source, final LightingContext context, final float[] out, final int offset) {
+		final LightingStatsListener listener = statsListener;
+		
+		if (listener == null) {
+			return computeRays(source, context, out, offset);
+		}
+		
+		final LightingStats stats = startStats(context);
+		
+		final int count;
+		
+		try {
+			final long start = System.nanoTime();
+			count = computeRays(source, context, out, offset);
+			stats.totalNanos = System.nanoTime() - start;
+		} finally {
+			context.stats = null;
+		}
+		
+		listener.lightComputed(stats);
+		
+		return count;
+	}
+	
+	private LightingStats startStats(final LightingContext context) {
+		final LightingStats stats = context.startStats();
+		stats.totalResistors = resistors.size();
+		
+		return stats;
+	}
+	
+	/**
+	 * Writes edges of resistors found by
+	 * {@link #findNearResistors(LightSource, Collection)} to
+	 * {@link LightingContext#edges} relative to the light source. Back
+	 * facing edges are skipped and distant resistors are simplified as
+	 * set by {@link #setBackFaceCulling(boolean)} and
+	 * {@link #setDetailMode(int)}. The near resistors list is cleared.
+	 * 
+	 * @return Number of written edges.
+	 */
+	final int collectEdges(final LightSource source, final LightingContext context) {
+		return collectEdges(source.x, source.y, source.intensity, 0, context);
+	}
+	
+	/**
+	 * The same as {@link #collectEdges(LightSource, LightingContext)}
+	 * but keeps also back facing edges that can become front facing
+	 * when the light moves by less than <code>margin</code>.
+	 */
+	final int collectEdges(final float x, final float y, final float intensity, final float margin, final LightingContext context) {
+		final CompiledScene scene = this.scene;
+		final List/*<LightResistor>*/ nearResistors = context.nearResistors;
+		
+		final float distant = detailDistance * intensity;
+		final float distantSquared = detailMode != Detail.Full ? distant * distant : Float.POSITIVE_INFINITY;
+		
+		int count = 0;
+		
+		for (int r = 0; r < nearResistors.size(); ++r) {
+			final CompiledScene.Slot slot = scene.getSlot((LightResistor) nearResistors.get(r));
+			
+			if (slot == null) {
+				continue;
+			}
+			
+			int first = slot.first;
+			int end = first + slot.count;
+			int winding = slot.winding;
+			
+			if (winding != 0 && distanceSquared(slot, x, y) > distantSquared) {
+				if (detailMode == Detail.Box && slot.count > 4) {
+					count = collectBox(slot, x, y, margin, context, count);
+					continue;
+				}
+				
+				if (slot.hullCount > 0) {
+					// hull is stored after the edges, counter-clockwise
+					first = end;
+					end = first + slot.hullCount;
+					winding = 1;
+				}
+			}
+			
+			if (!backFaceCulling || scene.isInside(slot, x, y)) {
+				winding = 0;
+			}
+			
+			float[] edges = context.ensureEdges(count + end - first);
+			
+			for (int e = first; e < end; ++e) {
+				if (winding != 0 && !scene.isFrontFacing(e, winding, x, y, margin)) {
+					continue;
+				}
+				
+				final int i = count++ * 4;
+				
+				edges[i] = scene.x1[e] - x;
+				edges[i + 1] = scene.y1[e] - y;
+				edges[i + 2] = scene.x2[e] - x;
+				edges[i + 3] = scene.y2[e] - y;
+			}
+		}
+		
+		nearResistors.clear();
+		
+		return count;
+	}
+	
+	/**
+	 * Writes bounding box of the resistor as edges going
+	 * counter-clockwise.
+	 * 
+	 * @return Number of written edges.
+	 */
+	private int collectBox(final CompiledScene.Slot slot, final float x, final float y, final float margin, final LightingContext context, int count) {
+		final float[] edges = context.ensureEdges(count + 4);
+		
+		final float left = slot.left - x, right = slot.right - x;
+		final float bottom = slot.bottom - y, top = slot.top - y;
+		
+		// light is outside of distant box, so it faces at most two edges
+		if (!backFaceCulling || bottom > -margin) {
+			count = setEdge(edges, count, left, bottom, right, bottom);
+		}
+		
+		if (!backFaceCulling || right < margin) {
+			count = setEdge(edges, count, right, bottom, right, top);
+		}
+		
+		if (!backFaceCulling || top < margin) {
+			count = setEdge(edges, count, right, top, left, top);
+		}
+		
+		if (!backFaceCulling || left > -margin) {
+			count = setEdge(edges, count, left, top, left, bottom);
+		}
+		
+		return count;
+	}
+	
+	private static int setEdge(final float[] edges, final int count, final float ax, final float ay, final float bx, final float by) {
+		final int i = count * 4;
+		
+		edges[i] = ax;
+		edges[i + 1] = ay;
+		edges[i + 2] = bx;
+		edges[i + 3] = by;
+		
+		return count + 1;
+	}
+	
+	/**
+	 * Gets the squared distance from the point to bounding box of the
+	 * resistor.
+	 */
+	private static float distanceSquared(final CompiledScene.Slot slot, final float x, final float y) {
+		final float dx = Math.max(0, Math.max(slot.left - x, x - slot.right));
+		final float dy = Math.max(0, Math.max(slot.bottom - y, y - slot.top));
+		
+		return dx * dx + dy * dy;
 	}
 	
-	public abstract Geometry createRays(LightSource source);
+	/**
+	 * Finds all resistors which bounding box is in <code>source</code>
+	 * light range.
+	 * 
+	 * @param source The light source.
+	 * @param result Collection where found resistors will be added.
+	 */
+	protected void findNearResistors(final LightSource source, final Collection/*<LightResistor>*/ result) {
+		final VisibilitySet set = visibilitySet;
+		final LightResistor[] cell = set != null && set.isValid() && source.intensity <= set.getRange()
+				? set.getCell(source.x, source.y) : null;
+		
+		if (cell == null) {
+			resistorIndex.query(source.x, source.y, source.intensity, result);
+			return;
+		}
+		
+		for (int i = 0; i < cell.length; ++i) {
+			final Box2 bbox = cell[i].getBoundingBox();
+			
+			if (bbox != null && Bounds.intersectsCircle(bbox, source.x, source.y, source.intensity)) {
+				result.add(cell[i]);
+			}
+		}
+		
+		if (resistorsOutsideSet > 0) {
+			// resistors added after the set was built are not in cells
+			final List/*<LightResistor>*/ found = LightingContext.current().outsideResistors;
+			
+			found.clear();
+			resistorIndex.query(source.x, source.y, source.intensity, found);
+			
+			for (int i = 0; i < found.size(); ++i) {
+				final LightResistor resistor = (LightResistor) found.get(i);
+				
+				if (!set.contains(resistor)) {
+					result.add(resistor);
+				}
+			}
+			
+			found.clear();
+		}
+	}
+	
+	/**
+	 * Tells if the resistor is not a member of the current visibility
+	 * set.
+	 */
+	private boolean isOutsideSet(final LightResistor resistor) {
+		final VisibilitySet set = visibilitySet;
+		return set != null && !set.contains(resistor);
+	}
+	
+	/**
+	 * @return Index of the visibility set cell of the point or
+	 * <code>-1</code> if the set is not used there.
+	 */
+	final int getVisibilityCell(final float x, final float y) {
+		final VisibilitySet set = visibilitySet;
+		return set != null && set.isValid() ? set.getCellIndex(x, y) : -1;
+	}
+	
+	/**
+	 * @return Directions of non-resistance rays for current number of
+	 * parts.
+	 */
+	RayFan getRayFan() {
+		RayFan fan = rayFan;
+		
+		if (fan == null || fan.partsNum != partsNum) {
+			fan = new RayFan(partsNum);
+			rayFan = fan;
+		}
+		
+		return fan;
+	}
+	
+	/**
+	 * Gets the non-resistance rays of <code>source</code>. Cone fans
+	 * of spot lights are kept in the <code>context</code> and rebuilt
+	 * only when the cone changes.
+	 * 
+	 * @return Fan of the cone or of the full circle.
+	 */
+	RayFan getRayFan(final LightSource source, final LightingContext context) {
+		final int partsNum = getPartsNum(source.intensity);
+		
+		if (!(source instanceof SpotLightSource) || ((SpotLightSource) source).halfAngle >= 180) {
+			return partsNum == this.partsNum ? getRayFan() : getAdaptiveFan(partsNum);
+		}
+		
+		final float halfAngle = Math.max(0, ((SpotLightSource) source).halfAngle);
+		RayFan fan = context.coneFan;
+		
+		if (fan == null || fan.partsNum != partsNum || fan.halfAngle != halfAngle) {
+			fan = new RayFan(partsNum, halfAngle);
+			context.coneFan = fan;
+		}
+		
+		return fan;
+	}
+	
+	/**
+	 * Gets the number of parts of full light of given
+	 * <code>intensity</code>. If chord error is set (see
+	 * {@link #setChordError(float)}) it's the lowest number of parts
+	 * that keeps the error, rounded up to four significant bits so
+	 * that lights of similar intensity share their fans.
+	 */
+	final int getPartsNum(final float intensity) {
+		final float chordError = this.chordError;
+		
+		if (chordError <= 0) {
+			return partsNum;
+		}
+		
+		if (chordError >= intensity) {
+			return MIN_ADAPTIVE_PARTS;
+		}
+		
+		// chord of angle a is r * (1 - cos(a / 2)) away from the arc
+		final double angle = 2 * Math.acos(1 - chordError / intensity);
+		final int parts = Math.max(MIN_ADAPTIVE_PARTS, (int) Math.ceil(2 * Math.PI / angle));
+		
+		int shift = Math.max(0, 28 - Integer.numberOfLeadingZeros(parts));
+		int mantissa = (parts + (1 << shift) - 1) >> shift;
+		
+		if (mantissa == 16) {
+			mantissa = 8;
+			++shift;
+		}
+		
+		if (shift > MAX_ADAPTIVE_SHIFT) {
+			return 15 << MAX_ADAPTIVE_SHIFT;
+		}
+		
+		return mantissa << shift;
+	}
+	
+	/**
+	 * Gets the full fan of number of parts given by
+	 * {@link #getPartsNum(float)}. Fans are shared by all threads, they
+	 * are immutable so at worst the same fan is built twice.
+	 */
+	private RayFan getAdaptiveFan(final int partsNum) {
+		final int shift = Math.max(0, 28 - Integer.numberOfLeadingZeros(partsNum));
+		final int index = shift * 16 + (partsNum >> shift);
+		
+		RayFan fan = adaptiveFans[index];
+		
+		if (fan == null) {
+			fan = new RayFan(partsNum);
+			adaptiveFans[index] = fan;
+		}
+		
+		return fan;
+	}
+	
+	/**
+	 * See {@link #setResistorIndex(ResistorIndex)}
+	 * 
+	 * @return Spatial index of light resistors.
+	 */
+	public ResistorIndex getResistorIndex() {
+		return resistorIndex;
+	}
+	
+	/**
+	 * See {@link #setVisibilitySet(VisibilitySet)}
+	 * 
+	 * @return Potentially visible set or <code>null</code>.
+	 */
+	public VisibilitySet getVisibilitySet() {
+		return visibilitySet;
+	}
+	
+	/**
+	 * See {@link #setStatsListener(LightingStatsListener)}
+	 * 
+	 * @return Receiver of light statistics or <code>null</code>.
+	 */
+	public LightingStatsListener getStatsListener() {
+		return statsListener;
+	}
+	
+	/**
+	 * See {@link #setBackFaceCulling(boolean)}
+	 * 
+	 * @return <code>true</code> if back facing edges are skipped.
+	 */
+	public boolean isBackFaceCulling() {
+		return backFaceCulling;
+	}
+	
+	/**
+	 * See {@link #setDetailDistance(float)}
+	 * 
+	 * @return Distance of distant resistors as fraction of light
+	 * intensity.
+	 */
+	public float getDetailDistance() {
+		return detailDistance;
+	}
+	
+	/**
+	 * See {@link #setDetailMode(int)}
+	 * 
+	 * @return One of {@link Detail} constants.
+	 */
+	public int getDetailMode() {
+		return detailMode;
+	}
+	
+	/**
+	 * See {@link #setSimplifyTolerance(float)}
+	 * 
+	 * @return Maximum distance of removed verticles or <code>0</code>.
+	 */
+	public float getSimplifyTolerance() {
+		return scene.getTolerance();
+	}
+	
+	/**
+	 * See {@link #setChordError(float)}
+	 * 
+	 * @return Maximum distance between light range and its chords or
+	 * <code>0</code>.
+	 */
+	public float getChordError() {
+		return chordError;
+	}
+	
+	/**
+	 * See {@link #setCacheSize(int)}
+	 * 
+	 * @return Maximum number of cached geometries.
+	 */
+	public int getCacheSize() {
+		final LightCache cache = this.cache;
+		return cache != null ? cache.getMaxSize() : 0;
+	}
+	
+	/**
+	 * See {@link #setParallelism(int)}
+	 * 
+	 * @return Number of threads computing batch of lights.
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
 	
 	/**
 	 * See {@link #setPartsNum(int)}
@@ -59,6 +1079,171 @@ public abstract class AbstractLightingAlgorithm {
 		return partsNum;
 	}
 	
+	/**
+	 * Enables skipping of resistor edges that face away from the light.
+	 * Ray coming from outside of closed resistor always hits one of its
+	 * front facing edges first, so the back facing ones never make the
+	 * light geometry and skipping them halves the edges that lights
+	 * have to sort and test. Resistors of two verticles are open and
+	 * all their edges are used.
+	 * <p>
+	 * Closed resistors must not cross themselves. Light inside of
+	 * closed resistor uses all its edges.
+	 * <p>
+	 * By default culling is enabled.
+	 * 
+	 * @param backFaceCulling <code>true</code> to skip back facing
+	 * edges.
+	 */
+	public void setBackFaceCulling(boolean backFaceCulling) {
+		this.backFaceCulling = backFaceCulling;
+		clearCache();
+	}
+	
+	/**
+	 * Sets the distance from which resistors are simplified as set by
+	 * {@link #setDetailMode(int)}. Resistor is distant when its
+	 * bounding box is farther from the light than
+	 * <code>detailDistance</code> times light intensity.
+	 * <p>
+	 * By default detail distance is set to <code>0.5</code>.
+	 * 
+	 * @param detailDistance Fraction of light intensity.
+	 */
+	public void setDetailDistance(float detailDistance) {
+		if (detailDistance < 0) {
+			throw new IllegalArgumentException("detail distance cannot be negative");
+		}
+		
+		this.detailDistance = detailDistance;
+		clearCache();
+	}
+	
+	/**
+	 * Sets the level of detail of closed resistors distant from the
+	 * light (see {@link #setDetailDistance(float)}). Distant resistors
+	 * can be replaced by their convex hull or bounding box. Both cover
+	 * the resistor, so distant shadows can only grow, but they have
+	 * much less edges than detailed outlines.
+	 * <p>
+	 * By default all resistors are used in {@link Detail#Full} detail.
+	 * 
+	 * @param detailMode One of {@link Detail} constants.
+	 */
+	public void setDetailMode(int detailMode) {
+		if (detailMode < Detail.Full || detailMode > Detail.Box) {
+			throw new IllegalArgumentException("unknown detail mode: " + detailMode);
+		}
+		
+		this.detailMode = detailMode;
+		clearCache();
+	}
+	
+	/**
+	 * Enables simplification of closed resistors. Verticles that are
+	 * closer than <code>tolerance</code> to the outline going thru the
+	 * other verticles are removed, which merges nearly collinear edges.
+	 * Resistors are simplified once when they are added or updated,
+	 * changing the tolerance simplifies all resistors again. Resistors
+	 * themselves are not changed.
+	 * <p>
+	 * By default simplification is disabled.
+	 * 
+	 * @param tolerance Maximum distance of removed verticles from
+	 * simplified outline or <code>0</code> to disable.
+	 */
+	public void setSimplifyTolerance(float tolerance) {
+		if (tolerance < 0) {
+			throw new IllegalArgumentException("tolerance cannot be negative");
+		}
+		
+		scene.setTolerance(tolerance);
+		clearCache();
+	}
+	
+	/**
+	 * Makes the number of non-resistance rays of each light depend on
+	 * its intensity instead of {@link #setPartsNum(int)}. Light range
+	 * is drawn as chords between neighbor rays, so each light gets as
+	 * few rays as it needs to keep the chords closer than
+	 * <code>chordError</code> to the range circle. Small lights get
+	 * less verticles and big lights don't look faceted. Spot lights
+	 * cover their cone with the same density.
+	 * <p>
+	 * By default chord error is <code>0</code> and all lights use the
+	 * same number of parts.
+	 * 
+	 * @param chordError Maximum distance in world units or
+	 * <code>0</code> to use the number of parts.
+	 */
+	public void setChordError(float chordError) {
+		if (chordError < 0) {
+			throw new IllegalArgumentException("chord error cannot be negative");
+		}
+		
+		this.chordError = chordError;
+		clearCache();
+	}
+	
+	/**
+	 * Enables caching of computed light geometries. Geometry is cached
+	 * for light position, intensity and number of parts and stays
+	 * valid until a resistor overlapping the light range is added,
+	 * removed or updated. When there are more lights than
+	 * <code>cacheSize</code> the least recently used are dropped.
+	 * <p>
+	 * By default cache is disabled.
+	 * 
+	 * @param cacheSize Maximum number of cached geometries or
+	 * <code>0</code> to disable the cache.
+	 */
+	public void setCacheSize(int cacheSize) {
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException("cache size cannot be negative");
+		}
+		
+		cache = cacheSize > 0 ? new LightCache(cacheSize) : null;
+	}
+	
+	/**
+	 * Sets the listener that receives counters and phase timings of
+	 * every computed light, see {@link LightingStatsHistogram} for
+	 * aggregating them. When the listener is <code>null</code> no
+	 * statistics are collected and light computation has no
+	 * additional cost.
+	 * <p>
+	 * By default there is no listener.
+	 * 
+	 * @param statsListener The listener or <code>null</code> to disable
+	 * statistics.
+	 */
+	public void setStatsListener(LightingStatsListener statsListener) {
+		this.statsListener = statsListener;
+	}
+	
+	/**
+	 * Sets the number of threads that {@link #createRays(Collection)}
+	 * uses. Threads steal work from each other, so lights of different
+	 * cost are spread evenly. Value of <code>1</code> computes batches
+	 * on the calling thread.
+	 * <p>
+	 * By default it's the number of available processors.
+	 * 
+	 * @param parallelism The number of threads.
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		
+		this.parallelism = parallelism;
+	}
+	
 	/**
 	 * Sets the number of parts that light geometry without any resistance
 	 * should be build of. If there is resistors in light radius, then
@@ -71,5 +1256,121 @@ public abstract class AbstractLightingAlgorithm {
 	 */
 	public void setPartsNum(int partsNum) {
 		this.partsNum = partsNum;
-	} 
+		
+		// cached geometries are kept by the number of parts
+		lights.markAllDirty();
+	}
+	
+	/**
+	 * Drops all cached geometries. It must be called when setting that
+	 * changes the light geometry is changed.
+	 */
+	protected void clearCache() {
+		++settingsVersion;
+		lights.markAllDirty();
+		
+		final LightCache cache = this.cache;
+		
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+	
+	/**
+	 * Invalidates everything that depends on the scene in the old and the
+	 * new place of the <code>resistor</code>.
+	 */
+	private void sceneChanged(final LightResistor resistor) {
+		final float[] oldBounds = (float[]) resistorBounds.get(resistor);
+		final Box2 bbox = resistor.getBoundingBox();
+		final VisibilitySet set = visibilitySet;
+		
+		if (set != null && set.contains(resistor)) {
+			set.invalidate();
+		}
+		
+		if (oldBounds != null) {
+			boundsChanged(oldBounds[0], oldBounds[1], oldBounds[2], oldBounds[3]);
+		}
+		
+		if (bbox != null) {
+			boundsChanged(bbox.left, bbox.bottom, bbox.right, bbox.top);
+			resistorBounds.put(resistor, new float[] {bbox.left, bbox.bottom, bbox.right, bbox.top});
+		} else {
+			resistorBounds.remove(resistor);
+		}
+	}
+	
+	/**
+	 * Called when scene in the box has been changed.
+	 */
+	private void boundsChanged(final float left, final float bottom, final float right, final float top) {
+		final LightCache cache = this.cache;
+		
+		if (cache != null) {
+			cache.invalidate(left, bottom, right, top);
+		}
+		
+		changes.add(left, bottom, right, top);
+		lights.markDirty(left, bottom, right, top);
+	}
+	
+	/**
+	 * @return Pool of batch computing threads shared with
+	 * {@link LightMap}.
+	 */
+	synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		
+		return pool;
+	}
+	
+	/**
+	 * Sets the potentially visible set used to find resistors near the
+	 * light source. Lights in its cells get only resistors visible from
+	 * there, others are found by the resistor index. The set stops being
+	 * used when any of its resistors is removed or updated.
+	 * 
+	 * @param visibilitySet Set built by
+	 * {@link VisibilitySet#build(AbstractLightingAlgorithm, float, float)}
+	 * or <code>null</code> to disable it.
+	 */
+	public void setVisibilitySet(VisibilitySet visibilitySet) {
+		int outside = 0;
+		
+		if (visibilitySet != null) {
+			for (final Iterator itor = resistors.iterator(); itor.hasNext();) {
+				if (!visibilitySet.contains((LightResistor) itor.next())) {
+					++outside;
+				}
+			}
+		}
+		
+		this.resistorsOutsideSet = outside;
+		this.visibilitySet = visibilitySet;
+		clearCache();
+	}
+	
+	/**
+	 * Sets the spatial index used to find resistors near the light
+	 * source. All resistors added so far are put into the new index.
+	 * <p>
+	 * By default {@link DynamicTreeResistorIndex} is used. For scenes
+	 * that never changes {@link GridResistorIndex} can be faster.
+	 * 
+	 * @param resistorIndex The empty resistor index.
+	 */
+	public void setResistorIndex(ResistorIndex resistorIndex) {
+		if (resistorIndex == null) {
+			throw new IllegalArgumentException("resistor index cannot be null");
+		}
+		
+		for (final Iterator itor = resistors.iterator(); itor.hasNext();) {
+			resistorIndex.add((LightResistor) itor.next());
+		}
+		
+		this.resistorIndex = resistorIndex;
+	}
 }
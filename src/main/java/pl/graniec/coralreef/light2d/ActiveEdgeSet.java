@@ -0,0 +1,392 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+/**
+ * Balanced set of edges that are crossed by the current sweep ray,
+ * ordered from the nearest to the farthest one. It's a treap with
+ * parent links, so neighbors of any edge can be found and removed
+ * by its index.
+ * <p>
+ * Edges are given as indexes to coordinate arrays relative to the
+ * light source which lies at <code>(0, 0)</code>. Edges that cross each
+ * other must be swapped with {@link #swap(int, int)} when the sweep
+ * reaches their crossing point.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class ActiveEdgeSet {
+
+	static final int NULL = -1;
+	
+	private float[] x1, y1, x2, y2;
+	
+	// tree nodes
+	private int[] left = new int[0];
+	private int[] right = new int[0];
+	private int[] parent = new int[0];
+	private int[] priority = new int[0];
+	private int[] nodeEdge = new int[0];
+	
+	/** Node of each edge or NULL if edge is not in the set */
+	private int[] edgeNode = new int[0];
+	
+	/** Stack of unused nodes */
+	private int[] freeNodes = new int[0];
+	private int freeCount;
+	
+	private int root = NULL;
+	private int seed = 0x2545F491;
+	
+	/** Direction of current sweep ray */
+	private float rayX, rayY;
+	
+	/**
+	 * Prepares this set for new sweep.
+	 * 
+	 * @param count Number of edges in coordinate arrays.
+	 */
+	void reset(final float[] x1, final float[] y1, final float[] x2, final float[] y2, final int count) {
+		this.x1 = x1;
+		this.y1 = y1;
+		this.x2 = x2;
+		this.y2 = y2;
+		
+		if (left.length < count) {
+			final int capacity = Math.max(count, left.length * 2);
+			
+			left = new int[capacity];
+			right = new int[capacity];
+			parent = new int[capacity];
+			priority = new int[capacity];
+			nodeEdge = new int[capacity];
+			edgeNode = new int[capacity];
+			freeNodes = new int[capacity];
+		}
+		
+		for (int i = 0; i < count; ++i) {
+			edgeNode[i] = NULL;
+			freeNodes[i] = count - 1 - i;
+		}
+		
+		freeCount = count;
+		root = NULL;
+	}
+	
+	/**
+	 * Sets the direction of sweep ray. It's used to order edges
+	 * that are crossing each other.
+	 */
+	void setRay(final float x, final float y) {
+		rayX = x;
+		rayY = y;
+	}
+	
+	boolean contains(final int edge) {
+		return edgeNode[edge] != NULL;
+	}
+	
+	boolean isEmpty() {
+		return root == NULL;
+	}
+	
+	/**
+	 * @return The nearest edge or {@link #NULL} if set is empty.
+	 */
+	int first() {
+		int node = root;
+		
+		if (node == NULL) {
+			return NULL;
+		}
+		
+		while (left[node] != NULL) {
+			node = left[node];
+		}
+		
+		return nodeEdge[node];
+	}
+	
+	/**
+	 * @return The edge right behind <code>edge</code> or {@link #NULL}.
+	 */
+	int next(final int edge) {
+		int node = edgeNode[edge];
+		
+		if (right[node] != NULL) {
+			node = right[node];
+			
+			while (left[node] != NULL) {
+				node = left[node];
+			}
+			
+			return nodeEdge[node];
+		}
+		
+		while (parent[node] != NULL && right[parent[node]] == node) {
+			node = parent[node];
+		}
+		
+		node = parent[node];
+		
+		return node == NULL ? NULL : nodeEdge[node];
+	}
+	
+	/**
+	 * @return The edge right in front of <code>edge</code> or {@link #NULL}.
+	 */
+	int previous(final int edge) {
+		int node = edgeNode[edge];
+		
+		if (left[node] != NULL) {
+			node = left[node];
+			
+			while (right[node] != NULL) {
+				node = right[node];
+			}
+			
+			return nodeEdge[node];
+		}
+		
+		while (parent[node] != NULL && left[parent[node]] == node) {
+			node = parent[node];
+		}
+		
+		node = parent[node];
+		
+		return node == NULL ? NULL : nodeEdge[node];
+	}
+	
+	void insert(final int edge) {
+		final int created = freeNodes[--freeCount];
+		
+		left[created] = NULL;
+		right[created] = NULL;
+		parent[created] = NULL;
+		priority[created] = nextPriority();
+		nodeEdge[created] = edge;
+		edgeNode[edge] = created;
+		
+		if (root == NULL) {
+			root = created;
+			return;
+		}
+		
+		int node = root;
+		
+		for (;;) {
+			if (inFront(edge, nodeEdge[node])) {
+				if (left[node] == NULL) {
+					left[node] = created;
+					break;
+				}
+				
+				node = left[node];
+			} else {
+				if (right[node] == NULL) {
+					right[node] = created;
+					break;
+				}
+				
+				node = right[node];
+			}
+		}
+		
+		parent[created] = node;
+		
+		while (parent[created] != NULL && priority[created] > priority[parent[created]]) {
+			rotateUp(created);
+		}
+	}
+	
+	void remove(final int edge) {
+		final int node = edgeNode[edge];
+		
+		// push the node down until it's a leaf
+		for (;;) {
+			final int l = left[node];
+			final int r = right[node];
+			
+			if (l == NULL && r == NULL) {
+				break;
+			}
+			
+			if (r == NULL || l != NULL && priority[l] > priority[r]) {
+				rotateUp(l);
+			} else {
+				rotateUp(r);
+			}
+		}
+		
+		final int p = parent[node];
+		
+		if (p == NULL) {
+			root = NULL;
+		} else if (left[p] == node) {
+			left[p] = NULL;
+		} else {
+			right[p] = NULL;
+		}
+		
+		edgeNode[edge] = NULL;
+		freeNodes[freeCount++] = node;
+	}
+	
+	/**
+	 * Exchanges places of two edges in the set. It's used when edges
+	 * crosses each other.
+	 */
+	void swap(final int a, final int b) {
+		final int nodeA = edgeNode[a];
+		final int nodeB = edgeNode[b];
+		
+		nodeEdge[nodeA] = b;
+		nodeEdge[nodeB] = a;
+		edgeNode[a] = nodeB;
+		edgeNode[b] = nodeA;
+	}
+	
+	/**
+	 * Tells if edge <code>a</code> is nearer to the light than edge
+	 * <code>b</code>. Edges are compared by the side of each other's
+	 * line they lie on, so the answer doesn't depend on sweep ray for
+	 * edges that doesn't cross.
+	 */
+	boolean inFront(final int a, final int b) {
+		// edge a against line of b
+		final int sideA = side(
+				side(x1[b], y1[b], x2[b], y2[b], x1[a], y1[a]),
+				side(x1[b], y1[b], x2[b], y2[b], x2[a], y2[a]));
+		
+		if (sideA != 0) {
+			// whole a is on one side of b
+			return sideA == side(x1[b], y1[b], x2[b], y2[b], 0, 0);
+		}
+		
+		// edge b against line of a
+		final int sideB = side(
+				side(x1[a], y1[a], x2[a], y2[a], x1[b], y1[b]),
+				side(x1[a], y1[a], x2[a], y2[a], x2[b], y2[b]));
+		
+		if (sideB != 0) {
+			return sideB != side(x1[a], y1[a], x2[a], y2[a], 0, 0);
+		}
+		
+		// edges are crossing, compare on current ray
+		return distance(a, rayX, rayY) < distance(b, rayX, rayY);
+	}
+	
+	/**
+	 * Gets the distance from the light to the edge along the ray,
+	 * measured in ray direction length units.
+	 */
+	float distance(final int edge, final float dx, final float dy) {
+		final float ex = x2[edge] - x1[edge];
+		final float ey = y2[edge] - y1[edge];
+		
+		final float denominator = dx * ey - dy * ex;
+		
+		if (denominator == 0) {
+			return Float.POSITIVE_INFINITY;
+		}
+		
+		return (x1[edge] * ey - y1[edge] * ex) / denominator;
+	}
+	
+	/**
+	 * Gets the side of segment from the sides of its end points. End
+	 * point lying on the line (shared verticle) doesn't matter.
+	 * 
+	 * @return Side of whole segment or <code>0</code> if it crosses
+	 * the line or lies on it.
+	 */
+	private static int side(final int side1, final int side2) {
+		if (side1 == -side2) {
+			return 0;
+		}
+		
+		return side1 != 0 ? side1 : side2;
+	}
+	
+	private static int side(final float ax, final float ay, final float bx, final float by, final float px, final float py) {
+		final float cross = (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+		
+		if (cross > 0) {
+			return 1;
+		} else if (cross < 0) {
+			return -1;
+		}
+		
+		return 0;
+	}
+	
+	private int nextPriority() {
+		// xorshift random number
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		
+		return seed;
+	}
+	
+	private void rotateUp(final int node) {
+		final int p = parent[node];
+		final int g = parent[p];
+		
+		if (left[p] == node) {
+			left[p] = right[node];
+			
+			if (right[node] != NULL) {
+				parent[right[node]] = p;
+			}
+			
+			right[node] = p;
+		} else {
+			right[p] = left[node];
+			
+			if (left[node] != NULL) {
+				parent[left[node]] = p;
+			}
+			
+			left[node] = p;
+		}
+		
+		parent[p] = node;
+		parent[node] = g;
+		
+		if (g == NULL) {
+			root = node;
+		} else if (left[g] == p) {
+			left[g] = node;
+		} else {
+			right[g] = node;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import pl.graniec.coralreef.geometry.Box2;
+
+/**
+ * Bounding box tests shared by resistor indexes.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class Bounds {
+	
+	private Bounds() {
+	}
+	
+	/**
+	 * Tells if the box overlaps the circle. Box is given by its
+	 * coordinates where <code>bottom</code> is the lower y value.
+	 */
+	static final boolean intersectsCircle(
+			final float left, final float bottom, final float right, final float top,
+			final float x, final float y, final float radius) {
+		
+		// distance from circle center to the nearest box point
+		float dx = 0, dy = 0;
+		
+		if (x < left) {
+			dx = left - x;
+		} else if (x > right) {
+			dx = x - right;
+		}
+		
+		if (y < bottom) {
+			dy = bottom - y;
+		} else if (y > top) {
+			dy = y - top;
+		}
+		
+		return dx * dx + dy * dy <= radius * radius;
+	}
+	
+	/**
+	 * Tells if the box overlaps the segment from <code>(ax, ay)</code>
+	 * to <code>(bx, by)</code>.
+	 */
+	static final boolean intersectsSegment(
+			final float left, final float bottom, final float right, final float top,
+			final float ax, final float ay, final float bx, final float by) {
+		
+		return enterSegment(left, bottom, right, top, ax, ay, bx - ax, by - ay) <= 1;
+	}
+	
+	/**
+	 * Finds where the segment from <code>(ax, ay)</code> to
+	 * <code>(ax + dx, ay + dy)</code> enters the box.
+	 * 
+	 * @return Segment parameter from <code>0</code> to <code>1</code>,
+	 * <code>0</code> if it starts inside, or
+	 * {@link Float#POSITIVE_INFINITY} if it misses the box.
+	 */
+	static final float enterSegment(
+			final float left, final float bottom, final float right, final float top,
+			final float ax, final float ay, final float dx, final float dy) {
+		
+		// clip segment parameter range by both slabs
+		float min = 0, max = 1;
+		
+		if (dx == 0) {
+			if (ax < left || ax > right) {
+				return Float.POSITIVE_INFINITY;
+			}
+		} else {
+			final float t1 = (left - ax) / dx, t2 = (right - ax) / dx;
+			
+			min = Math.max(min, Math.min(t1, t2));
+			max = Math.min(max, Math.max(t1, t2));
+		}
+		
+		if (dy == 0) {
+			if (ay < bottom || ay > top) {
+				return Float.POSITIVE_INFINITY;
+			}
+		} else {
+			final float t1 = (bottom - ay) / dy, t2 = (top - ay) / dy;
+			
+			min = Math.max(min, Math.min(t1, t2));
+			max = Math.min(max, Math.max(t1, t2));
+		}
+		
+		return min <= max ? min : Float.POSITIVE_INFINITY;
+	}
+	
+	static final boolean intersectsCircle(final Box2 box, final float x, final float y, final float radius) {
+		return intersectsCircle(box.left, box.bottom, box.right, box.top, x, y, radius);
+	}
+}
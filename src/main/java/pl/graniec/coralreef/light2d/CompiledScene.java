@@ -0,0 +1,622 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Edges of all resistors flattened into primitive arrays. Edge
+ * <code>i</code> goes from <code>(x1[i], y1[i])</code> to
+ * <code>(x2[i], y2[i])</code> and belongs to resistor of id
+ * <code>owner[i]</code>. Edges of one resistor are stored next to
+ * each other.
+ * <p>
+ * The scene is compiled once and changed only when resistors are
+ * added, removed or updated, so lights just read the edges instead
+ * of walking resistor verticles every time. Edges of removed resistors
+ * are left unused until there is more unused edges than used ones,
+ * then the arrays are compacted.
+ * <p>
+ * Winding of closed resistors is recorded when their edges are
+ * written, so lights outside of resistor can skip edges facing away
+ * from them (see {@link #isFrontFacing(int, int, float, float)}).
+ * <p>
+ * Verticles of closed resistors can be simplified within a tolerance
+ * before their edges are written. Concave resistors also get their
+ * counter-clockwise convex hull stored right after their edges, so
+ * distant lights can use less edges.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class CompiledScene {
+	
+	/** Edges of single resistor */
+	static final class Slot {
+		final LightResistor resistor;
+		final int id;
+		int first;
+		int count;
+		/** Number of convex hull edges after the resistor edges, 0 if there is no hull */
+		int hullCount;
+		/**
+		 * <code>1</code> if closed resistor goes counter-clockwise,
+		 * <code>-1</code> if clockwise and <code>0</code> if it's open
+		 * or has no area
+		 */
+		int winding;
+		/** Bounding box of edges */
+		float left, bottom, right, top;
+		
+		Slot(final LightResistor resistor, final int id) {
+			this.resistor = resistor;
+			this.id = id;
+		}
+	}
+	
+	float[] x1 = new float[64], y1 = new float[64], x2 = new float[64], y2 = new float[64];
+	int[] owner = new int[64];
+	/** Number of used array elements, including unused edges */
+	int edgeCount;
+	
+	/** Slots by resistor id, null for free ids */
+	private Slot[] slots = new Slot[16];
+	private final Map/*<LightResistor, Slot>*/ slotMap = new IdentityHashMap();
+	/** Ids that can be reused */
+	private int[] freeIds = new int[16];
+	private int freeIdCount;
+	private int idCount;
+	
+	/** Number of edges of removed resistors */
+	private int deadCount;
+	
+	/** Maximum distance of removed verticle from simplified outline */
+	private float tolerance;
+	
+	// verticles of the resistor being written after simplification and
+	// its convex hull
+	private float[] vx = new float[16], vy = new float[16];
+	private int verticleCount;
+	private float[] hx = new float[16], hy = new float[16];
+	private int hullCount;
+	/** Verticles sorted by x used to build the hull */
+	private int[] sorted = new int[16];
+	
+	void add(final LightResistor resistor) {
+		if (slotMap.containsKey(resistor)) {
+			return;
+		}
+		
+		final int id;
+		
+		if (freeIdCount > 0) {
+			id = freeIds[--freeIdCount];
+		} else {
+			id = idCount++;
+			
+			if (id == slots.length) {
+				final Slot[] grown = new Slot[id * 2];
+				System.arraycopy(slots, 0, grown, 0, id);
+				slots = grown;
+			}
+		}
+		
+		final Slot slot = new Slot(resistor, id);
+		slots[id] = slot;
+		slotMap.put(resistor, slot);
+		
+		prepare(resistor);
+		appendEdges(slot);
+	}
+	
+	void remove(final LightResistor resistor) {
+		final Slot slot = (Slot) slotMap.remove(resistor);
+		
+		if (slot == null) {
+			return;
+		}
+		
+		deadCount += slot.count + slot.hullCount;
+		slots[slot.id] = null;
+		
+		if (freeIdCount == freeIds.length) {
+			final int[] grown = new int[freeIdCount * 2];
+			System.arraycopy(freeIds, 0, grown, 0, freeIdCount);
+			freeIds = grown;
+		}
+		
+		freeIds[freeIdCount++] = slot.id;
+		
+		compactIfNeeded();
+	}
+	
+	void update(final LightResistor resistor) {
+		final Slot slot = (Slot) slotMap.get(resistor);
+		
+		if (slot == null) {
+			return;
+		}
+		
+		prepare(resistor);
+		
+		if (countEdges(verticleCount) == slot.count && countHull() == slot.hullCount) {
+			// same shape, just write the edges again
+			writeEdges(slot);
+			return;
+		}
+		
+		deadCount += slot.count + slot.hullCount;
+		appendEdges(slot);
+		
+		compactIfNeeded();
+	}
+	
+	Slot getSlot(final LightResistor resistor) {
+		return (Slot) slotMap.get(resistor);
+	}
+	
+	LightResistor getResistor(final int id) {
+		return slots[id].resistor;
+	}
+	
+	/**
+	 * @return Number of edges of all resistors, including hull edges.
+	 */
+	int getLiveEdgeCount() {
+		return edgeCount - deadCount;
+	}
+	
+	/**
+	 * See {@link #setTolerance(float)}
+	 */
+	float getTolerance() {
+		return tolerance;
+	}
+	
+	/**
+	 * Sets the maximum distance between removed verticles and
+	 * simplified outline of closed resistors and writes all resistors
+	 * again. Value of <code>0</code> disables the simplification.
+	 */
+	void setTolerance(final float tolerance) {
+		this.tolerance = tolerance;
+		
+		for (int id = 0; id < idCount; ++id) {
+			if (slots[id] != null) {
+				update(slots[id].resistor);
+			}
+		}
+	}
+	
+	/**
+	 * Builds simplified verticles and convex hull of the resistor.
+	 */
+	private void prepare(final LightResistor resistor) {
+		final int length = resistor.getVerticleCount();
+		
+		if (vx.length < length) {
+			vx = new float[length];
+			vy = new float[length];
+			hx = new float[length + 1];
+			hy = new float[length + 1];
+			sorted = new int[length];
+		}
+		
+		resistor.copyVerticles(vx, vy);
+		verticleCount = length;
+		hullCount = 0;
+		
+		if (length < 3) {
+			return;
+		}
+		
+		if (tolerance > 0) {
+			simplify(resistor);
+		}
+		
+		buildHull();
+	}
+	
+	/**
+	 * Removes verticles that are closer than the tolerance to the
+	 * outline going thru the kept ones. Starting from a kept verticle
+	 * the outline goes to the farthest verticle such that all skipped
+	 * verticles are close enough to it.
+	 */
+	private void simplify(final LightResistor resistor) {
+		final int length = verticleCount;
+		int count = 1;
+		int anchor = 0;
+		
+		while (anchor < length - 1) {
+			int next = anchor + 1;
+			
+			while (next + 1 <= length && isCloseEnough(anchor, next + 1)) {
+				++next;
+			}
+			
+			if (next == length) {
+				// back at the first verticle
+				break;
+			}
+			
+			// kept verticles never overwrite the ones still checked
+			vx[count] = vx[next];
+			vy[count] = vy[next];
+			
+			anchor = next;
+			++count;
+		}
+		
+		if (count >= 3) {
+			verticleCount = count;
+			return;
+		}
+		
+		// too simple to be closed, keep the original verticles
+		resistor.copyVerticles(vx, vy);
+	}
+	
+	/**
+	 * Tells if all verticles between <code>from</code> and
+	 * <code>to</code> are closer than the tolerance to the segment
+	 * joining them. Index of verticle count is the first verticle.
+	 */
+	private boolean isCloseEnough(final int from, final int to) {
+		final int end = to == verticleCount ? 0 : to;
+		final float ax = vx[from], ay = vy[from];
+		final float ex = vx[end] - ax, ey = vy[end] - ay;
+		final float lengthSquared = ex * ex + ey * ey;
+		final float limit = tolerance * tolerance;
+		
+		for (int i = from + 1; i < to; ++i) {
+			final float px = vx[i] - ax, py = vy[i] - ay;
+			float t = lengthSquared == 0 ? 0 : (px * ex + py * ey) / lengthSquared;
+			
+			if (t < 0) {
+				t = 0;
+			} else if (t > 1) {
+				t = 1;
+			}
+			
+			final float dx = px - ex * t, dy = py - ey * t;
+			
+			if (dx * dx + dy * dy > limit) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Builds counter-clockwise convex hull of the verticles with
+	 * monotone chain algorithm.
+	 */
+	private void buildHull() {
+		final int length = verticleCount;
+		
+		for (int i = 0; i < length; ++i) {
+			sorted[i] = i;
+		}
+		
+		// insertion sort by x then y, resistors have few verticles
+		for (int i = 1; i < length; ++i) {
+			final int v = sorted[i];
+			int j = i;
+			
+			while (j > 0 && (vx[sorted[j - 1]] > vx[v] || vx[sorted[j - 1]] == vx[v] && vy[sorted[j - 1]] > vy[v])) {
+				sorted[j] = sorted[j - 1];
+				--j;
+			}
+			
+			sorted[j] = v;
+		}
+		
+		int count = 0;
+		
+		// lower chain, then upper chain
+		for (int i = 0; i < length; ++i) {
+			count = addHullPoint(sorted[i], count, 2);
+		}
+		
+		final int lower = count + 1;
+		
+		for (int i = length - 2; i >= 0; --i) {
+			count = addHullPoint(sorted[i], count, lower);
+		}
+		
+		// the last point is the first one
+		hullCount = count - 1;
+	}
+	
+	private int addHullPoint(final int v, int count, final int min) {
+		final float x = vx[v], y = vy[v];
+		
+		while (count >= min) {
+			final float cross =
+				(hx[count - 1] - hx[count - 2]) * (y - hy[count - 2]) -
+				(hy[count - 1] - hy[count - 2]) * (x - hx[count - 2]);
+			
+			if (cross > 0) {
+				break;
+			}
+			
+			--count;
+		}
+		
+		hx[count] = x;
+		hy[count] = y;
+		
+		return count + 1;
+	}
+	
+	/**
+	 * Gets the number of hull edges stored for prepared resistor. Hull
+	 * is stored only if it has less edges than the resistor.
+	 */
+	private int countHull() {
+		return hullCount >= 3 && hullCount < countEdges(verticleCount) ? hullCount : 0;
+	}
+	
+	private void appendEdges(final Slot slot) {
+		final int count = countEdges(verticleCount);
+		final int hull = countHull();
+		
+		ensureCapacity(edgeCount + count + hull);
+		
+		slot.first = edgeCount;
+		slot.count = count;
+		slot.hullCount = hull;
+		edgeCount += count + hull;
+		
+		writeEdges(slot);
+	}
+	
+	/**
+	 * Tells if the point <code>(x, y)</code> is on the outer side of
+	 * edge <code>e</code> of resistor of given <code>winding</code>.
+	 * Edges of open resistors and edges on line going thru the point
+	 * are always front facing. Point inside of closed resistor sees only
+	 * its back faces, see {@link #isInside(Slot, float, float)}.
+	 */
+	boolean isFrontFacing(final int e, final int winding, final float x, final float y) {
+		final float cross = (x2[e] - x1[e]) * (y - y1[e]) - (y2[e] - y1[e]) * (x - x1[e]);
+		
+		// interior is on the left of counter-clockwise edges
+		return cross * winding <= 0;
+	}
+	
+	/**
+	 * The same as {@link #isFrontFacing(int, int, float, float)} but
+	 * also back facing edges closer than <code>margin</code> to line of
+	 * the edge are treated as front facing.
+	 */
+	boolean isFrontFacing(final int e, final int winding, final float x, final float y, final float margin) {
+		final float ex = x2[e] - x1[e];
+		final float ey = y2[e] - y1[e];
+		final float cross = ex * (y - y1[e]) - ey * (x - x1[e]);
+		
+		// cross is the distance from the line times the edge length
+		return cross * winding <= 0 || cross * cross <= margin * margin * (ex * ex + ey * ey);
+	}
+	
+	/**
+	 * Intersects the ray going from <code>(x, y)</code> in direction
+	 * <code>(dx, dy)</code> with edge <code>e</code>. Edges parallel to
+	 * the ray are never hit.
+	 * 
+	 * @return Ray parameter of the hit, so that the hit point is
+	 * <code>(x + t * dx, y + t * dy)</code>, or
+	 * {@link Float#POSITIVE_INFINITY} if the edge is not hit at positive
+	 * parameter.
+	 */
+	float intersect(final int e, final float x, final float y, final float dx, final float dy) {
+		final float ex = x2[e] - x1[e];
+		final float ey = y2[e] - y1[e];
+		final float denom = dx * ey - dy * ex;
+		
+		if (denom == 0) {
+			return Float.POSITIVE_INFINITY;
+		}
+		
+		final float ax = x1[e] - x;
+		final float ay = y1[e] - y;
+		final float t = (ax * ey - ay * ex) / denom;
+		final float s = (ax * dy - ay * dx) / denom;
+		
+		return t > 0 && s >= 0 && s <= 1 ? t : Float.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Tells if the point <code>(x, y)</code> is inside of closed
+	 * resistor.
+	 */
+	boolean isInside(final Slot slot, final float x, final float y) {
+		if (slot.winding == 0 || x < slot.left || x > slot.right || y < slot.bottom || y > slot.top) {
+			return false;
+		}
+		
+		// count edges crossing the ray going right from the point
+		boolean inside = false;
+		final int end = slot.first + slot.count;
+		
+		for (int e = slot.first; e < end; ++e) {
+			if ((y1[e] > y) != (y2[e] > y)) {
+				final float cx = x1[e] + (y - y1[e]) * (x2[e] - x1[e]) / (y2[e] - y1[e]);
+				
+				if (cx > x) {
+					inside = !inside;
+				}
+			}
+		}
+		
+		return inside;
+	}
+	
+	/**
+	 * Writes prepared edges and hull of the resistor to its place.
+	 */
+	private void writeEdges(final Slot slot) {
+		final int length = verticleCount;
+		int e = slot.first;
+		
+		for (int i = 1; i < length; ++i) {
+			setEdge(e++, vx[i - 1], vy[i - 1], vx[i], vy[i], slot.id);
+		}
+		
+		if (length >= 3) {
+			setEdge(e++, vx[length - 1], vy[length - 1], vx[0], vy[0], slot.id);
+		}
+		
+		for (int i = 0; i < slot.hullCount; ++i) {
+			setEdge(e++, hx[i], hy[i], hx[i + 1], hy[i + 1], slot.id);
+		}
+		
+		slot.winding = winding();
+		
+		if (length > 0) {
+			slot.left = slot.right = vx[0];
+			slot.bottom = slot.top = vy[0];
+			
+			for (int i = 1; i < length; ++i) {
+				slot.left = Math.min(slot.left, vx[i]);
+				slot.right = Math.max(slot.right, vx[i]);
+				slot.bottom = Math.min(slot.bottom, vy[i]);
+				slot.top = Math.max(slot.top, vy[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the winding of prepared polygon from the sign of its area.
+	 * 
+	 * @return <code>1</code> for counter-clockwise, <code>-1</code>
+	 * for clockwise and <code>0</code> for open polygons or without area.
+	 */
+	private int winding() {
+		final int length = verticleCount;
+		
+		if (length < 3) {
+			return 0;
+		}
+		
+		double area = 0;
+		
+		for (int i = 0, previous = length - 1; i < length; previous = i++) {
+			area += (double) vx[previous] * vy[i] - (double) vx[i] * vy[previous];
+		}
+		
+		return area > 0 ? 1 : area < 0 ? -1 : 0;
+	}
+	
+	private void setEdge(final int e, final float ax, final float ay, final float bx, final float by, final int id) {
+		x1[e] = ax;
+		y1[e] = ay;
+		x2[e] = bx;
+		y2[e] = by;
+		owner[e] = id;
+	}
+	
+	/**
+	 * Gets the number of edges of resistor. Polygons are closed, two
+	 * verticles make a single edge.
+	 */
+	private static int countEdges(final int verticleCount) {
+		if (verticleCount < 2) {
+			return 0;
+		}
+		
+		return verticleCount >= 3 ? verticleCount : 1;
+	}
+	
+	private void compactIfNeeded() {
+		if (deadCount < 64 || deadCount < edgeCount - deadCount) {
+			return;
+		}
+		
+		final float[] nx1 = new float[x1.length], ny1 = new float[y1.length];
+		final float[] nx2 = new float[x2.length], ny2 = new float[y2.length];
+		final int[] nowner = new int[owner.length];
+		
+		int e = 0;
+		
+		for (int id = 0; id < idCount; ++id) {
+			final Slot slot = slots[id];
+			
+			if (slot == null) {
+				continue;
+			}
+			
+			final int count = slot.count + slot.hullCount;
+			
+			System.arraycopy(x1, slot.first, nx1, e, count);
+			System.arraycopy(y1, slot.first, ny1, e, count);
+			System.arraycopy(x2, slot.first, nx2, e, count);
+			System.arraycopy(y2, slot.first, ny2, e, count);
+			System.arraycopy(owner, slot.first, nowner, e, count);
+			
+			slot.first = e;
+			e += count;
+		}
+		
+		x1 = nx1;
+		y1 = ny1;
+		x2 = nx2;
+		y2 = ny2;
+		owner = nowner;
+		
+		edgeCount = e;
+		deadCount = 0;
+	}
+	
+	private void ensureCapacity(final int capacity) {
+		if (capacity <= x1.length) {
+			return;
+		}
+		
+		final int size = Math.max(capacity, x1.length * 2);
+		
+		x1 = grow(x1, size);
+		y1 = grow(y1, size);
+		x2 = grow(x2, size);
+		y2 = grow(y2, size);
+		
+		final int[] grownOwner = new int[size];
+		System.arraycopy(owner, 0, grownOwner, 0, edgeCount);
+		owner = grownOwner;
+	}
+	
+	private static float[] grow(final float[] array, final int size) {
+		final float[] result = new float[size];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+}
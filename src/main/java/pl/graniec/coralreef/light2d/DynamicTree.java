@@ -0,0 +1,511 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Collection;
+
+/**
+ * Dynamic bounding volume hierarchy of axis aligned boxes. Leaves keep
+ * a box enlarged by a margin so small moves of the object doesn't
+ * require any change in the tree. When object leaves its enlarged box
+ * the leaf is reinserted and the tree is rebalanced by rotations, so
+ * every change costs <code>O(log n)</code>.
+ * <p>
+ * Nodes are kept in arrays and referenced by their indexes.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class DynamicTree {
+	
+	static final int NULL = -1;
+	
+	/** Enlargement of leaf boxes */
+	private final float margin;
+	
+	// enlarged box of each node
+	private float[] left, bottom, right, top;
+	// tight box of leaf nodes
+	private float[] tightLeft, tightBottom, tightRight, tightTop;
+	
+	private int[] parent, child1, child2, height;
+	private Object[] data;
+	
+	private int capacity;
+	private int root = NULL;
+	/** First free node, free nodes are chained by parent index */
+	private int free = NULL;
+	
+	DynamicTree(final float margin) {
+		this.margin = margin;
+		allocate(16);
+	}
+	
+	/**
+	 * Creates a new leaf for the object.
+	 * 
+	 * @return The leaf index (proxy) that is used to change or remove the
+	 * object.
+	 */
+	int createProxy(final float l, final float b, final float r, final float t, final Object userData) {
+		final int proxy = allocateNode();
+		
+		setTight(proxy, l, b, r, t);
+		setFat(proxy, l - margin, b - margin, r + margin, t + margin);
+		data[proxy] = userData;
+		height[proxy] = 0;
+		
+		insertLeaf(proxy);
+		
+		return proxy;
+	}
+	
+	void destroyProxy(final int proxy) {
+		removeLeaf(proxy);
+		freeNode(proxy);
+	}
+	
+	/**
+	 * Changes the box of the object.
+	 * 
+	 * @return <code>true</code> if the leaf had to be reinserted.
+	 */
+	boolean moveProxy(final int proxy, final float l, final float b, final float r, final float t) {
+		setTight(proxy, l, b, r, t);
+		
+		if (left[proxy] <= l && bottom[proxy] <= b && right[proxy] >= r && top[proxy] >= t) {
+			// still inside enlarged box
+			return false;
+		}
+		
+		removeLeaf(proxy);
+		setFat(proxy, l - margin, b - margin, r + margin, t + margin);
+		insertLeaf(proxy);
+		
+		return true;
+	}
+	
+	Object getData(final int proxy) {
+		return data[proxy];
+	}
+	
+	int getHeight() {
+		return root == NULL ? 0 : height[root];
+	}
+	
+	/**
+	 * Adds data of all proxies which tight box overlaps the circle to
+	 * <code>result</code>. It doesn't allocate anything.
+	 */
+	void queryCircle(final float x, final float y, final float radius, final Collection result) {
+		if (root != NULL) {
+			queryCircle(root, x, y, radius, result);
+		}
+	}
+	
+	/**
+	 * Adds data of all proxies which tight box overlaps the box to
+	 * <code>result</code>.
+	 */
+	void queryBox(final float l, final float b, final float r, final float t, final Collection result) {
+		if (root != NULL) {
+			queryBox(root, l, b, r, t, result);
+		}
+	}
+	
+	private void queryBox(final int node, final float l, final float b, final float r, final float t, final Collection result) {
+		if (left[node] > r || right[node] < l || bottom[node] > t || top[node] < b) {
+			return;
+		}
+		
+		if (child1[node] == NULL) {
+			if (tightLeft[node] <= r && tightRight[node] >= l && tightBottom[node] <= t && tightTop[node] >= b) {
+				result.add(data[node]);
+			}
+			
+			return;
+		}
+		
+		queryBox(child1[node], l, b, r, t, result);
+		queryBox(child2[node], l, b, r, t, result);
+	}
+	
+	/**
+	 * Adds data of all proxies which tight box overlaps the segment
+	 * from <code>(ax, ay)</code> to <code>(bx, by)</code> to
+	 * <code>result</code>.
+	 */
+	void querySegment(final float ax, final float ay, final float bx, final float by, final Collection result) {
+		if (root != NULL) {
+			querySegment(root, ax, ay, bx, by, result);
+		}
+	}
+	
+	private void querySegment(final int node, final float ax, final float ay, final float bx, final float by, final Collection result) {
+		if (!Bounds.intersectsSegment(left[node], bottom[node], right[node], top[node], ax, ay, bx, by)) {
+			return;
+		}
+		
+		if (child1[node] == NULL) {
+			if (Bounds.intersectsSegment(tightLeft[node], tightBottom[node], tightRight[node], tightTop[node], ax, ay, bx, by)) {
+				result.add(data[node]);
+			}
+			
+			return;
+		}
+		
+		querySegment(child1[node], ax, ay, bx, by, result);
+		querySegment(child2[node], ax, ay, bx, by, result);
+	}
+	
+	private void queryCircle(final int node, final float x, final float y, final float radius, final Collection result) {
+		if (!Bounds.intersectsCircle(left[node], bottom[node], right[node], top[node], x, y, radius)) {
+			return;
+		}
+		
+		if (child1[node] == NULL) {
+			if (Bounds.intersectsCircle(tightLeft[node], tightBottom[node], tightRight[node], tightTop[node], x, y, radius)) {
+				result.add(data[node]);
+			}
+			
+			return;
+		}
+		
+		queryCircle(child1[node], x, y, radius, result);
+		queryCircle(child2[node], x, y, radius, result);
+	}
+	
+	private void allocate(final int newCapacity) {
+		left = grow(left, newCapacity);
+		bottom = grow(bottom, newCapacity);
+		right = grow(right, newCapacity);
+		top = grow(top, newCapacity);
+		tightLeft = grow(tightLeft, newCapacity);
+		tightBottom = grow(tightBottom, newCapacity);
+		tightRight = grow(tightRight, newCapacity);
+		tightTop = grow(tightTop, newCapacity);
+		parent = grow(parent, newCapacity);
+		child1 = grow(child1, newCapacity);
+		child2 = grow(child2, newCapacity);
+		height = grow(height, newCapacity);
+		
+		final Object[] newData = new Object[newCapacity];
+		
+		if (data != null) {
+			System.arraycopy(data, 0, newData, 0, capacity);
+		}
+		
+		data = newData;
+		
+		// chain new nodes into free list
+		for (int i = newCapacity - 1; i >= capacity; --i) {
+			parent[i] = free;
+			height[i] = -1;
+			free = i;
+		}
+		
+		capacity = newCapacity;
+	}
+	
+	private int allocateNode() {
+		if (free == NULL) {
+			allocate(capacity * 2);
+		}
+		
+		final int node = free;
+		free = parent[node];
+		
+		parent[node] = NULL;
+		child1[node] = NULL;
+		child2[node] = NULL;
+		height[node] = 0;
+		
+		return node;
+	}
+	
+	private void freeNode(final int node) {
+		parent[node] = free;
+		height[node] = -1;
+		data[node] = null;
+		free = node;
+	}
+	
+	private void insertLeaf(final int leaf) {
+		if (root == NULL) {
+			root = leaf;
+			parent[root] = NULL;
+			return;
+		}
+		
+		// find the best sibling by the cost of enlarged perimeter
+		final float l = left[leaf], b = bottom[leaf], r = right[leaf], t = top[leaf];
+		int index = root;
+		
+		while (child1[index] != NULL) {
+			final int c1 = child1[index];
+			final int c2 = child2[index];
+			
+			final float area = perimeter(index);
+			final float combinedArea = perimeter(
+					Math.min(l, left[index]), Math.min(b, bottom[index]),
+					Math.max(r, right[index]), Math.max(t, top[index]));
+			
+			// cost of creating a new parent for this node and the new leaf
+			final float cost = 2 * combinedArea;
+			// minimum cost of pushing the leaf further down the tree
+			final float inheritanceCost = 2 * (combinedArea - area);
+			
+			final float cost1 = descendCost(c1, l, b, r, t) + inheritanceCost;
+			final float cost2 = descendCost(c2, l, b, r, t) + inheritanceCost;
+			
+			if (cost < cost1 && cost < cost2) {
+				break;
+			}
+			
+			index = cost1 < cost2 ? c1 : c2;
+		}
+		
+		final int sibling = index;
+		
+		// create a new parent
+		final int oldParent = parent[sibling];
+		final int newParent = allocateNode();
+		
+		parent[newParent] = oldParent;
+		data[newParent] = null;
+		setFat(newParent,
+				Math.min(l, left[sibling]), Math.min(b, bottom[sibling]),
+				Math.max(r, right[sibling]), Math.max(t, top[sibling]));
+		height[newParent] = height[sibling] + 1;
+		
+		if (oldParent != NULL) {
+			if (child1[oldParent] == sibling) {
+				child1[oldParent] = newParent;
+			} else {
+				child2[oldParent] = newParent;
+			}
+		} else {
+			root = newParent;
+		}
+		
+		child1[newParent] = sibling;
+		child2[newParent] = leaf;
+		parent[sibling] = newParent;
+		parent[leaf] = newParent;
+		
+		fixUpwards(parent[leaf]);
+	}
+	
+	private void removeLeaf(final int leaf) {
+		if (leaf == root) {
+			root = NULL;
+			return;
+		}
+		
+		final int p = parent[leaf];
+		final int grandParent = parent[p];
+		final int sibling = child1[p] == leaf ? child2[p] : child1[p];
+		
+		if (grandParent != NULL) {
+			// destroy parent and connect sibling to grand parent
+			if (child1[grandParent] == p) {
+				child1[grandParent] = sibling;
+			} else {
+				child2[grandParent] = sibling;
+			}
+			
+			parent[sibling] = grandParent;
+			freeNode(p);
+			
+			fixUpwards(grandParent);
+		} else {
+			root = sibling;
+			parent[sibling] = NULL;
+			freeNode(p);
+		}
+	}
+	
+	/**
+	 * Refits boxes and heights going up from the <code>index</code>
+	 * node, balancing the tree on the way.
+	 */
+	private void fixUpwards(int index) {
+		while (index != NULL) {
+			index = balance(index);
+			
+			final int c1 = child1[index];
+			final int c2 = child2[index];
+			
+			height[index] = 1 + Math.max(height[c1], height[c2]);
+			setFat(index,
+					Math.min(left[c1], left[c2]), Math.min(bottom[c1], bottom[c2]),
+					Math.max(right[c1], right[c2]), Math.max(top[c1], top[c2]));
+			
+			index = parent[index];
+		}
+	}
+	
+	/**
+	 * Performs a left or right rotation if node <code>a</code> is
+	 * imbalanced.
+	 * 
+	 * @return The new root of the rotated subtree.
+	 */
+	private int balance(final int a) {
+		if (child1[a] == NULL || height[a] < 2) {
+			return a;
+		}
+		
+		final int b = child1[a];
+		final int c = child2[a];
+		final int diff = height[c] - height[b];
+		
+		if (diff > 1) {
+			return rotate(a, c, b);
+		}
+		
+		if (diff < -1) {
+			return rotate(a, b, c);
+		}
+		
+		return a;
+	}
+	
+	/**
+	 * Promotes <code>up</code> child of <code>a</code> in place of
+	 * <code>a</code>. The <code>other</code> is the second child of
+	 * <code>a</code>.
+	 */
+	private int rotate(final int a, final int up, final int other) {
+		final int f = child1[up];
+		final int g = child2[up];
+		
+		// swap a and up
+		child1[up] = a;
+		parent[up] = parent[a];
+		parent[a] = up;
+		
+		if (parent[up] != NULL) {
+			if (child1[parent[up]] == a) {
+				child1[parent[up]] = up;
+			} else {
+				child2[parent[up]] = up;
+			}
+		} else {
+			root = up;
+		}
+		
+		// the higher grand child stays with up, the lower goes to a
+		final int keep, give;
+		
+		if (height[f] > height[g]) {
+			keep = f;
+			give = g;
+		} else {
+			keep = g;
+			give = f;
+		}
+		
+		child2[up] = keep;
+		
+		if (child1[a] == up) {
+			child1[a] = give;
+		} else {
+			child2[a] = give;
+		}
+		
+		parent[give] = a;
+		
+		setFat(a,
+				Math.min(left[other], left[give]), Math.min(bottom[other], bottom[give]),
+				Math.max(right[other], right[give]), Math.max(top[other], top[give]));
+		height[a] = 1 + Math.max(height[other], height[give]);
+		
+		setFat(up,
+				Math.min(left[a], left[keep]), Math.min(bottom[a], bottom[keep]),
+				Math.max(right[a], right[keep]), Math.max(top[a], top[keep]));
+		height[up] = 1 + Math.max(height[a], height[keep]);
+		
+		return up;
+	}
+	
+	private float descendCost(final int node, final float l, final float b, final float r, final float t) {
+		final float combined = perimeter(
+				Math.min(l, left[node]), Math.min(b, bottom[node]),
+				Math.max(r, right[node]), Math.max(t, top[node]));
+		
+		if (child1[node] == NULL) {
+			return combined;
+		}
+		
+		return combined - perimeter(node);
+	}
+	
+	private float perimeter(final int node) {
+		return perimeter(left[node], bottom[node], right[node], top[node]);
+	}
+	
+	private static float perimeter(final float l, final float b, final float r, final float t) {
+		return 2 * ((r - l) + (t - b));
+	}
+	
+	private void setFat(final int node, final float l, final float b, final float r, final float t) {
+		left[node] = l;
+		bottom[node] = b;
+		right[node] = r;
+		top[node] = t;
+	}
+	
+	private void setTight(final int node, final float l, final float b, final float r, final float t) {
+		tightLeft[node] = l;
+		tightBottom[node] = b;
+		tightRight[node] = r;
+		tightTop[node] = t;
+	}
+	
+	private static float[] grow(final float[] array, final int size) {
+		final float[] result = new float[size];
+		
+		if (array != null) {
+			System.arraycopy(array, 0, result, 0, array.length);
+		}
+		
+		return result;
+	}
+	
+	private static int[] grow(final int[] array, final int size) {
+		final int[] result = new int[size];
+		
+		if (array != null) {
+			System.arraycopy(array, 0, result, 0, array.length);
+		}
+		
+		return result;
+	}
+}
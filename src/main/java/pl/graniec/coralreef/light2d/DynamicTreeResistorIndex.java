@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import pl.graniec.coralreef.geometry.Box2;
+
+/**
+ * Resistor index build on dynamic bounding volume hierarchy. Adding,
+ * removing and updating a resistor costs <code>O(log n)</code> so it's
+ * the right choice for scenes where resistors moves every frame.
+ * <p>
+ * Each resistor is kept in a box enlarged by the margin. As long as
+ * updated resistor stays in its enlarged box the tree is not changed
+ * at all.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class DynamicTreeResistorIndex implements ResistorIndex {
+	
+	/** Default enlargement of resistor boxes */
+	public static final float DEFAULT_MARGIN = 4f;
+	
+	private final DynamicTree tree;
+	/** Tree proxy of every indexed resistor, null if it has no verticles */
+	private final Map/*<LightResistor, Integer>*/ proxies = new IdentityHashMap();
+	
+	public DynamicTreeResistorIndex() {
+		this(DEFAULT_MARGIN);
+	}
+	
+	/**
+	 * @param margin The enlargement of resistor boxes. Bigger margin
+	 * means less tree changes when resistor moves but more false
+	 * candidates in queries.
+	 */
+	public DynamicTreeResistorIndex(final float margin) {
+		if (margin < 0) {
+			throw new IllegalArgumentException("margin cannot be negative");
+		}
+		
+		tree = new DynamicTree(margin);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#add(pl.graniec.coralreef.light2d.LightResistor)
+	 */
+	public void add(final LightResistor resistor) {
+		if (proxies.containsKey(resistor)) {
+			return;
+		}
+		
+		proxies.put(resistor, createProxy(resistor));
+	}
+	
+	/**
+	 * @return Proxy of the resistor bounding box or <code>null</code>
+	 * if it has no verticles.
+	 */
+	private Integer createProxy(final LightResistor resistor) {
+		final Box2 bbox = resistor.getBoundingBox();
+		
+		if (bbox == null) {
+			return null;
+		}
+		
+		return new Integer(tree.createProxy(bbox.left, bbox.bottom, bbox.right, bbox.top, resistor));
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#remove(pl.graniec.coralreef.light2d.LightResistor)
+	 */
+	public void remove(final LightResistor resistor) {
+		final Integer proxy = (Integer) proxies.remove(resistor);
+		
+		if (proxy != null) {
+			tree.destroyProxy(proxy.intValue());
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#update(pl.graniec.coralreef.light2d.LightResistor)
+	 */
+	public void update(final LightResistor resistor) {
+		if (!proxies.containsKey(resistor)) {
+			// never added or already removed
+			return;
+		}
+		
+		final Integer proxy = (Integer) proxies.get(resistor);
+		final Box2 bbox = resistor.getBoundingBox();
+		
+		if (proxy == null) {
+			proxies.put(resistor, createProxy(resistor));
+		} else if (bbox == null) {
+			tree.destroyProxy(proxy.intValue());
+			proxies.put(resistor, null);
+		} else {
+			tree.moveProxy(proxy.intValue(), bbox.left, bbox.bottom, bbox.right, bbox.top);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#query(float, float, float, java.util.Collection)
+	 */
+	public void query(final float x, final float y, final float radius, final Collection result) {
+		tree.queryCircle(x, y, radius, result);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#querySegment(float, float, float, float, java.util.Collection)
+	 */
+	public void querySegment(final float ax, final float ay, final float bx, final float by, final Collection result) {
+		tree.querySegment(ax, ay, bx, by, result);
+	}
+}
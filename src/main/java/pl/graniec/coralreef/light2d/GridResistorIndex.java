@@ -0,0 +1,395 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import pl.graniec.coralreef.geometry.Box2;
+
+/**
+ * Resistor index that divides the world into uniform square cells.
+ * Every resistor is registered in all cells that its bounding box
+ * covers, so the query costs depends only on the number of resistors
+ * near the queried circle, not on the size of the world.
+ * <p>
+ * The cells are created on demand so the world doesn't have to be
+ * bounded. Resistors that would cover more than
+ * {@link #MAX_CELLS_PER_RESISTOR} cells are kept on a separate list
+ * that is checked on every query.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class GridResistorIndex implements ResistorIndex {
+
+	/** Resistors covering more cells than this are not put into cells */
+	public static final int MAX_CELLS_PER_RESISTOR = 64;
+	
+	/** Resistor with its bounds stored as cell coordinates */
+	static final class Entry {
+		final LightResistor resistor;
+		final float left, bottom, right, top;
+		final int minX, minY, maxX, maxY;
+		
+		Entry(final LightResistor resistor, final Box2 bbox, final int minX, final int minY, final int maxX, final int maxY) {
+			this.resistor = resistor;
+			this.left = bbox.left;
+			this.bottom = bbox.bottom;
+			this.right = bbox.right;
+			this.top = bbox.top;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+	}
+	
+	/** Single grid cell, cells with the same hash are chained */
+	static final class Cell {
+		final int x, y;
+		Cell next;
+		Entry[] entries = new Entry[4];
+		int size;
+		
+		Cell(final int x, final int y) {
+			this.x = x;
+			this.y = y;
+		}
+		
+		void remove(final Entry entry) {
+			for (int i = 0; i < size; ++i) {
+				if (entries[i] == entry) {
+					entries[i] = entries[--size];
+					entries[size] = null;
+					return;
+				}
+			}
+		}
+		
+		void add(final Entry entry) {
+			if (size == entries.length) {
+				final Entry[] grown = new Entry[size * 2];
+				System.arraycopy(entries, 0, grown, 0, size);
+				entries = grown;
+			}
+			
+			entries[size++] = entry;
+		}
+	}
+	
+	/** Size of the cell side */
+	private final float cellSize;
+	/** Cells hash table */
+	private Cell[] cells = new Cell[64];
+	/** Number of cells in hash table */
+	private int cellCount;
+	/** Resistors too big to be put into cells */
+	private Entry[] oversized = new Entry[0];
+	/** Entry of every indexed resistor, null if it has no verticles */
+	private final Map/*<LightResistor, Entry>*/ entries = new IdentityHashMap();
+	
+	/**
+	 * Creates new grid index.
+	 * 
+	 * @param cellSize The cell side length. Good value is about
+	 * the size of typical resistor.
+	 */
+	public GridResistorIndex(final float cellSize) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("cell size must be positive");
+		}
+		
+		this.cellSize = cellSize;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#add(pl.graniec.coralreef.light2d.LightResistor)
+	 */
+	public void add(final LightResistor resistor) {
+		final Box2 bbox = resistor.getBoundingBox();
+		
+		if (entries.containsKey(resistor)) {
+			return;
+		}
+		
+		if (bbox == null) {
+			// no verticles, nothing to put into cells until it's updated
+			entries.put(resistor, null);
+			return;
+		}
+		
+		final int minX = toCell(bbox.left);
+		final int minY = toCell(bbox.bottom);
+		final int maxX = toCell(bbox.right);
+		final int maxY = toCell(bbox.top);
+		
+		final Entry entry = new Entry(resistor, bbox, minX, minY, maxX, maxY);
+		entries.put(resistor, entry);
+		
+		if (isOversized(entry)) {
+			final Entry[] grown = new Entry[oversized.length + 1];
+			System.arraycopy(oversized, 0, grown, 0, oversized.length);
+			grown[oversized.length] = entry;
+			oversized = grown;
+			return;
+		}
+		
+		for (int y = minY; y <= maxY; ++y) {
+			for (int x = minX; x <= maxX; ++x) {
+				getOrCreateCell(x, y).add(entry);
+			}
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#remove(pl.graniec.coralreef.light2d.LightResistor)
+	 */
+	public void remove(final LightResistor resistor) {
+		final Entry entry = (Entry) entries.remove(resistor);
+		
+		if (entry == null) {
+			return;
+		}
+		
+		if (isOversized(entry)) {
+			for (int i = 0; i < oversized.length; ++i) {
+				if (oversized[i] == entry) {
+					final Entry[] shrunk = new Entry[oversized.length - 1];
+					System.arraycopy(oversized, 0, shrunk, 0, i);
+					System.arraycopy(oversized, i + 1, shrunk, i, shrunk.length - i);
+					oversized = shrunk;
+					break;
+				}
+			}
+			
+			return;
+		}
+		
+		for (int y = entry.minY; y <= entry.maxY; ++y) {
+			for (int x = entry.minX; x <= entry.maxX; ++x) {
+				final Cell cell = getCell(x, y);
+				
+				if (cell != null) {
+					cell.remove(entry);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#update(pl.graniec.coralreef.light2d.LightResistor)
+	 */
+	public void update(final LightResistor resistor) {
+		if (!entries.containsKey(resistor)) {
+			// never added or already removed
+			return;
+		}
+		
+		remove(resistor);
+		add(resistor);
+	}
+	
+	/**
+	 * @return The cell side length.
+	 */
+	public float getCellSize() {
+		return cellSize;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#query(float, float, float, java.util.Collection)
+	 */
+	public void query(final float x, final float y, final float radius, final Collection result) {
+		final int minX = toCell(x - radius);
+		final int minY = toCell(y - radius);
+		final int maxX = toCell(x + radius);
+		final int maxY = toCell(y + radius);
+		
+		for (int cy = minY; cy <= maxY; ++cy) {
+			for (int cx = minX; cx <= maxX; ++cx) {
+				final Cell cell = getCell(cx, cy);
+				
+				if (cell == null) {
+					continue;
+				}
+				
+				for (int i = 0; i < cell.size; ++i) {
+					final Entry e = cell.entries[i];
+					
+					// resistor covering many cells is reported only
+					// from the first cell that the query visits
+					if (cx != Math.max(e.minX, minX) || cy != Math.max(e.minY, minY)) {
+						continue;
+					}
+					
+					if (Bounds.intersectsCircle(e.left, e.bottom, e.right, e.top, x, y, radius)) {
+						result.add(e.resistor);
+					}
+				}
+			}
+		}
+		
+		for (int i = 0; i < oversized.length; ++i) {
+			final Entry e = oversized[i];
+			
+			if (Bounds.intersectsCircle(e.left, e.bottom, e.right, e.top, x, y, radius)) {
+				result.add(e.resistor);
+			}
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.ResistorIndex#querySegment(float, float, float, float, java.util.Collection)
+	 */
+	public void querySegment(final float ax, final float ay, final float bx, final float by, final Collection result) {
+		final float dx = bx - ax;
+		final float dy = by - ay;
+		
+		int cx = toCell(ax), cy = toCell(ay);
+		final int endX = toCell(bx), endY = toCell(by);
+		final int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1;
+		
+		// segment parameter of the next cell border crossed in each axis
+		float nextX = dx != 0 ? ((cx + (stepX > 0 ? 1 : 0)) * cellSize - ax) / dx : Float.POSITIVE_INFINITY;
+		float nextY = dy != 0 ? ((cy + (stepY > 0 ? 1 : 0)) * cellSize - ay) / dy : Float.POSITIVE_INFINITY;
+		final float deltaX = dx != 0 ? cellSize / Math.abs(dx) : Float.POSITIVE_INFINITY;
+		final float deltaY = dy != 0 ? cellSize / Math.abs(dy) : Float.POSITIVE_INFINITY;
+		
+		// the walk visits exactly one cell per crossed border
+		int steps = Math.abs(endX - cx) + Math.abs(endY - cy);
+		// previously visited cell, none at start
+		int px = Integer.MIN_VALUE, py = Integer.MIN_VALUE;
+		
+		while (true) {
+			final Cell cell = getCell(cx, cy);
+			
+			if (cell != null) {
+				for (int i = 0; i < cell.size; ++i) {
+					final Entry e = cell.entries[i];
+					
+					// line enters cell range of the entry once, so it is
+					// reported only in the first of its cells on the walk
+					if (px >= e.minX && px <= e.maxX && py >= e.minY && py <= e.maxY) {
+						continue;
+					}
+					
+					if (Bounds.intersectsSegment(e.left, e.bottom, e.right, e.top, ax, ay, bx, by)) {
+						result.add(e.resistor);
+					}
+				}
+			}
+			
+			if (steps-- == 0) {
+				break;
+			}
+			
+			px = cx;
+			py = cy;
+			
+			if (cy == endY || (cx != endX && nextX < nextY)) {
+				cx += stepX;
+				nextX += deltaX;
+			} else {
+				cy += stepY;
+				nextY += deltaY;
+			}
+		}
+		
+		for (int i = 0; i < oversized.length; ++i) {
+			final Entry e = oversized[i];
+			
+			if (Bounds.intersectsSegment(e.left, e.bottom, e.right, e.top, ax, ay, bx, by)) {
+				result.add(e.resistor);
+			}
+		}
+	}
+	
+	private Cell getCell(final int x, final int y) {
+		for (Cell cell = cells[hash(x, y) & (cells.length - 1)]; cell != null; cell = cell.next) {
+			if (cell.x == x && cell.y == y) {
+				return cell;
+			}
+		}
+		
+		return null;
+	}
+	
+	private Cell getOrCreateCell(final int x, final int y) {
+		Cell cell = getCell(x, y);
+		
+		if (cell == null) {
+			if (cellCount >= cells.length * 3 / 4) {
+				rehash();
+			}
+			
+			final int bucket = hash(x, y) & (cells.length - 1);
+			
+			cell = new Cell(x, y);
+			cell.next = cells[bucket];
+			cells[bucket] = cell;
+			++cellCount;
+		}
+		
+		return cell;
+	}
+	
+	private static boolean isOversized(final Entry entry) {
+		return (long) (entry.maxX - entry.minX + 1) * (entry.maxY - entry.minY + 1) > MAX_CELLS_PER_RESISTOR;
+	}
+	
+	private static int hash(final int x, final int y) {
+		final int h = x * 73856093 ^ y * 19349663;
+		return h ^ (h >>> 16);
+	}
+	
+	private void rehash() {
+		final Cell[] old = cells;
+		cells = new Cell[old.length * 2];
+		
+		for (int i = 0; i < old.length; ++i) {
+			Cell cell = old[i];
+			
+			while (cell != null) {
+				final Cell next = cell.next;
+				final int bucket = hash(cell.x, cell.y) & (cells.length - 1);
+				
+				cell.next = cells[bucket];
+				cells[bucket] = cell;
+				
+				cell = next;
+			}
+		}
+	}
+	
+	private int toCell(final float coord) {
+		return (int) Math.floor(coord / cellSize);
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * Cache of computed light geometries. Geometry is kept for the light
+ * parameters it was computed for and dropped only when the scene
+ * changes in its light range. When cache is full the least recently
+ * used geometry is dropped.
+ * <p>
+ * All methods are synchronized, so cache can be used by batch
+ * computation threads.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class LightCache {
+
+	/** Light parameters that the geometry was computed for */
+	static final class Key {
+		final float x, y, intensity;
+		/** Cone of spot light, half angle of 180 for other lights */
+		final float direction, halfAngle;
+		final int partsNum;
+		
+		Key(final LightSource source, final int partsNum) {
+			this.x = source.x;
+			this.y = source.y;
+			this.intensity = source.intensity;
+			this.partsNum = partsNum;
+			
+			if (source instanceof SpotLightSource && ((SpotLightSource) source).halfAngle < 180) {
+				this.direction = ((SpotLightSource) source).direction;
+				this.halfAngle = ((SpotLightSource) source).halfAngle;
+			} else {
+				this.direction = 0;
+				this.halfAngle = 180;
+			}
+		}
+
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			final Key other = (Key) obj;
+			return Float.floatToIntBits(x) == Float.floatToIntBits(other.x)
+					&& Float.floatToIntBits(y) == Float.floatToIntBits(other.y)
+					&& Float.floatToIntBits(intensity) == Float.floatToIntBits(other.intensity)
+					&& Float.floatToIntBits(direction) == Float.floatToIntBits(other.direction)
+					&& Float.floatToIntBits(halfAngle) == Float.floatToIntBits(other.halfAngle)
+					&& partsNum == other.partsNum;
+		}
+
+		public int hashCode() {
+			final int prime = 31;
+			int result = Float.floatToIntBits(x);
+			result = prime * result + Float.floatToIntBits(y);
+			result = prime * result + Float.floatToIntBits(intensity);
+			result = prime * result + Float.floatToIntBits(direction);
+			result = prime * result + Float.floatToIntBits(halfAngle);
+			result = prime * result + partsNum;
+			return result;
+		}
+	}
+	
+	private final int maxSize;
+	
+	/** Geometry verticles as x, y pairs for each key in access order */
+	private final Map/*<Key, float[]>*/ entries;
+	
+	LightCache(final int maxSize) {
+		this.maxSize = maxSize;
+		
+		entries = new LinkedHashMap(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > LightCache.this.maxSize;
+			}
+		};
+	}
+	
+	int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * @return Cached geometry or <code>null</code> if there is none.
+	 */
+	synchronized Geometry get(final Key key) {
+		final float[] verticles = (float[]) entries.get(key);
+		
+		if (verticles == null) {
+			return null;
+		}
+		
+		final Geometry geometry = new Geometry();
+		
+		for (int i = 0; i < verticles.length; i += 2) {
+			geometry.addVerticle(new Point2(verticles[i], verticles[i + 1]));
+		}
+		
+		return geometry;
+	}
+	
+	/**
+	 * Copies cached verticles as x, y pairs to <code>out</code> starting
+	 * at <code>offset</code>. Only verticles that fit are copied.
+	 * 
+	 * @return Number of cached verticles or <code>-1</code> if there is
+	 * none.
+	 */
+	synchronized int get(final Key key, final float[] out, final int offset) {
+		final float[] verticles = (float[]) entries.get(key);
+		
+		if (verticles == null) {
+			return -1;
+		}
+		
+		System.arraycopy(verticles, 0, out, offset, Math.min(verticles.length, (out.length - offset) & ~1));
+		
+		return verticles.length / 2;
+	}
+	
+	synchronized void put(final Key key, final Geometry geometry) {
+		final Point2[] points = geometry.getVerticles();
+		final float[] verticles = new float[points.length * 2];
+		
+		for (int i = 0; i < points.length; ++i) {
+			verticles[2 * i] = points[i].x;
+			verticles[2 * i + 1] = points[i].y;
+		}
+		
+		entries.put(key, verticles);
+	}
+	
+	/**
+	 * Puts <code>count</code> verticles stored as x, y pairs in
+	 * <code>verticles</code> from <code>offset</code>.
+	 */
+	synchronized void put(final Key key, final float[] verticles, final int offset, final int count) {
+		final float[] copy = new float[count * 2];
+		System.arraycopy(verticles, offset, copy, 0, copy.length);
+		
+		entries.put(key, copy);
+	}
+	
+	/**
+	 * Drops geometries of lights that reach the box.
+	 */
+	synchronized void invalidate(final float left, final float bottom, final float right, final float top) {
+		for (final Iterator itor = entries.keySet().iterator(); itor.hasNext();) {
+			final Key key = (Key) itor.next();
+			
+			if (Bounds.intersectsCircle(left, bottom, right, top, key.x, key.y, key.intensity)) {
+				itor.remove();
+			}
+		}
+	}
+	
+	synchronized void clear() {
+		entries.clear();
+	}
+}
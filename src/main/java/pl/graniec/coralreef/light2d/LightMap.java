@@ -0,0 +1,533 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Collection;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Accumulates light of many light sources into an intensity grid.
+ * <p>
+ * Light geometries are computed by the lighting algorithm and filled
+ * with scanlines into caller-owned <code>float</code> or
+ * <code>int</code> grid. Every cell receives light of brightness
+ * <code>1</code> at the light source falling linearly to
+ * <code>0</code> at the distance of {@link LightSource#intensity}.
+ * Grid is split into square tiles that are filled in parallel. Each
+ * tile is filled by exactly one thread, so lights are added without
+ * any locks.
+ * <p>
+ * Grid is stored row by row, cell <code>(column, row)</code> is at
+ * <code>row * width + column</code> and its center is at
+ * <code>originX + (column + 0.5) * cellSize</code>,
+ * <code>originY + (row + 0.5) * cellSize</code>.
+ * <p>
+ * Light map keeps its working data between renders, so one instance
+ * must not render from many threads at once.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LightMap {
+	
+	/** Value of full brightness in <code>int</code> grids */
+	public static final int INT_SCALE = 255;
+	
+	/** Number of lights below which polygon task is not split any more */
+	private static final int POLYGON_GRANULARITY = 2;
+	
+	/**
+	 * Part of lights computing their geometries. It computes its lights
+	 * or splits itself in halves.
+	 */
+	private final class PolygonTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final LightSource[] sources;
+		private final int from, to;
+		
+		PolygonTask(final LightSource[] sources, final int from, final int to) {
+			this.sources = sources;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected void compute() {
+			if (to - from <= POLYGON_GRANULARITY) {
+				computePolygons(sources, from, to);
+				return;
+			}
+			
+			final int middle = (from + to) >>> 1;
+			
+			invokeAll(
+					new PolygonTask(sources, from, middle),
+					new PolygonTask(sources, middle, to));
+		}
+	}
+	
+	/**
+	 * Range of tiles. It fills its tiles or splits itself in halves.
+	 */
+	private final class TileTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final LightSource[] sources;
+		private final float[] floats;
+		private final int[] ints;
+		private final int from, to;
+		
+		TileTask(final LightSource[] sources, final float[] floats, final int[] ints, final int from, final int to) {
+			this.sources = sources;
+			this.floats = floats;
+			this.ints = ints;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected void compute() {
+			if (to - from <= 1) {
+				fillTiles(sources, floats, ints, from, to);
+				return;
+			}
+			
+			final int middle = (from + to) >>> 1;
+			
+			invokeAll(
+					new TileTask(sources, floats, ints, from, middle),
+					new TileTask(sources, floats, ints, middle, to));
+		}
+	}
+	
+	/** Algorithm computing light geometries */
+	private final AbstractLightingAlgorithm algorithm;
+	/** Size of the grid in cells */
+	private final int width, height;
+	/** World position of the grid corner */
+	private float originX, originY;
+	/** Size of one cell in world units */
+	private float cellSize = 1;
+	/** Size of one tile in cells */
+	private int tileSize = 64;
+	
+	/** Light geometries of the last render as x, y pairs */
+	private float[][] polygons = new float[0][];
+	/** Number of verticles of each light geometry */
+	private int[] polygonSizes = new int[0];
+	/** Rows and columns covered by each light as first and last row, first and last column */
+	private int[] covered = new int[0];
+	/** Lights of each tile as indexes in tileLights */
+	private int[] tileStarts = new int[0];
+	/** Concatenated lights of all tiles */
+	private int[] tileLights = new int[0];
+	
+	/**
+	 * Creates light map of <code>width</code> and <code>height</code>
+	 * cells.
+	 * 
+	 * @param algorithm Algorithm computing light geometries.
+	 * @param width Number of columns.
+	 * @param height Number of rows.
+	 */
+	public LightMap(AbstractLightingAlgorithm algorithm, int width, int height) {
+		if (width < 0 || height < 0) {
+			throw new IllegalArgumentException("size cannot be negative");
+		}
+		
+		this.algorithm = algorithm;
+		this.width = width;
+		this.height = height;
+	}
+	
+	/**
+	 * Adds light of all <code>sources</code> to <code>grid</code>.
+	 * Lights are computed in parallel as described in
+	 * {@link AbstractLightingAlgorithm#createRays(Collection)}, so the
+	 * scene must not be changed until this method returns.
+	 * 
+	 * @param sources Collection of {@link LightSource}s.
+	 * @param grid Grid of at least <code>width * height</code> cells.
+	 */
+	public void render(Collection/*<LightSource>*/ sources, float[] grid) {
+		checkGrid(grid.length);
+		render(sources, grid, null);
+	}
+	
+	/**
+	 * The same as {@link #render(Collection, float[])} but adds light
+	 * multiplied by {@link #INT_SCALE} and rounded.
+	 */
+	public void render(Collection/*<LightSource>*/ sources, int[] grid) {
+		checkGrid(grid.length);
+		render(sources, null, grid);
+	}
+	
+	private void checkGrid(final int length) {
+		if (length < width * height) {
+			throw new IllegalArgumentException("grid smaller than " + width + "x" + height);
+		}
+	}
+	
+	private void render(final Collection sources, final float[] floats, final int[] ints) {
+		final LightSource[] array = (LightSource[]) sources.toArray(new LightSource[sources.size()]);
+		final boolean parallel = algorithm.getParallelism() > 1;
+		
+		prepare(array.length);
+		
+		if (parallel && array.length > POLYGON_GRANULARITY) {
+			algorithm.getPool().invoke(new PolygonTask(array, 0, array.length));
+		} else {
+			computePolygons(array, 0, array.length);
+		}
+		
+		final int tiles = binLights(array);
+		
+		if (parallel && tiles > 1) {
+			algorithm.getPool().invoke(new TileTask(array, floats, ints, 0, tiles));
+		} else {
+			fillTiles(array, floats, ints, 0, tiles);
+		}
+	}
+	
+	/**
+	 * Makes room for working data of <code>count</code> lights.
+	 */
+	private void prepare(final int count) {
+		if (polygons.length < count) {
+			final float[][] newPolygons = new float[count][];
+			System.arraycopy(polygons, 0, newPolygons, 0, polygons.length);
+			
+			for (int i = polygons.length; i < count; ++i) {
+				newPolygons[i] = new float[algorithm.getPartsNum() * 2 + 8];
+			}
+			
+			polygons = newPolygons;
+			polygonSizes = new int[count];
+			covered = new int[count * 4];
+		}
+	}
+	
+	private void computePolygons(final LightSource[] sources, final int from, final int to) {
+		final LightingContext context = LightingContext.current();
+		
+		for (int i = from; i < to; ++i) {
+			int count = algorithm.createRays(sources[i], context, polygons[i], 0);
+			
+			if (count * 2 > polygons[i].length) {
+				polygons[i] = new float[count * 4];
+				count = algorithm.createRays(sources[i], context, polygons[i], 0);
+			}
+			
+			polygonSizes[i] = count;
+		}
+	}
+	
+	/**
+	 * Finds cells covered by every light and assigns lights to tiles
+	 * they overlap.
+	 * 
+	 * @return Number of tiles.
+	 */
+	private int binLights(final LightSource[] sources) {
+		final int tilesX = (width + tileSize - 1) / tileSize;
+		final int tilesY = (height + tileSize - 1) / tileSize;
+		final int tiles = tilesX * tilesY;
+		
+		if (tileStarts.length < tiles + 1) {
+			tileStarts = new int[tiles + 1];
+		} else {
+			for (int i = 0; i <= tiles; ++i) {
+				tileStarts[i] = 0;
+			}
+		}
+		
+		// count lights of each tile
+		for (int i = 0; i < sources.length; ++i) {
+			if (!cover(sources[i], i)) {
+				continue;
+			}
+			
+			for (int ty = covered[i * 4] / tileSize; ty <= covered[i * 4 + 1] / tileSize; ++ty) {
+				for (int tx = covered[i * 4 + 2] / tileSize; tx <= covered[i * 4 + 3] / tileSize; ++tx) {
+					++tileStarts[ty * tilesX + tx + 1];
+				}
+			}
+		}
+		
+		for (int i = 0; i < tiles; ++i) {
+			tileStarts[i + 1] += tileStarts[i];
+		}
+		
+		if (tileLights.length < tileStarts[tiles]) {
+			tileLights = new int[tileStarts[tiles]];
+		}
+		
+		// fill tiles moving their starts, then move starts back
+		for (int i = 0; i < sources.length; ++i) {
+			if (covered[i * 4] > covered[i * 4 + 1]) {
+				continue;
+			}
+			
+			for (int ty = covered[i * 4] / tileSize; ty <= covered[i * 4 + 1] / tileSize; ++ty) {
+				for (int tx = covered[i * 4 + 2] / tileSize; tx <= covered[i * 4 + 3] / tileSize; ++tx) {
+					tileLights[tileStarts[ty * tilesX + tx]++] = i;
+				}
+			}
+		}
+		
+		for (int i = tiles; i > 0; --i) {
+			tileStarts[i] = tileStarts[i - 1];
+		}
+		
+		tileStarts[0] = 0;
+		
+		return tiles;
+	}
+	
+	/**
+	 * Stores the rows and columns whose centers are inside of the
+	 * bounding box of light <code>index</code>.
+	 * 
+	 * @return <code>false</code> if light covers no cell.
+	 */
+	private boolean cover(final LightSource source, final int index) {
+		final float[] polygon = polygons[index];
+		final int size = polygonSizes[index];
+		
+		covered[index * 4] = 0;
+		covered[index * 4 + 1] = -1;
+		
+		if (size < 3 || source.intensity <= 0) {
+			return false;
+		}
+		
+		float left = polygon[0], right = left;
+		float bottom = polygon[1], top = bottom;
+		
+		for (int i = 1; i < size; ++i) {
+			left = Math.min(left, polygon[i * 2]);
+			right = Math.max(right, polygon[i * 2]);
+			bottom = Math.min(bottom, polygon[i * 2 + 1]);
+			top = Math.max(top, polygon[i * 2 + 1]);
+		}
+		
+		final int firstRow = Math.max(0, (int) Math.ceil((bottom - originY) / cellSize - 0.5f));
+		final int lastRow = Math.min(height - 1, (int) Math.floor((top - originY) / cellSize - 0.5f));
+		final int firstColumn = Math.max(0, (int) Math.ceil((left - originX) / cellSize - 0.5f));
+		final int lastColumn = Math.min(width - 1, (int) Math.floor((right - originX) / cellSize - 0.5f));
+		
+		if (firstRow > lastRow || firstColumn > lastColumn) {
+			return false;
+		}
+		
+		covered[index * 4] = firstRow;
+		covered[index * 4 + 1] = lastRow;
+		covered[index * 4 + 2] = firstColumn;
+		covered[index * 4 + 3] = lastColumn;
+		
+		return true;
+	}
+	
+	private void fillTiles(final LightSource[] sources, final float[] floats, final int[] ints, final int from, final int to) {
+		final int tilesX = (width + tileSize - 1) / tileSize;
+		final LightingContext context = LightingContext.current();
+		
+		for (int tile = from; tile < to; ++tile) {
+			final int tileRow = (tile / tilesX) * tileSize;
+			final int tileColumn = (tile % tilesX) * tileSize;
+			
+			for (int i = tileStarts[tile]; i < tileStarts[tile + 1]; ++i) {
+				final int light = tileLights[i];
+				
+				fill(sources[light], light, floats, ints, context.ensureCrossings(polygonSizes[light]),
+						Math.max(tileRow, covered[light * 4]),
+						Math.min(tileRow + tileSize - 1, covered[light * 4 + 1]),
+						Math.max(tileColumn, covered[light * 4 + 2]),
+						Math.min(tileColumn + tileSize - 1, covered[light * 4 + 3]));
+			}
+		}
+	}
+	
+	/**
+	 * Fills light geometry in the given rows and columns. Cell is lit
+	 * when its center is inside of the geometry.
+	 */
+	private void fill(
+			final LightSource source, final int light, final float[] floats, final int[] ints, final float[] crossings,
+			final int firstRow, final int lastRow, final int firstColumn, final int lastColumn) {
+		
+		final float[] polygon = polygons[light];
+		final int size = polygonSizes[light];
+		final float falloff = 1 / source.intensity;
+		
+		for (int row = firstRow; row <= lastRow; ++row) {
+			final float y = originY + (row + 0.5f) * cellSize;
+			final float dy = y - source.y;
+			
+			// find edges crossing the scanline
+			int count = 0;
+			float x1 = polygon[size * 2 - 2], y1 = polygon[size * 2 - 1];
+			
+			for (int i = 0; i < size; ++i) {
+				final float x2 = polygon[i * 2], y2 = polygon[i * 2 + 1];
+				
+				if ((y1 <= y) != (y2 <= y)) {
+					final float x = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+					
+					// insertion sort, there are usually just few crossings
+					int j = count++;
+					
+					while (j > 0 && crossings[j - 1] > x) {
+						crossings[j] = crossings[j - 1];
+						--j;
+					}
+					
+					crossings[j] = x;
+				}
+				
+				x1 = x2;
+				y1 = y2;
+			}
+			
+			for (int i = 0; i + 1 < count; i += 2) {
+				final int from = Math.max(firstColumn, (int) Math.ceil((crossings[i] - originX) / cellSize - 0.5f));
+				final int to = Math.min(lastColumn + 1, (int) Math.ceil((crossings[i + 1] - originX) / cellSize - 0.5f));
+				
+				for (int column = from; column < to; ++column) {
+					final float dx = originX + (column + 0.5f) * cellSize - source.x;
+					final float value = 1 - (float) Math.sqrt(dx * dx + dy * dy) * falloff;
+					
+					if (value <= 0) {
+						continue;
+					}
+					
+					if (floats != null) {
+						floats[row * width + column] += value;
+					} else {
+						ints[row * width + column] += (int) (value * INT_SCALE + 0.5f);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * See {@link #setCellSize(float)}
+	 * 
+	 * @return Size of one cell in world units.
+	 */
+	public float getCellSize() {
+		return cellSize;
+	}
+	
+	/**
+	 * @return Number of rows.
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * See {@link #setOrigin(float, float)}
+	 * 
+	 * @return World x position of the grid corner.
+	 */
+	public float getOriginX() {
+		return originX;
+	}
+	
+	/**
+	 * See {@link #setOrigin(float, float)}
+	 * 
+	 * @return World y position of the grid corner.
+	 */
+	public float getOriginY() {
+		return originY;
+	}
+	
+	/**
+	 * See {@link #setTileSize(int)}
+	 * 
+	 * @return Size of one tile in cells.
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	/**
+	 * @return Number of columns.
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * Sets the size of one cell in world units.
+	 * <p>
+	 * By default cell size is set to <code>1</code>.
+	 * 
+	 * @param cellSize The cell size.
+	 */
+	public void setCellSize(float cellSize) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("cell size must be positive");
+		}
+		
+		this.cellSize = cellSize;
+	}
+	
+	/**
+	 * Sets the world position of the bottom left corner of the grid.
+	 * <p>
+	 * By default origin is set to <code>(0, 0)</code>.
+	 */
+	public void setOrigin(float x, float y) {
+		this.originX = x;
+		this.originY = y;
+	}
+	
+	/**
+	 * Sets the size of square tiles filled in parallel. Smaller tiles
+	 * spread the work better but lights covering many tiles are
+	 * scanned more times.
+	 * <p>
+	 * By default tile size is set to <code>64</code>.
+	 * 
+	 * @param tileSize The tile size in cells.
+	 */
+	public void setTileSize(int tileSize) {
+		if (tileSize < 1) {
+			throw new IllegalArgumentException("tile size must be at least 1");
+		}
+		
+		this.tileSize = tileSize;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Light sources added to the lighting algorithm. Lights are kept in
+ * dynamic tree by their range box, so lights reaching a point or
+ * overlapping changed part of the scene are found quickly. Registry
+ * also remembers which lights have out of date geometry.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class LightRegistry {
+
+	/** Light sources by their range box */
+	private final DynamicTree lights = new DynamicTree(DynamicTreeResistorIndex.DEFAULT_MARGIN);
+	/** Tree proxy of every added light */
+	private final Map/*<LightSource, Integer>*/ proxies = new IdentityHashMap();
+	/** Added lights which geometry is out of date */
+	private final Map/*<LightSource, Boolean>*/ dirtyLights = new IdentityHashMap();
+	/** Lights found by the last {@link #markDirty(float, float, float, float)} */
+	private final List/*<LightSource>*/ changedLights = new ArrayList();
+	
+	/**
+	 * Adds the light and marks it as dirty. Adding it again does nothing.
+	 */
+	void add(final LightSource source) {
+		if (!proxies.containsKey(source)) {
+			final float r = source.intensity;
+			final int proxy = lights.createProxy(source.x - r, source.y - r, source.x + r, source.y + r, source);
+			
+			proxies.put(source, new Integer(proxy));
+			dirtyLights.put(source, Boolean.TRUE);
+		}
+	}
+	
+	void remove(final LightSource source) {
+		final Integer proxy = (Integer) proxies.remove(source);
+		
+		if (proxy != null) {
+			lights.destroyProxy(proxy.intValue());
+			dirtyLights.remove(source);
+		}
+	}
+	
+	/**
+	 * Moves the light to its current range and marks it as dirty. Lights
+	 * that are not added are ignored.
+	 */
+	void update(final LightSource source) {
+		final Integer proxy = (Integer) proxies.get(source);
+		
+		if (proxy == null) {
+			return;
+		}
+		
+		final float r = source.intensity;
+		lights.moveProxy(proxy.intValue(), source.x - r, source.y - r, source.x + r, source.y + r);
+		dirtyLights.put(source, Boolean.TRUE);
+	}
+	
+	/**
+	 * Moves dirty lights to <code>result</code>.
+	 * 
+	 * @return Number of dirty lights.
+	 */
+	int pollDirty(final Collection/*<LightSource>*/ result) {
+		final int count = dirtyLights.size();
+		
+		result.addAll(dirtyLights.keySet());
+		dirtyLights.clear();
+		
+		return count;
+	}
+	
+	boolean isDirty(final LightSource source) {
+		return dirtyLights.containsKey(source);
+	}
+	
+	/**
+	 * Marks all lights as dirty.
+	 */
+	void markAllDirty() {
+		for (final Iterator itor = proxies.keySet().iterator(); itor.hasNext();) {
+			dirtyLights.put(itor.next(), Boolean.TRUE);
+		}
+	}
+	
+	/**
+	 * Marks lights which range overlaps the box as dirty.
+	 */
+	void markDirty(final float left, final float bottom, final float right, final float top) {
+		final List/*<LightSource>*/ changed = changedLights;
+		lights.queryBox(left, bottom, right, top, changed);
+		
+		for (int l = 0; l < changed.size(); ++l) {
+			final LightSource source = (LightSource) changed.get(l);
+			
+			if (Bounds.intersectsCircle(left, bottom, right, top, source.x, source.y, source.intensity)) {
+				dirtyLights.put(source, Boolean.TRUE);
+			}
+		}
+		
+		changed.clear();
+	}
+	
+	/**
+	 * Finds lights which range box contains the point. It doesn't check
+	 * the exact range.
+	 */
+	void queryPoint(final float x, final float y, final Collection/*<LightSource>*/ result) {
+		lights.queryCircle(x, y, 0, result);
+	}
+}
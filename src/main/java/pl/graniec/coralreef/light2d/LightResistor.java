@@ -1,6 +1,7 @@
 package pl.graniec.coralreef.light2d;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.ListIterator;
 
 import pl.graniec.coralreef.geometry.Box2;
 import pl.graniec.coralreef.geometry.Geometry;
@@ -79,6 +80,56 @@ public class LightResistor extends Geometry {
 		bbox = null;
 	}
 	
+	/**
+	 * @return Number of verticles of this resistor.
+	 */
+	int getVerticleCount() {
+		return verticles.size();
+	}
+	
+	/**
+	 * Copies coordinates of verticles to the arrays without creating
+	 * any objects. Arrays must be at least {@link #getVerticleCount()}
+	 * long.
+	 */
+	void copyVerticles(final float[] x, final float[] y) {
+		final int count = verticles.size();
+		
+		for (int i = 0; i < count; ++i) {
+			final Point2 p = (Point2) verticles.get(i);
+			
+			x[i] = p.x;
+			y[i] = p.y;
+		}
+	}
+	
+	/**
+	 * Tells this resistor that its verticles have been changed in place
+	 * so its cached data has to be recalculated.
+	 */
+	public void invalidate() {
+		bbox = null;
+	}
+	
+	/**
+	 * Moves all verticles of this resistor. Verticles are replaced by new
+	 * points, so points shared with other resistors stay where they are.
+	 * If this resistor is already added to the lighting algorithm then
+	 * {@link AbstractLightingAlgorithm#updateLightResistor(LightResistor)}
+	 * must be called after the move.
+	 * 
+	 * @param dx Move in x axis.
+	 * @param dy Move in y axis.
+	 */
+	public void translate(final float dx, final float dy) {
+		for (final ListIterator itor = verticles.listIterator(); itor.hasNext();) {
+			final Point2 p = (Point2) itor.next();
+			itor.set(new Point2(p.x + dx, p.y + dy));
+		}
+		
+		bbox = null;
+	}
+	
 	private void calculateBBox() {
 		
 		if (verticles.isEmpty()) {
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Workspace of lighting algorithms. It keeps arrays and other
+ * structures used while computing a light, so they can be reused by
+ * next lights instead of allocating them again. Arrays grow as needed
+ * and are never shrunk, so after a few frames computing a light
+ * allocates nearly nothing.
+ * <p>
+ * Context can be used by one thread at a time. Methods that don't
+ * take the context use the one returned by {@link #current()}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class LightingContext {
+	
+	/** Context of each thread */
+	private static final ThreadLocal/*<LightingContext>*/ CURRENT = new ThreadLocal() {
+		protected Object initialValue() {
+			return new LightingContext();
+		}
+	};
+	
+	/** Resistors in light range */
+	final List/*<LightResistor>*/ nearResistors = new ArrayList();
+	
+	/** Resistors found outside of the visibility set, see {@link AbstractLightingAlgorithm#setVisibilitySet(VisibilitySet)} */
+	final List/*<LightResistor>*/ outsideResistors = new ArrayList();
+	
+	/** Resistors found by visibility queries */
+	final List/*<LightResistor>*/ queryResistors = new ArrayList();
+	
+	/** Lights found by visibility queries */
+	final List/*<LightSource>*/ queryLights = new ArrayList();
+	
+	/** Scene edge and its resistor hit by the last ray cast */
+	int hitEdge;
+	LightResistor hitResistor;
+	
+	/** Edges of near resistors relative to light source as x1, y1, x2, y2 */
+	float[] edges = new float[256];
+	
+	/** Light verticles as x, y pairs written to buffers */
+	float[] verticles = new float[256];
+	
+	/** Polygon crossings of a row filled by {@link LightMap} */
+	private float[] crossings = new float[16];
+	
+	/** Workspace of {@link SweepLightAlgorithm}, created when needed */
+	SweepLightAlgorithm.Sweep sweep;
+	
+	/** Workspace of {@link SimpleLightAlgorithm}, created when needed */
+	SimpleLightAlgorithm.Workspace simple;
+	
+	/** Non-resistance rays of the last spot light cone */
+	RayFan coneFan;
+	
+	/** Statistics of currently computed light or null if disabled */
+	LightingStats stats;
+	
+	/** Statistics object reused by all lights, created when needed */
+	private LightingStats ownStats;
+	
+	/**
+	 * @return Context of the current thread.
+	 */
+	public static LightingContext current() {
+		return (LightingContext) CURRENT.get();
+	}
+	
+	/**
+	 * Makes room for <code>count</code> edges in {@link #edges}.
+	 * 
+	 * @return The edges array.
+	 */
+	float[] ensureEdges(final int count) {
+		if (edges.length < count * 4) {
+			final float[] grown = new float[Math.max(count * 4, edges.length * 2)];
+			System.arraycopy(edges, 0, grown, 0, edges.length);
+			edges = grown;
+		}
+		
+		return edges;
+	}
+	
+	/**
+	 * Makes room for <code>count</code> crossings of a row, the old
+	 * content is not kept.
+	 * 
+	 * @return The crossings array.
+	 */
+	float[] ensureCrossings(final int count) {
+		if (crossings.length < count) {
+			crossings = new float[Math.max(count, crossings.length * 2)];
+		}
+		
+		return crossings;
+	}
+	
+	/**
+	 * @return Sweep workspace of this context.
+	 */
+	SweepLightAlgorithm.Sweep getSweep() {
+		if (sweep == null) {
+			sweep = new SweepLightAlgorithm.Sweep();
+		}
+		
+		return sweep;
+	}
+	
+	/**
+	 * Starts collecting statistics of the next light.
+	 * 
+	 * @return Cleared statistics.
+	 */
+	LightingStats startStats() {
+		if (ownStats == null) {
+			ownStats = new LightingStats();
+		}
+		
+		ownStats.reset();
+		stats = ownStats;
+		
+		return stats;
+	}
+	
+	/**
+	 * @return Simple algorithm workspace of this context.
+	 */
+	SimpleLightAlgorithm.Workspace getSimple() {
+		if (simple == null) {
+			simple = new SimpleLightAlgorithm.Workspace();
+		}
+		
+		return simple;
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+/**
+ * Counters and timings of single light computation. It's given to
+ * {@link LightingStatsListener} after each light is computed. The
+ * same object is reused by the next lights of the same
+ * {@link LightingContext}, so the listener must copy what it needs.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class LightingStats {
+	
+	/** Phases of light computation */
+	public static final class Phase {
+		/** Finding resistors in light range */
+		public static final int QUERY = 0;
+		/** Building edges relative to light source */
+		public static final int BUILD = 1;
+		/** Sorting edge end points by angle */
+		public static final int SORT = 2;
+		/** Finding edges crossed by the ray on the start angle */
+		public static final int PREPARE = 3;
+		/** Going around the light and testing visibility */
+		public static final int SWEEP = 4;
+		/** Writing the light geometry */
+		public static final int OUTPUT = 5;
+		
+		/** Number of phases */
+		public static final int COUNT = 6;
+		
+		private static final String[] NAMES = {"query", "build", "sort", "prepare", "sweep", "output"};
+		
+		private Phase() {
+		}
+		
+		/**
+		 * @return Lower case name of the phase.
+		 */
+		public static String getName(final int phase) {
+			return NAMES[phase];
+		}
+	}
+	
+	int totalResistors;
+	int nearResistors;
+	int segments;
+	int visibilityTests;
+	int intersectionTests;
+	int outputVerticles;
+	
+	final long[] phaseNanos = new long[Phase.COUNT];
+	long totalNanos;
+	
+	void reset() {
+		totalResistors = 0;
+		nearResistors = 0;
+		segments = 0;
+		visibilityTests = 0;
+		intersectionTests = 0;
+		outputVerticles = 0;
+		
+		for (int i = 0; i < Phase.COUNT; ++i) {
+			phaseNanos[i] = 0;
+		}
+		
+		totalNanos = 0;
+	}
+	
+	/**
+	 * Adds the time from <code>start</code> to now to the phase.
+	 * 
+	 * @return Current time.
+	 */
+	long endPhase(final int phase, final long start) {
+		final long now = System.nanoTime();
+		phaseNanos[phase] += now - start;
+		
+		return now;
+	}
+	
+	/**
+	 * @return Number of resistors in the whole scene.
+	 */
+	public int getTotalResistors() {
+		return totalResistors;
+	}
+	
+	/**
+	 * @return Number of resistors in light range that were used.
+	 */
+	public int getNearResistors() {
+		return nearResistors;
+	}
+	
+	/**
+	 * @return Number of resistors out of light range that were culled.
+	 */
+	public int getCulledResistors() {
+		return totalResistors - nearResistors;
+	}
+	
+	/**
+	 * @return Number of resistor edges that can cast a shadow.
+	 */
+	public int getSegments() {
+		return segments;
+	}
+	
+	/**
+	 * @return Number of edge end points sorted by angle.
+	 */
+	public int getViewportPoints() {
+		return segments * 2;
+	}
+	
+	/**
+	 * @return Number of rays checked for the nearest edge.
+	 */
+	public int getVisibilityTests() {
+		return visibilityTests;
+	}
+	
+	/**
+	 * @return Number of segment intersection tests.
+	 */
+	public int getIntersectionTests() {
+		return intersectionTests;
+	}
+	
+	/**
+	 * @return Number of verticles of light geometry.
+	 */
+	public int getOutputVerticles() {
+		return outputVerticles;
+	}
+	
+	/**
+	 * @param phase One of {@link Phase} constants.
+	 * 
+	 * @return Time spent in the phase in nanoseconds.
+	 */
+	public long getPhaseNanos(final int phase) {
+		return phaseNanos[phase];
+	}
+	
+	/**
+	 * @return Time of the whole light computation in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		final StringBuffer buffer = new StringBuffer(getClass().getSimpleName());
+		
+		buffer.append("[resistors=").append(nearResistors).append('/').append(totalResistors);
+		buffer.append(",segments=").append(segments);
+		buffer.append(",visibilityTests=").append(visibilityTests);
+		buffer.append(",intersectionTests=").append(intersectionTests);
+		buffer.append(",verticles=").append(outputVerticles);
+		
+		for (int i = 0; i < Phase.COUNT; ++i) {
+			buffer.append(',').append(Phase.getName(i)).append("Nanos=").append(phaseNanos[i]);
+		}
+		
+		buffer.append(",totalNanos=").append(totalNanos).append(']');
+		
+		return buffer.toString();
+	}
+}
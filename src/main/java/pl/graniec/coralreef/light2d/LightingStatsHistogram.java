@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Listener that aggregates statistics of all computed lights. Times
+ * of every phase are kept in histograms with power of two buckets, so
+ * percentiles are known with at most two times error while it takes
+ * constant memory. Counters are summed.
+ * <p>
+ * It's safe to use with lights computed in batches. Use
+ * {@link #getMetrics()} to export the values.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LightingStatsHistogram implements LightingStatsListener {
+	
+	/** Number of buckets, bucket <code>i</code> holds times below <code>2^i</code> */
+	public static final int BUCKETS = 64;
+	
+	/** Histogram index of the total time */
+	private static final int TOTAL = LightingStats.Phase.COUNT;
+	
+	/** Buckets of each phase and total time */
+	private final AtomicLongArray buckets = new AtomicLongArray((TOTAL + 1) * BUCKETS);
+	/** Sum of nanoseconds of each phase and total time */
+	private final AtomicLongArray nanos = new AtomicLongArray(TOTAL + 1);
+	
+	private final AtomicLong lights = new AtomicLong();
+	private final AtomicLong totalResistors = new AtomicLong();
+	private final AtomicLong nearResistors = new AtomicLong();
+	private final AtomicLong segments = new AtomicLong();
+	private final AtomicLong visibilityTests = new AtomicLong();
+	private final AtomicLong intersectionTests = new AtomicLong();
+	private final AtomicLong outputVerticles = new AtomicLong();
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.LightingStatsListener#lightComputed(pl.graniec.coralreef.light2d.LightingStats)
+	 */
+	public void lightComputed(final LightingStats stats) {
+		lights.incrementAndGet();
+		totalResistors.addAndGet(stats.getTotalResistors());
+		nearResistors.addAndGet(stats.getNearResistors());
+		segments.addAndGet(stats.getSegments());
+		visibilityTests.addAndGet(stats.getVisibilityTests());
+		intersectionTests.addAndGet(stats.getIntersectionTests());
+		outputVerticles.addAndGet(stats.getOutputVerticles());
+		
+		for (int i = 0; i < LightingStats.Phase.COUNT; ++i) {
+			record(i, stats.getPhaseNanos(i));
+		}
+		
+		record(TOTAL, stats.getTotalNanos());
+	}
+	
+	/**
+	 * @return Number of recorded lights.
+	 */
+	public long getLightCount() {
+		return lights.get();
+	}
+	
+	/**
+	 * Gets the histogram of phase times. Bucket <code>0</code> counts
+	 * zero times and bucket <code>i</code> counts times from
+	 * <code>2^(i-1)</code> to <code>2^i - 1</code> nanoseconds.
+	 * 
+	 * @param phase One of {@link LightingStats.Phase} constants or
+	 * {@link LightingStats.Phase#COUNT} for the total time.
+	 * 
+	 * @return Copy of the bucket counts.
+	 */
+	public long[] getBuckets(final int phase) {
+		final long[] result = new long[BUCKETS];
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			result[i] = buckets.get(phase * BUCKETS + i);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Gets the time below which <code>fraction</code> of lights spent
+	 * in <code>phase</code>. It's the upper bound of the bucket, so it
+	 * can be up to two times bigger than exact value.
+	 * 
+	 * @param phase One of {@link LightingStats.Phase} constants or
+	 * {@link LightingStats.Phase#COUNT} for the total time.
+	 * @param fraction Value from <code>0</code> to <code>1</code>,
+	 * <code>0.99</code> gives 99th percentile.
+	 * 
+	 * @return Time in nanoseconds.
+	 */
+	public long getPercentile(final int phase, final double fraction) {
+		final long[] counts = getBuckets(phase);
+		long total = 0;
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			total += counts[i];
+		}
+		
+		if (total == 0) {
+			return 0;
+		}
+		
+		final long wanted = Math.max(1, (long) Math.ceil(total * fraction));
+		long sum = 0;
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			sum += counts[i];
+			
+			if (sum >= wanted) {
+				return getUpperBound(i);
+			}
+		}
+		
+		return Long.MAX_VALUE;
+	}
+	
+	/**
+	 * @param phase One of {@link LightingStats.Phase} constants or
+	 * {@link LightingStats.Phase#COUNT} for the total time.
+	 * 
+	 * @return Mean time of the phase in nanoseconds.
+	 */
+	public double getMeanNanos(final int phase) {
+		final long count = lights.get();
+		return count == 0 ? 0 : (double) nanos.get(phase) / count;
+	}
+	
+	/**
+	 * Gets all values as a flat map, suitable for metrics exporters.
+	 * Keys are:
+	 * <ul>
+	 * <li><code>lights</code> - number of lights</li>
+	 * <li><code>resistors.total</code>, <code>resistors.near</code>,
+	 * <code>resistors.culled</code>, <code>segments</code>,
+	 * <code>viewportPoints</code>, <code>visibilityTests</code>,
+	 * <code>intersectionTests</code>, <code>outputVerticles</code> -
+	 * sums of counters</li>
+	 * <li><code>&lt;phase&gt;.nanos.total</code>,
+	 * <code>&lt;phase&gt;.nanos.p50</code>, <code>.p90</code>,
+	 * <code>.p99</code> and <code>.max</code> for every phase name and
+	 * <code>total</code></li>
+	 * </ul>
+	 * 
+	 * @return Map of metric names to {@link Long} values in insertion
+	 * order.
+	 */
+	public Map/*<String, Long>*/ getMetrics() {
+		final Map result = new LinkedHashMap();
+		
+		result.put("lights", new Long(lights.get()));
+		result.put("resistors.total", new Long(totalResistors.get()));
+		result.put("resistors.near", new Long(nearResistors.get()));
+		result.put("resistors.culled", new Long(totalResistors.get() - nearResistors.get()));
+		result.put("segments", new Long(segments.get()));
+		result.put("viewportPoints", new Long(segments.get() * 2));
+		result.put("visibilityTests", new Long(visibilityTests.get()));
+		result.put("intersectionTests", new Long(intersectionTests.get()));
+		result.put("outputVerticles", new Long(outputVerticles.get()));
+		
+		for (int i = 0; i <= TOTAL; ++i) {
+			final String name = i == TOTAL ? "total" : LightingStats.Phase.getName(i);
+			
+			result.put(name + ".nanos.total", new Long(nanos.get(i)));
+			result.put(name + ".nanos.p50", new Long(getPercentile(i, 0.5)));
+			result.put(name + ".nanos.p90", new Long(getPercentile(i, 0.9)));
+			result.put(name + ".nanos.p99", new Long(getPercentile(i, 0.99)));
+			result.put(name + ".nanos.max", new Long(getPercentile(i, 1)));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Forgets all recorded lights.
+	 */
+	public void reset() {
+		for (int i = 0; i < buckets.length(); ++i) {
+			buckets.set(i, 0);
+		}
+		
+		for (int i = 0; i < nanos.length(); ++i) {
+			nanos.set(i, 0);
+		}
+		
+		lights.set(0);
+		totalResistors.set(0);
+		nearResistors.set(0);
+		segments.set(0);
+		visibilityTests.set(0);
+		intersectionTests.set(0);
+		outputVerticles.set(0);
+	}
+	
+	private void record(final int phase, final long time) {
+		nanos.addAndGet(phase, time);
+		buckets.incrementAndGet(phase * BUCKETS + getBucket(time));
+	}
+	
+	/**
+	 * @return Bucket of time, number of significant bits.
+	 */
+	private static int getBucket(final long time) {
+		return time <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(time));
+	}
+	
+	private static long getUpperBound(final int bucket) {
+		return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+}
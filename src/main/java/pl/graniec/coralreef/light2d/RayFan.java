@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+/**
+ * Directions of non-resistance rays. Ray <code>k</code> of
+ * <code>partsNum</code> rays goes on angle
+ * <code>-180 + k * 360 / partsNum</code> degrees. Directions are
+ * computed once for the number of parts, so lights doesn't need any
+ * trigonometry. The rotation from one ray to the next one is kept too,
+ * so rays can be walked from any direction.
+ * <p>
+ * Fan of a spot light covers only its cone. It's built around the
+ * positive x axis, so lights rotate their scene to look that way.
+ * <p>
+ * Angles are given as pseudo angles (see {@link #pseudoAngle(float, float)}),
+ * which are ordered like the real ones but much cheaper to compute.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class RayFan {
+	
+	/** Pseudo angle of the ray going to the negative x axis */
+	static final float HALF_TURN = 2f;
+
+	final int partsNum;
+	/** Half of the covered angle in degrees, 180 for the full circle */
+	final float halfAngle;
+	/** Number of rays */
+	final int count;
+	/** Unit direction of each ray */
+	final float[] x, y;
+	/** Pseudo angle of each ray */
+	final float[] angles;
+	/** Rotation from one ray to the next one */
+	final float stepCos, stepSin;
+	
+	RayFan(final int partsNum) {
+		this.partsNum = partsNum;
+		this.halfAngle = 180;
+		this.count = partsNum;
+		
+		x = new float[partsNum];
+		y = new float[partsNum];
+		angles = new float[partsNum];
+		
+		final float delta = 360f / partsNum;
+		
+		stepCos = (float) Math.cos(Math.toRadians(delta));
+		stepSin = (float) Math.sin(Math.toRadians(delta));
+		
+		for (int k = 0; k < partsNum; ++k) {
+			final float rad = (float) Math.toRadians(-180f + k * delta);
+			
+			x[k] = (float) Math.cos(rad);
+			y[k] = (float) Math.sin(rad);
+			
+			// exact direction, float one can be on the other side of x axis
+			final double exact = Math.toRadians(-180.0 + k * 360.0 / partsNum);
+			angles[k] = k == 0 ? -HALF_TURN : (float) pseudoAngle(Math.cos(exact), Math.sin(exact));
+		}
+	}
+	
+	/**
+	 * Creates fan of a cone from <code>-halfAngle</code> to
+	 * <code>halfAngle</code> degrees with both borders included. Rays
+	 * are as dense as in the full fan of <code>partsNum</code> rays.
+	 */
+	RayFan(final int partsNum, final float halfAngle) {
+		this.partsNum = partsNum;
+		this.halfAngle = halfAngle;
+		
+		final int parts = Math.max(1, (int) Math.ceil(partsNum * halfAngle / 180f));
+		count = parts + 1;
+		
+		x = new float[count];
+		y = new float[count];
+		angles = new float[count];
+		
+		final double border = Math.toRadians(halfAngle);
+		final float limit = (float) pseudoAngle(Math.cos(border), Math.sin(border));
+		
+		stepCos = (float) Math.cos(2 * border / parts);
+		stepSin = (float) Math.sin(2 * border / parts);
+		
+		for (int k = 0; k < count; ++k) {
+			final double exact = -border + k * 2 * border / parts;
+			
+			x[k] = (float) Math.cos(exact);
+			y[k] = (float) Math.sin(exact);
+			angles[k] = (float) pseudoAngle(Math.cos(exact), Math.sin(exact));
+		}
+		
+		// borders exactly symmetric
+		x[0] = x[parts];
+		y[0] = -y[parts];
+		angles[0] = -limit;
+		angles[parts] = limit;
+	}
+	
+	/**
+	 * @return <code>true</code> if this fan covers only a cone.
+	 */
+	boolean isCone() {
+		return halfAngle < 180;
+	}
+	
+	/**
+	 * Gets the pseudo angle of direction. It grows with the real angle
+	 * from <code>-2</code> exclusive to <code>2</code> inclusive, which
+	 * are <code>-180</code> and <code>180</code> degrees, and it's exact
+	 * on every multiple of <code>90</code> degrees: <code>0</code> is
+	 * <code>0</code> degrees and <code>1</code> is <code>90</code>
+	 * degrees. It needs single division instead of arcus tangent.
+	 * <p>
+	 * Direction with zero <code>y</code> and negative <code>x</code> has
+	 * pseudo angle <code>2</code>, zero vector has <code>0</code>.
+	 */
+	static float pseudoAngle(final float x, final float y) {
+		final float sum = Math.abs(x) + Math.abs(y);
+		
+		if (sum == 0) {
+			return 0;
+		}
+		
+		final float t = y / sum;
+		
+		if (x >= 0) {
+			return t;
+		}
+		
+		return y >= 0 ? HALF_TURN - t : -HALF_TURN - t;
+	}
+	
+	private static double pseudoAngle(final double x, final double y) {
+		final double sum = Math.abs(x) + Math.abs(y);
+		
+		if (sum == 0) {
+			return 0;
+		}
+		
+		final double t = y / sum;
+		
+		if (x >= 0) {
+			return t;
+		}
+		
+		return y >= 0 ? HALF_TURN - t : -HALF_TURN - t;
+	}
+}
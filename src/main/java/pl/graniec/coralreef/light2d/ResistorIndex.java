@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Collection;
+
+/**
+ * Spatial index of light resistors. It's used by lighting algorithms
+ * to find the resistors that are near the light source without going
+ * thru the whole scene.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public interface ResistorIndex {
+	
+	/**
+	 * Adds the resistor to this index. Resistor is indexed by its
+	 * bounding box so it should have all its verticles set before
+	 * adding.
+	 * 
+	 * @param resistor The resistor to add.
+	 */
+	void add(LightResistor resistor);
+	
+	/**
+	 * Removes the resistor from this index. Does nothing if it wasn't
+	 * added.
+	 * 
+	 * @param resistor The resistor to remove.
+	 */
+	void remove(LightResistor resistor);
+	
+	/**
+	 * Updates position of resistor which verticles have been changed
+	 * since it was added. Does nothing if it wasn't added.
+	 * 
+	 * @param resistor The changed resistor.
+	 */
+	void update(LightResistor resistor);
+	
+	/**
+	 * Finds all resistors which bounding box overlaps the circle
+	 * of given <code>radius</code> placed at <code>(x, y)</code>.
+	 * 
+	 * @param x Circle center x.
+	 * @param y Circle center y.
+	 * @param radius Circle radius.
+	 * @param result Collection where found resistors will be added.
+	 */
+	void query(float x, float y, float radius, Collection/*<LightResistor>*/ result);
+	
+	/**
+	 * Finds all resistors which bounding box overlaps the segment from
+	 * <code>(ax, ay)</code> to <code>(bx, by)</code>.
+	 * 
+	 * @param result Collection where found resistors will be added.
+	 */
+	void querySegment(float ax, float ay, float bx, float by, Collection/*<LightResistor>*/ result);
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Source of light resistors of a world divided into square tiles, used
+ * by {@link StreamingScene} to keep only the tiles around lights in
+ * memory.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public interface ResistorProvider {
+	
+	/**
+	 * Loads resistors of the tile. Tile <code>(column, row)</code>
+	 * spans from <code>column * tileSize</code> to
+	 * <code>(column + 1) * tileSize</code> horizontally and likewise
+	 * vertically. Resistors must not reach out of their tile, the ones
+	 * crossing tile borders should be split.
+	 * <p>
+	 * This method can be called by the prefetch thread, so it must not
+	 * touch the lighting algorithm.
+	 * 
+	 * @param column Tile column.
+	 * @param row Tile row.
+	 * @param result Collection where loaded resistors will be added.
+	 * 
+	 * @throws IOException When tile cannot be loaded.
+	 */
+	void load(int column, int row, Collection/*<LightResistor>*/ result) throws IOException;
+}
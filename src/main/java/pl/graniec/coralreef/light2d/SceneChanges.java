@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+/**
+ * Bounding boxes of recent scene changes. Tracked lights remember the
+ * number of changes when they gathered their edges and ask later if
+ * anything changed in their range since then.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class SceneChanges {
+
+	/** Number of recent scene changes remembered */
+	private static final int SIZE = 64;
+	
+	/** Bounding boxes of recent scene changes as left, bottom, right, top */
+	private final float[] boxes = new float[SIZE * 4];
+	/** Number of scene changes so far */
+	private long count;
+	
+	/**
+	 * Remembers that the scene in the box has been changed.
+	 */
+	void add(final float left, final float bottom, final float right, final float top) {
+		final int i = (int) (count++ % SIZE) * 4;
+		
+		boxes[i] = left;
+		boxes[i + 1] = bottom;
+		boxes[i + 2] = right;
+		boxes[i + 3] = top;
+	}
+	
+	/**
+	 * @return Number of scene changes so far.
+	 */
+	long getCount() {
+		return count;
+	}
+	
+	/**
+	 * Tells if the scene in the box could have been changed after
+	 * <code>since</code> changes. Only recent changes are remembered,
+	 * so for older ones it's always <code>true</code>.
+	 */
+	boolean isChanged(final long since, final float left, final float bottom, final float right, final float top) {
+		if (count - since > SIZE) {
+			return true;
+		}
+		
+		for (long c = since; c < count; ++c) {
+			final int i = (int) (c % SIZE) * 4;
+			
+			if (boxes[i] <= right && boxes[i + 2] >= left && boxes[i + 1] <= top && boxes[i + 3] >= bottom) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+}
@@ -0,0 +1,364 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+import pl.graniec.coralreef.geometry.Box2;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * Binary file of light resistors that loads without parsing. It
+ * holds a header, a table with range of verticles and bounding box of
+ * every resistor and then coordinates of all verticles:
+ * <pre>
+ * int   magic, "CRLS"
+ * int   version
+ * int   number of resistors
+ * int   number of verticles
+ * float cell size of GridResistorIndex or 0
+ * per resistor: int first verticle, int verticle count,
+ *               float left, bottom, right, top
+ * per verticle: float x, y
+ * </pre>
+ * All numbers are big endian.
+ * <p>
+ * Loaded file is memory mapped and its resistors read verticles
+ * straight from the mapping when they are compiled by the lighting
+ * algorithm, while resistor index uses the bounding boxes from the
+ * table. No verticle objects are created until someone calls
+ * {@link LightResistor#getVerticles()} or changes the resistor, then
+ * its verticles are copied and it works as any other resistor.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class SceneFile {
+	
+	private static final int MAGIC = 0x43524C53;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int ENTRY_SIZE = 24;
+	
+	/**
+	 * Resistor which verticles are in the mapped file until they are
+	 * needed as objects.
+	 */
+	private static final class MappedResistor extends LightResistor {
+		
+		/** Verticles of the whole file as x, y pairs */
+		private final FloatBuffer data;
+		private final int first, count;
+		private final Box2 bounds;
+		/** Are verticles copied to the geometry, then the file is not used */
+		private boolean materialized;
+		
+		MappedResistor(final FloatBuffer data, final int first, final int count, final Box2 bounds) {
+			this.data = data;
+			this.first = first;
+			this.count = count;
+			this.bounds = bounds;
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.light2d.LightResistor#getVerticleCount()
+		 */
+		int getVerticleCount() {
+			return materialized ? super.getVerticleCount() : count;
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.light2d.LightResistor#copyVerticles(float[], float[])
+		 */
+		void copyVerticles(final float[] x, final float[] y) {
+			if (materialized) {
+				super.copyVerticles(x, y);
+				return;
+			}
+			
+			for (int i = 0; i < count; ++i) {
+				x[i] = data.get(2 * (first + i));
+				y[i] = data.get(2 * (first + i) + 1);
+			}
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.light2d.LightResistor#getBoundingBox()
+		 */
+		public Box2 getBoundingBox() {
+			return materialized ? super.getBoundingBox() : bounds;
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.geometry.Geometry#getVerticles()
+		 */
+		public Point2[] getVerticles() {
+			materialize();
+			return super.getVerticles();
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.light2d.LightResistor#addVerticle(pl.graniec.coralreef.geometry.Point2)
+		 */
+		public void addVerticle(final Point2 point) {
+			materialize();
+			super.addVerticle(point);
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.light2d.LightResistor#addVerticles(java.util.Collection)
+		 */
+		public void addVerticles(final Collection verticles) {
+			materialize();
+			super.addVerticles(verticles);
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.light2d.LightResistor#addVerticles(pl.graniec.coralreef.geometry.Point2[])
+		 */
+		public void addVerticles(final Point2[] points) {
+			materialize();
+			super.addVerticles(points);
+		}
+		
+		/*
+		 * @see pl.graniec.coralreef.light2d.LightResistor#translate(float, float)
+		 */
+		public void translate(final float dx, final float dy) {
+			materialize();
+			super.translate(dx, dy);
+		}
+		
+		private void materialize() {
+			if (materialized) {
+				return;
+			}
+			
+			materialized = true;
+			
+			for (int i = 0; i < count; ++i) {
+				super.addVerticle(new Point2(data.get(2 * (first + i)), data.get(2 * (first + i) + 1)));
+			}
+		}
+	}
+	
+	/** Loaded resistors */
+	private final LightResistor[] resistors;
+	/** Cell size of resistor index or 0 */
+	private final float gridCellSize;
+	
+	private SceneFile(final LightResistor[] resistors, final float gridCellSize) {
+		this.resistors = resistors;
+		this.gridCellSize = gridCellSize;
+	}
+	
+	/**
+	 * Writes the resistors to the file.
+	 * 
+	 * @param resistors Collection of {@link LightResistor}s.
+	 * @param gridCellSize Cell size of {@link GridResistorIndex} that
+	 * suits the scene or <code>0</code>.
+	 * @param file The file to write.
+	 * 
+	 * @throws IOException If the file can't be written.
+	 */
+	public static void write(Collection/*<LightResistor>*/ resistors, float gridCellSize, File file) throws IOException {
+		if (gridCellSize < 0) {
+			throw new IllegalArgumentException("grid cell size cannot be negative");
+		}
+		
+		final LightResistor[] array = (LightResistor[]) resistors.toArray(new LightResistor[resistors.size()]);
+		final Point2[][] verticles = new Point2[array.length][];
+		int verticleCount = 0;
+		
+		for (int i = 0; i < array.length; ++i) {
+			verticles[i] = array[i].getVerticles();
+			verticleCount += verticles[i].length;
+		}
+		
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(array.length);
+			out.writeInt(verticleCount);
+			out.writeFloat(gridCellSize);
+			
+			int first = 0;
+			
+			for (int i = 0; i < array.length; ++i) {
+				final Box2 bbox = array[i].getBoundingBox();
+				
+				out.writeInt(first);
+				out.writeInt(verticles[i].length);
+				out.writeFloat(bbox != null ? bbox.left : 0);
+				out.writeFloat(bbox != null ? bbox.bottom : 0);
+				out.writeFloat(bbox != null ? bbox.right : 0);
+				out.writeFloat(bbox != null ? bbox.top : 0);
+				
+				first += verticles[i].length;
+			}
+			
+			for (int i = 0; i < array.length; ++i) {
+				for (int v = 0; v < verticles[i].length; ++v) {
+					out.writeFloat(verticles[i][v].x);
+					out.writeFloat(verticles[i][v].y);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Maps the file into memory and creates its resistors. The mapping
+	 * stays valid after the file is closed, so the file must not be
+	 * changed while its resistors are in use.
+	 * 
+	 * @param file The file written by
+	 * {@link #write(Collection, float, File)}.
+	 * 
+	 * @return The loaded scene.
+	 * 
+	 * @throws IOException If the file can't be read or it's not a
+	 * scene file.
+	 */
+	public static SceneFile load(File file) throws IOException {
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		final ByteBuffer buffer;
+		
+		try {
+			final FileChannel channel = input.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			input.close();
+		}
+		
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("not a scene file: " + file);
+		}
+		
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("unsupported scene file version " + buffer.getInt(4) + ": " + file);
+		}
+		
+		final int resistorCount = buffer.getInt(8);
+		final int verticleCount = buffer.getInt(12);
+		final float gridCellSize = buffer.getFloat(16);
+		final long dataStart = HEADER_SIZE + resistorCount * (long) ENTRY_SIZE;
+		
+		if (resistorCount < 0 || verticleCount < 0 || buffer.capacity() != dataStart + verticleCount * 8L) {
+			throw new IOException("corrupted scene file: " + file);
+		}
+		
+		buffer.position((int) dataStart);
+		final FloatBuffer data = buffer.slice().asFloatBuffer();
+		
+		final LightResistor[] resistors = new LightResistor[resistorCount];
+		
+		for (int i = 0; i < resistorCount; ++i) {
+			final int entry = HEADER_SIZE + i * ENTRY_SIZE;
+			final int first = buffer.getInt(entry);
+			final int count = buffer.getInt(entry + 4);
+			
+			if (first < 0 || count < 0 || count > verticleCount - first) {
+				throw new IOException("corrupted scene file: " + file);
+			}
+			
+			Box2 bounds = null;
+			
+			if (count > 0) {
+				bounds = new Box2(0, 0, 0, 0);
+				bounds.left = buffer.getFloat(entry + 8);
+				bounds.bottom = buffer.getFloat(entry + 12);
+				bounds.right = buffer.getFloat(entry + 16);
+				bounds.top = buffer.getFloat(entry + 20);
+			}
+			
+			resistors[i] = new MappedResistor(data, first, count, bounds);
+		}
+		
+		return new SceneFile(resistors, gridCellSize);
+	}
+	
+	/**
+	 * @return Number of resistors in this scene.
+	 */
+	public int getResistorCount() {
+		return resistors.length;
+	}
+	
+	/**
+	 * @return Resistor of given index in the order they were written.
+	 */
+	public LightResistor getResistor(int index) {
+		return resistors[index];
+	}
+	
+	/**
+	 * @return Cell size of resistor index given when the file was
+	 * written or <code>0</code>.
+	 */
+	public float getGridCellSize() {
+		return gridCellSize;
+	}
+	
+	/**
+	 * Creates empty resistor index for this scene. It should be set by
+	 * {@link AbstractLightingAlgorithm#setResistorIndex(ResistorIndex)}
+	 * before the resistors are added.
+	 * 
+	 * @return {@link GridResistorIndex} if the file has its cell size,
+	 * otherwise {@link DynamicTreeResistorIndex}.
+	 */
+	public ResistorIndex createIndex() {
+		return gridCellSize > 0 ? (ResistorIndex) new GridResistorIndex(gridCellSize) : new DynamicTreeResistorIndex();
+	}
+	
+	/**
+	 * Adds all resistors of this scene to the algorithm.
+	 * 
+	 * @param algorithm The lighting algorithm.
+	 */
+	public void addTo(AbstractLightingAlgorithm algorithm) {
+		for (int i = 0; i < resistors.length; ++i) {
+			algorithm.addLightResistor(resistors[i]);
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Visibility queries and raycasts over resistors of the lighting
+ * algorithm. Resistors near the query are found by the algorithm
+ * resistor index and their edges are tested in its compiled scene,
+ * lights come from its {@link LightRegistry}. Batches are split between
+ * threads of the algorithm pool.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class SceneQueries {
+
+	/** Number of visibility queries below which batch task is not split any more */
+	private static final int QUERY_GRANULARITY = 256;
+	
+	/**
+	 * Visibility queries answered in parallel, see
+	 * {@link AbstractLightingAlgorithm#isLit(float[], boolean[])},
+	 * {@link AbstractLightingAlgorithm#hasLineOfSight(float[], boolean[])}
+	 * and
+	 * {@link AbstractLightingAlgorithm#raycast(float[], float, float[], LightResistor[])}.
+	 */
+	private static final class QueryBatch {
+		static final int LIT = 1;
+		static final int SIGHT = 2;
+		static final int RAY = 3;
+		
+		final int kind;
+		/** Points as x, y pairs, segments as x1, y1, x2, y2 or rays as x, y, dx, dy */
+		final float[] coords;
+		/** Results of points and segments */
+		boolean[] flags;
+		/** Hit distances and resistors of rays, resistors can be null */
+		float[] distances;
+		LightResistor[] hits;
+		float maxDistance;
+		
+		QueryBatch(final int kind, final float[] coords) {
+			this.kind = kind;
+			this.coords = coords;
+		}
+	}
+	
+	/**
+	 * Part of visibility queries batch. It answers its queries or
+	 * splits itself in halves that can be stolen by other workers.
+	 */
+	private final class QueryTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final QueryBatch batch;
+		private final int from, to;
+		
+		QueryTask(final QueryBatch batch, final int from, final int to) {
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected void compute() {
+			if (to - from <= QUERY_GRANULARITY) {
+				query(batch, from, to);
+				return;
+			}
+			
+			final int middle = (from + to) >>> 1;
+			
+			invokeAll(
+					new QueryTask(batch, from, middle),
+					new QueryTask(batch, middle, to));
+		}
+	}
+	
+	
+	private final AbstractLightingAlgorithm algorithm;
+	private final LightRegistry lights;
+	
+	SceneQueries(final AbstractLightingAlgorithm algorithm, final LightRegistry lights) {
+		this.algorithm = algorithm;
+		this.lights = lights;
+	}
+	
+	/**
+	 * @see AbstractLightingAlgorithm#isLit(float, float)
+	 * @see AbstractLightingAlgorithm#litBy(float, float, Collection)
+	 */
+	int findLights(final float x, final float y, final Collection/*<LightSource>*/ result) {
+		return findLights(x, y, result, LightingContext.current());
+	}
+	
+	/**
+	 * @see AbstractLightingAlgorithm#hasLineOfSight(float, float, float, float)
+	 */
+	boolean hasLineOfSight(final float ax, final float ay, final float bx, final float by) {
+		return hasLineOfSight(ax, ay, bx, by, LightingContext.current());
+	}
+	
+	/**
+	 * @see AbstractLightingAlgorithm#isLit(float[], boolean[])
+	 */
+	void isLit(final float[] points, final boolean[] result) {
+		final QueryBatch batch = new QueryBatch(QueryBatch.LIT, points);
+		batch.flags = result;
+		
+		queryBatch(batch, result.length);
+	}
+	
+	/**
+	 * @see AbstractLightingAlgorithm#hasLineOfSight(float[], boolean[])
+	 */
+	void hasLineOfSight(final float[] segments, final boolean[] result) {
+		final QueryBatch batch = new QueryBatch(QueryBatch.SIGHT, segments);
+		batch.flags = result;
+		
+		queryBatch(batch, result.length);
+	}
+	
+	/**
+	 * @see AbstractLightingAlgorithm#raycast(float, float, float, float, float, RaycastHit)
+	 */
+	boolean raycast(final float x, final float y, final float dx, final float dy, final float maxDistance, final RaycastHit hit) {
+		final LightingContext context = LightingContext.current();
+		final float distance = raycast(x, y, dx, dy, maxDistance, context);
+		
+		if (distance == Float.POSITIVE_INFINITY) {
+			hit.resistor = null;
+			return false;
+		}
+		
+		final CompiledScene scene = algorithm.scene;
+		final float length = (float) Math.sqrt(dx * dx + dy * dy);
+		
+		hit.x = x + dx / length * distance;
+		hit.y = y + dy / length * distance;
+		hit.distance = distance;
+		hit.resistor = context.hitResistor;
+		
+		// edge normal turned against the ray
+		final int e = context.hitEdge;
+		float nx = scene.y2[e] - scene.y1[e];
+		float ny = scene.x1[e] - scene.x2[e];
+		
+		if (nx * dx + ny * dy > 0) {
+			nx = -nx;
+			ny = -ny;
+		}
+		
+		final float normal = (float) Math.sqrt(nx * nx + ny * ny);
+		
+		hit.normalX = nx / normal;
+		hit.normalY = ny / normal;
+		
+		return true;
+	}
+	
+	/**
+	 * @see AbstractLightingAlgorithm#raycast(float[], float, float[], LightResistor[])
+	 */
+	void raycast(final float[] rays, final float maxDistance, final float[] distances, final LightResistor[] resistors) {
+		if (resistors != null && resistors.length < distances.length) {
+			throw new IllegalArgumentException("resistors array is too short");
+		}
+		
+		final QueryBatch batch = new QueryBatch(QueryBatch.RAY, rays);
+		batch.distances = distances;
+		batch.hits = resistors;
+		batch.maxDistance = maxDistance;
+		
+		queryBatch(batch, distances.length);
+	}
+	
+	private void queryBatch(final QueryBatch batch, final int count) {
+		if (batch.coords.length < count * (batch.kind == QueryBatch.LIT ? 2 : 4)) {
+			throw new IllegalArgumentException("not enough coordinates for " + count + " queries");
+		}
+		
+		if (algorithm.getParallelism() <= 1 || count <= QUERY_GRANULARITY) {
+			query(batch, 0, count);
+			return;
+		}
+		
+		algorithm.getPool().invoke(new QueryTask(batch, 0, count));
+	}
+	
+	/**
+	 * Answers queries from <code>from</code> to <code>to</code> on the
+	 * current thread.
+	 */
+	private void query(final QueryBatch batch, final int from, final int to) {
+		final LightingContext context = LightingContext.current();
+		final float[] c = batch.coords;
+		
+		for (int i = from; i < to; ++i) {
+			switch (batch.kind) {
+				case QueryBatch.LIT:
+					batch.flags[i] = findLights(c[i * 2], c[i * 2 + 1], null, context) > 0;
+					break;
+				case QueryBatch.SIGHT:
+					batch.flags[i] = hasLineOfSight(c[i * 4], c[i * 4 + 1], c[i * 4 + 2], c[i * 4 + 3], context);
+					break;
+				default:
+					final float distance = raycast(c[i * 4], c[i * 4 + 1], c[i * 4 + 2], c[i * 4 + 3], batch.maxDistance, context);
+					
+					batch.distances[i] = distance;
+					
+					if (batch.hits != null) {
+						batch.hits[i] = distance != Float.POSITIVE_INFINITY ? context.hitResistor : null;
+					}
+			}
+		}
+	}
+	
+	/**
+	 * Finds lights reaching the point. If <code>result</code> is
+	 * <code>null</code> it stops at the first one.
+	 * 
+	 * @return Number of found lights.
+	 */
+	private int findLights(final float x, final float y, final Collection result, final LightingContext context) {
+		final List/*<LightSource>*/ candidates = context.queryLights;
+		int count = 0;
+		
+		candidates.clear();
+		lights.queryPoint(x, y, candidates);
+		
+		for (int i = 0; i < candidates.size(); ++i) {
+			final LightSource source = (LightSource) candidates.get(i);
+			
+			if (reaches(source, x, y) && hasLineOfSight(source.x, source.y, x, y, context)) {
+				++count;
+				
+				if (result == null) {
+					break;
+				}
+				
+				result.add(source);
+			}
+		}
+		
+		candidates.clear();
+		
+		return count;
+	}
+	
+	/**
+	 * Tells if the point is in light range, ignoring resistors.
+	 */
+	private static boolean reaches(final LightSource source, final float x, final float y) {
+		final float dx = x - source.x;
+		final float dy = y - source.y;
+		
+		if (dx * dx + dy * dy > source.intensity * source.intensity) {
+			return false;
+		}
+		
+		if (!(source instanceof SpotLightSource) || (dx == 0 && dy == 0)) {
+			return true;
+		}
+		
+		final SpotLightSource spot = (SpotLightSource) source;
+		
+		if (spot.halfAngle >= 180) {
+			return true;
+		}
+		
+		// angle from the cone axis in range -180 to 180
+		double angle = Math.toDegrees(Math.atan2(dy, dx)) - spot.direction;
+		angle -= 360 * Math.floor((angle + 180) / 360);
+		
+		return Math.abs(angle) <= spot.halfAngle;
+	}
+	
+	private boolean hasLineOfSight(final float ax, final float ay, final float bx, final float by, final LightingContext context) {
+		final CompiledScene scene = algorithm.scene;
+		final List/*<LightResistor>*/ near = context.queryResistors;
+		final float dx = bx - ax;
+		final float dy = by - ay;
+		
+		near.clear();
+		algorithm.resistorIndex.querySegment(ax, ay, bx, by, near);
+		
+		try {
+			for (int r = 0; r < near.size(); ++r) {
+				final CompiledScene.Slot slot = scene.getSlot((LightResistor) near.get(r));
+				
+				if (slot == null) {
+					continue;
+				}
+				
+				final int end = slot.first + slot.count;
+				
+				for (int e = slot.first; e < end; ++e) {
+					if (scene.intersect(e, ax, ay, dx, dy) < 1) {
+						return false;
+					}
+				}
+			}
+		} finally {
+			near.clear();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Casts the ray and stores the hit edge and its resistor in
+	 * {@link LightingContext#hitEdge} and
+	 * {@link LightingContext#hitResistor}.
+	 * 
+	 * @return Distance to the hit or {@link Float#POSITIVE_INFINITY}.
+	 */
+	private float raycast(final float x, final float y, final float dx, final float dy, final float maxDistance, final LightingContext context) {
+		if (!(maxDistance >= 0) || maxDistance == Float.POSITIVE_INFINITY) {
+			throw new IllegalArgumentException("maximum distance must be finite and not negative");
+		}
+		
+		final float length = (float) Math.sqrt(dx * dx + dy * dy);
+		
+		if (length == 0) {
+			throw new IllegalArgumentException("ray direction cannot be zero");
+		}
+		
+		final CompiledScene scene = algorithm.scene;
+		final List/*<LightResistor>*/ near = context.queryResistors;
+		
+		// segment covering the ray, its parameter is the distance
+		final float ux = dx / length * maxDistance;
+		final float uy = dy / length * maxDistance;
+		
+		near.clear();
+		algorithm.resistorIndex.querySegment(x, y, x + ux, y + uy, near);
+		
+		// nearest hit as fraction of maximum distance
+		float nearest = Float.POSITIVE_INFINITY;
+		
+		for (int r = 0; r < near.size(); ++r) {
+			final CompiledScene.Slot slot = scene.getSlot((LightResistor) near.get(r));
+			
+			// resistors entered after the nearest hit can't be nearer
+			if (slot == null || Bounds.enterSegment(slot.left, slot.bottom, slot.right, slot.top, x, y, ux, uy) > Math.min(nearest, 1)) {
+				continue;
+			}
+			
+			final int end = slot.first + slot.count;
+			
+			for (int e = slot.first; e < end; ++e) {
+				final float t = scene.intersect(e, x, y, ux, uy);
+				
+				if (t <= 1 && t < nearest) {
+					nearest = t;
+					context.hitEdge = e;
+					context.hitResistor = slot.resistor;
+				}
+			}
+		}
+		
+		near.clear();
+		
+		return nearest != Float.POSITIVE_INFINITY ? nearest * maxDistance : Float.POSITIVE_INFINITY;
+	}
+}
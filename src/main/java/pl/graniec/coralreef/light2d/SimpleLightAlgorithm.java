@@ -28,18 +28,11 @@
  */
 package pl.graniec.coralreef.light2d;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
-import pl.graniec.coralreef.geometry.Box2;
 import pl.graniec.coralreef.geometry.Geometry;
 import pl.graniec.coralreef.geometry.Point2;
 import pl.graniec.coralreef.geometry.Segment;
-import pl.graniec.coralreef.geometry.Vector2;
 
 /**
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
@@ -47,263 +40,738 @@ import pl.graniec.coralreef.geometry.Vector2;
  */
 public class SimpleLightAlgorithm extends AbstractLightingAlgorithm {
 
-	static class AngledPoint extends Point2 implements Comparable {
+	/** Angle in degrees between visible point and rays next to it */
+	private static final double NEAR_ANGLE = 0.01;
+	private static final float NEAR_COS = (float) Math.cos(Math.toRadians(NEAR_ANGLE));
+	private static final float NEAR_SIN = (float) Math.sin(Math.toRadians(NEAR_ANGLE));
+	/** Rounding error of walked ray direction after the full turn */
+	private static final float WALK_EPSILON = 1e-4f;
+	
+	/** Should visible corners be traced exactly instead of probing rays next to them */
+	private boolean exactCorners;
 
-		final float angle;
-		
-		public AngledPoint(final float x, final float y) {
-			super(x, y);
-			this.angle = Vector2.angle(x, y);
+	/**
+	 * Intermediate data of a light kept in {@link LightingContext}.
+	 * Point <code>p</code> of the viewport is the end point
+	 * <code>p &amp; 1</code> of segment <code>p &gt;&gt; 1</code>.
+	 */
+	static final class Workspace {
+		
+		/** Resistor segments relative to light source */
+		Segment[] segments = new Segment[16];
+		int segmentCount;
+		
+		/** Pseudo angle of each segment end point */
+		float[] angles = new float[32];
+		/** Segment end points sorted by angle */
+		int[] viewport = new int[32];
+		
+		/** Segments that are open on 180 angle */
+		int[] startActions = new int[16];
+		int startActionCount;
+		
+		/** Light geometry points as x, y pairs */
+		float[] points = new float[64];
+		float[] pointAngles = new float[32];
+		/** Light geometry points sorted by angle */
+		int[] pointOrder = new int[32];
+		int pointCount;
+		
+		/** Ray from light source to checked point */
+		final Segment ray = new Segment(0, 0, 0, 0);
+		/** Ray on 180 angle */
+		final Segment border = new Segment(0, 0, 0, 0);
+		
+		float intensity;
+		/** Direction of the cone axis, the scene is rotated by its inverse */
+		float axisX, axisY;
+		/** Pseudo angle of the cone border, {@link RayFan#HALF_TURN} if there's no cone */
+		float coneAngle;
+		
+		/** Unit direction and pseudo angle of the last walked ray, see {@link #walk(RayFan, float)} */
+		float walkX, walkY, walkAngle;
+		
+		/** Counters of statistics */
+		int visibilityTests, intersectionTests;
+		
+		/** Are corners traced exactly, see {@link SimpleLightAlgorithm#setExactCorners(boolean)} */
+		boolean exact;
+		/** Are there segments of the last traced corner on its left or right side */
+		boolean cornerLeft, cornerRight;
+		
+		/**
+		 * Prepares this workspace for the next light.
+		 * 
+		 * @param fan Non-resistance rays of the light.
+		 * @param direction Direction of the cone axis in degrees, used
+		 * only if <code>fan</code> is a cone.
+		 */
+		void reset(final float intensity, final RayFan fan, final float direction) {
+			this.intensity = intensity;
+			
+			if (fan.isCone()) {
+				final double rad = Math.toRadians(direction);
+				
+				axisX = (float) Math.cos(rad);
+				axisY = (float) Math.sin(rad);
+				coneAngle = fan.angles[fan.count - 1];
+			} else {
+				axisX = 1;
+				axisY = 0;
+				coneAngle = RayFan.HALF_TURN;
+			}
+			
+			segmentCount = 0;
+			startActionCount = 0;
+			pointCount = 0;
+			walkX = -1;
+			walkY = 0;
+			walkAngle = -RayFan.HALF_TURN;
+			visibilityTests = 0;
+			intersectionTests = 0;
 		}
-
-		public int compareTo(Object obj) {
-			if (getClass() != obj.getClass()) {
-				throw new ClassCastException("cannnot cast " + obj.getClass() + " to " + getClass());
+		
+		/**
+		 * Adds segment relative to the light source and expands it to
+		 * prevent possible holes (calculation inaccuracy) unless corners
+		 * are traced exactly. Segments outside of the cone are skipped.
+		 */
+		void addSegment(final float x1, final float y1, final float x2, final float y2) {
+			if (segmentCount == segments.length) {
+				final Segment[] grown = new Segment[segmentCount * 2];
+				System.arraycopy(segments, 0, grown, 0, segmentCount);
+				segments = grown;
+				
+				final float[] grownAngles = new float[grown.length * 2];
+				System.arraycopy(angles, 0, grownAngles, 0, segmentCount * 2);
+				angles = grownAngles;
+				
+				viewport = new int[grown.length * 2];
 			}
 			
-			final AngledPoint other = (AngledPoint) obj;
+			Segment segment = segments[segmentCount];
 			
-			if (angle < other.angle) {
-				return -1;
-			} else if (angle > other.angle) {
-				return +1;
+			if (segment == null) {
+				segment = new Segment(0, 0, 0, 0);
+				segments[segmentCount] = segment;
+			}
+			
+			if (coneAngle < RayFan.HALF_TURN) {
+				segment.x1 = x1 * axisX + y1 * axisY;
+				segment.y1 = y1 * axisX - x1 * axisY;
+				segment.x2 = x2 * axisX + y2 * axisY;
+				segment.y2 = y2 * axisX - x2 * axisY;
 			} else {
-				return 0;
+				segment.x1 = x1;
+				segment.y1 = y1;
+				segment.x2 = x2;
+				segment.y2 = y2;
+			}
+			
+			if (!exact) {
+				segment.resize(1.01f);
 			}
+			
+			final float angle1 = RayFan.pseudoAngle(segment.x1, segment.y1);
+			final float angle2 = RayFan.pseudoAngle(segment.x2, segment.y2);
+			
+			if (coneAngle < RayFan.HALF_TURN && !overlapsCone(segment, angle1, angle2)) {
+				return;
+			}
+			
+			angles[2 * segmentCount] = angle1;
+			angles[2 * segmentCount + 1] = angle2;
+			
+			++segmentCount;
 		}
 		
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (!super.equals(obj))
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			AngledPoint other = (AngledPoint) obj;
-			if (Float.floatToIntBits(angle) != Float
-					.floatToIntBits(other.angle))
-				return false;
-			return true;
+		/**
+		 * Tells if the angular range of segment with end points on
+		 * pseudo angles <code>angle1</code> and <code>angle2</code>
+		 * overlaps the cone from <code>-coneAngle</code> to
+		 * <code>coneAngle</code>.
+		 */
+		private boolean overlapsCone(final Segment segment, final float angle1, final float angle2) {
+			final float cross = segment.x1 * segment.y2 - segment.y1 * segment.x2;
+			
+			if (cross == 0) {
+				// collinear with light, keep if it can be on the cone
+				return angle1 != angle2 || Math.abs(angle1) <= coneAngle;
+			}
+			
+			// angles where the ray turning counter-clockwise enters and exits
+			final float enter = cross > 0 ? angle1 : angle2;
+			final float exit = cross > 0 ? angle2 : angle1;
+			
+			if (enter <= exit) {
+				return enter <= coneAngle && exit >= -coneAngle;
+			}
+			
+			// segment crossing the negative x axis
+			return enter <= coneAngle || exit >= -coneAngle;
 		}
-
-		public int hashCode() {
-			final int prime = 31;
-			int result = super.hashCode();
-			result = prime * result + Float.floatToIntBits(angle);
-			return result;
+		
+		float getX(final int point) {
+			final Segment segment = segments[point >> 1];
+			return (point & 1) == 0 ? segment.x1 : segment.x2;
 		}
-
-		/*
-		 * @see java.lang.Object#toString()
-		 */
-		public String toString() {
-			return getClass().getSimpleName() + "[x=" + x + ",y=" + y + ",angle=" + angle + "]";
+		
+		float getY(final int point) {
+			final Segment segment = segments[point >> 1];
+			return (point & 1) == 0 ? segment.y1 : segment.y2;
 		}
-	}
-	
-//	private static final class ResistorSegment extends Segment {
-//		
-////		final LightResistor resistor;
-//
-//		public ResistorSegment(final LightResistor resistor, float x1, float y1, float x2, float y2) {
-//			super(x1, y1, x2, y2);
-////			this.resistor = resistor;
-//		}
-//		
-//	}
-	
-	public static final class Direction {
-		public static final int None = 1;
-		public static final int Left = 2;
-		public static final int Right = 3;
 		
-		private Direction() {
+		/**
+		 * Sorts the end points of all segments by angle.
+		 */
+		void buildViewport() {
+			final int pointCount = segmentCount * 2;
+			
+			for (int i = 0; i < pointCount; ++i) {
+				viewport[i] = i;
+			}
+			
+			Sorting.sort(viewport, angles, 0, pointCount);
 		}
-	}
-	
-	/**
-	 * Segment point that can tell the angle on which it residents.
-	 *
-	 */
-	static final class ViewportPoint extends AngledPoint {
-
-		final Segment segment;
-		ViewportPoint other;
 		
-		int hash = -1;
-
-		public ViewportPoint(final Segment segment, float x, float y) {
-			super(x, y);
-			this.segment = segment;
+		/**
+		 * Finds segments that are open on 180 angle.
+		 */
+		void findStartActions() {
+			border.x1 = 0;
+			border.y1 = 0;
+			border.x2 = -intensity;
+			border.y2 = 0;
+			
+			for (int i = 0; i < segmentCount; ++i) {
+				final Segment segment = segments[i];
+				
+				if (segment.intersects(border)) {
+					// if one point is on border segment and the other
+					// on the positive y half, then ignore this intersection
+					if (
+							segment.y1 == 0 && -segment.x1 <= intensity && segment.y2 >= 0 ||
+							segment.y2 == 0 && -segment.x2 <= intensity && segment.y1 >= 0
+							) {
+						continue;
+					}
+					
+					addStartAction(i);
+				}
+				
+				// check also if there are points that lies on the border segment
+				// then this can be a open actions too
+				else if (
+						segment.y1 == 0 && segment.x1 < 0 && -segment.x1 <= intensity && segment.y2 < 0 ||
+						segment.y2 == 0 && segment.x2 < 0 && -segment.x2 <= intensity && segment.y1 < 0
+						) {
+					addStartAction(i);
+				}
+			}
 		}
-
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (!super.equals(obj))
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			ViewportPoint other = (ViewportPoint) obj;
-			if (this.other == null) {
-				if (other.other != null)
+		
+		/**
+		 * Tells if the ray from light source to the point on pseudo
+		 * <code>angle</code> doesn't cross any segment open on this
+		 * angle.
+		 */
+		boolean isVisible(final float x, final float y, final float angle) {
+			++visibilityTests;
+			
+			ray.x2 = x;
+			ray.y2 = y;
+			
+			for (int i = 0; i < startActionCount; ++i) {
+				++intersectionTests;
+				
+				if (ray.intersects(segments[startActions[i]])) {
 					return false;
-			} else if (!this.other.equals(other.other))
-				return false;
-			if (segment == null) {
-				if (other.segment != null)
+				}
+			}
+			
+			// segments of points up to the first one behind the angle
+			final int pointCount = segmentCount * 2;
+			
+			for (int i = 0; i < pointCount; ++i) {
+				final int point = viewport[i];
+				
+				++intersectionTests;
+				
+				if (ray.intersects(segments[point >> 1])) {
 					return false;
-			} else if (!segment.equals(other.segment))
-				return false;
+				}
+				
+				if (angles[point] > angle) {
+					break;
+				}
+			}
+			
 			return true;
 		}
-
-		public int hashCode() {
+		
+		/**
+		 * Adds light geometry point if non-resistance ray
+		 * <code>part</code> of <code>fan</code> is visible.
+		 */
+		void tryPart(final RayFan fan, final int part) {
+			tryPoint(fan.x[part] * intensity, fan.y[part] * intensity, fan.angles[part]);
+		}
+		
+		/**
+		 * Adds light geometry points of non-resistance rays turned from
+		 * the last walked ray by the steps of <code>fan</code>, as long
+		 * as they are before pseudo <code>limit</code>. It stops before
+		 * the ray that would go past 180 degrees.
+		 */
+		void walk(final RayFan fan, final float limit) {
+			float x = walkX, y = walkY, angle = walkAngle;
 			
-			if (hash == -1) {
-				final int prime = 31;
-				hash = super.hashCode();
-				hash = prime * hash
-						+ ((segment == null) ? 0 : segment.hashCode());
+			while (true) {
+				final float nextX = x * fan.stepCos - y * fan.stepSin;
+				final float nextY = x * fan.stepSin + y * fan.stepCos;
+				final float nextAngle = RayFan.pseudoAngle(nextX, nextY);
+				
+				if (nextAngle <= angle || nextAngle >= limit) {
+					break;
+				}
+				
+				x = nextX;
+				y = nextY;
+				angle = nextAngle;
+				
+				tryPoint(x * intensity, y * intensity, angle);
 			}
 			
-			return hash;
+			walkX = x;
+			walkY = y;
+			walkAngle = angle;
 		}
-
 		
+		/**
+		 * Adds the rest of walked non-resistance rays up to 180 degrees
+		 * inclusive.
+		 */
+		void walkToEnd(final RayFan fan) {
+			walk(fan, RayFan.HALF_TURN);
+			
+			// the ray on 180 degrees can be on either side of x axis
+			// because of rounding
+			final float nextX = walkX * fan.stepCos - walkY * fan.stepSin;
+			final float nextY = walkX * fan.stepSin + walkY * fan.stepCos;
+			
+			if (nextX < 0 && Math.abs(nextY) < WALK_EPSILON) {
+				tryPoint(-intensity, 0, RayFan.HALF_TURN);
+			}
+		}
 		
-	}
-	
-	/**
-	 * Translates all given <code>resistors</code> to segments.
-	 * 
-	 * @param resistors The resistors to translate.
-	 * 
-	 * @return Segments of all resistors.
-	 */
-	static final List/*<Segment>*/ buildSegments(final List/*<LightResistor>*/ resistors, final LightSource source) {
-		final List/*<Segment>*/ result = new LinkedList();
+		/**
+		 * Starts the next walk from the point <code>(x, y)</code> on
+		 * pseudo <code>angle</code>.
+		 */
+		void walkFrom(final float x, final float y, final float angle) {
+			final float length = (float) Math.sqrt(x * x + y * y);
+			
+			if (length == 0) {
+				return;
+			}
+			
+			walkX = x / length;
+			walkY = y / length;
+			walkAngle = angle;
+		}
 		
-		for (final Iterator itor = resistors.iterator(); itor.hasNext();) {
-			final LightResistor resistor = (LightResistor) itor.next();
-			final Point2[] verticles = resistor.getVerticles();
+		/**
+		 * Adds light geometry point where ray <code>part</code> of
+		 * <code>fan</code> hits the nearest segment or the light range.
+		 * Used for cone borders that are always part of the geometry.
+		 */
+		void addBorder(final RayFan fan, final int part) {
+			final float dx = fan.x[part];
+			final float dy = fan.y[part];
 			
-			Point2 first = null, prev, next = null;
+			float distance = intensity;
 			
-			for (int i = 0; i < verticles.length; ++i) {
-				prev = next;
-				next = verticles[i];
+			for (int i = 0; i < segmentCount; ++i) {
+				final Segment segment = segments[i];
+				final float ex = segment.x2 - segment.x1;
+				final float ey = segment.y2 - segment.y1;
+				final float denominator = dx * ey - dy * ex;
+				
+				++intersectionTests;
 				
-				if (first == null) {
-					first = next;
+				if (denominator == 0) {
+					continue;
 				}
 				
-				if (prev != null) {
-					result.add(new Segment(prev, next));
+				final float t = (segment.x1 * ey - segment.y1 * ex) / denominator;
+				final float u = (segment.x1 * dy - segment.y1 * dx) / denominator;
+				
+				if (t >= 0 && t < distance && u >= 0 && u <= 1) {
+					distance = t;
 				}
 			}
 			
-			if (verticles.length >= 3) {
-				result.add(new Segment(next, first));
+			addPoint(dx * distance, dy * distance, fan.angles[part]);
+		}
+		
+		/**
+		 * Adds light geometry point if non-resistance ray turned from
+		 * the point <code>(x, y)</code> by <code>NEAR_ANGLE</code> is
+		 * visible.
+		 * 
+		 * @param sin Sinus of the turn, negative turns clockwise.
+		 */
+		void tryNear(final float x, final float y, final float sin) {
+			final float scale = intensity / (float) Math.sqrt(x * x + y * y);
+			final float rx = (x * NEAR_COS - y * sin) * scale;
+			final float ry = (x * sin + y * NEAR_COS) * scale;
+			final float angle = RayFan.pseudoAngle(rx, ry);
+			
+			if (Math.abs(angle) > coneAngle) {
+				// out of the cone
+				return;
 			}
+			
+			tryPoint(rx, ry, angle);
 		}
 		
-		return result;
-	}
-
-	static final List/*<ViewportPoint>*/ buildViewport(final LightSource source, final List/*<Segments>*/ segments) {
+		private void tryPoint(final float x, final float y, final float angle) {
+			if (exact ? trace(x, y) >= 0 : isVisible(x, y, angle)) {
+				addPoint(x, y, angle);
+			}
+		}
 		
-		// build viewport
-		final List/*<Float, ViewportPoint>*/ viewport = new LinkedList();
+		/**
+		 * Adds light geometry points of viewport <code>point</code> on
+		 * pseudo <code>angle</code> if it's visible and in the light
+		 * range. When all segments of the corner are on one side of the
+		 * ray, the ray goes past the corner to the next segment or the
+		 * light range and that point is added too, before or after the
+		 * corner as the angle goes.
+		 */
+		void addCorner(final int point, final float angle) {
+			final float x = getX(point);
+			final float y = getY(point);
+			final double lengthSquared = (double) x * x + (double) y * y;
+			
+			if (lengthSquared > (double) intensity * intensity) {
+				// the light range is made of non-resistance rays
+				return;
+			}
+			
+			double far = trace(x, y);
+			
+			if (far < 0) {
+				return;
+			}
+			
+			if (cornerLeft && cornerRight) {
+				// ray hits the corner from outside
+				addPoint(x, y, angle);
+				return;
+			}
+			
+			far = Math.min(far, intensity / Math.sqrt(lengthSquared));
+			
+			final float farX = (float) (x * far);
+			final float farY = (float) (y * far);
+			
+			// both points have the same angle, so they stay in this order
+			if (cornerLeft) {
+				addPoint(farX, farY, angle);
+				addPoint(x, y, angle);
+			} else {
+				addPoint(x, y, angle);
+				addPoint(farX, farY, angle);
+			}
+		}
 		
-		// get all points from segments
-		for (final Iterator itor = segments.iterator(); itor.hasNext();) {
-			final Segment segment = (Segment) itor.next();
+		/**
+		 * Traces the ray from light source thru the point. Orientations
+		 * of float points are computed in double precision where their
+		 * sign is exact, so segments don't have to be expanded. The ray
+		 * crosses segment if its end points are on different sides of
+		 * the ray, the ones lying on the ray are on the left. Segments
+		 * having the point as their end point don't cross the ray, they
+		 * are reported in {@link #cornerLeft} and {@link #cornerRight}
+		 * instead.
+		 * 
+		 * @return <code>-1</code> if the ray crosses a segment before the
+		 * point, otherwise the nearest crossing as multiple of the point
+		 * distance or {@link Double#POSITIVE_INFINITY}.
+		 */
+		double trace(final float x, final float y) {
+			++visibilityTests;
 			
-			final ViewportPoint point1 = new ViewportPoint(segment, segment.x1, segment.y1);
-			final ViewportPoint point2 = new ViewportPoint(segment, segment.x2, segment.y2);
+			cornerLeft = false;
+			cornerRight = false;
 			
-			point1.other = point2;
-			point2.other = point1;
+			double far = Double.POSITIVE_INFINITY;
 			
-			viewport.add(point1);
-			viewport.add(point2);
+			for (int i = 0; i < segmentCount; ++i) {
+				final Segment segment = segments[i];
+				final double px = segment.x1, py = segment.y1;
+				final double qx = segment.x2, qy = segment.y2;
+				
+				++intersectionTests;
+				
+				if (px == x && py == y || qx == x && qy == y) {
+					final double side = px == x && py == y ? x * qy - y * qx : x * py - y * px;
+					
+					if (side > 0) {
+						cornerLeft = true;
+					} else if (side < 0) {
+						cornerRight = true;
+					}
+					
+					continue;
+				}
+				
+				// sides of segment end points
+				final double side1 = x * py - y * px;
+				final double side2 = x * qy - y * qx;
+				
+				if ((side1 >= 0) == (side2 >= 0)) {
+					continue;
+				}
+				
+				// sides of the light source and the point
+				final double ex = qx - px, ey = qy - py;
+				final double lightSide = ex * -py - ey * -px;
+				final double pointSide = ex * (y - py) - ey * (x - px);
+				
+				if (lightSide == 0) {
+					// segment goes thru the light source
+					continue;
+				}
+				
+				if (lightSide > 0 ? pointSide < 0 : pointSide > 0) {
+					return -1;
+				}
+				
+				// crossing on the point or behind it, unless it's behind
+				// the light source
+				final double t = lightSide / (lightSide - pointSide);
+				
+				if (t >= 1 && t < far) {
+					far = t;
+				}
+			}
+			
+			return far;
 		}
 		
-		return viewport;
+		void addPoint(final float x, final float y, final float angle) {
+			if (pointCount == pointAngles.length) {
+				final int capacity = pointCount * 2;
+				
+				final float[] grownPoints = new float[capacity * 2];
+				System.arraycopy(points, 0, grownPoints, 0, pointCount * 2);
+				points = grownPoints;
+				
+				final float[] grownAngles = new float[capacity];
+				System.arraycopy(pointAngles, 0, grownAngles, 0, pointCount);
+				pointAngles = grownAngles;
+				
+				pointOrder = new int[capacity];
+			}
+			
+			points[2 * pointCount] = x;
+			points[2 * pointCount + 1] = y;
+			pointAngles[pointCount] = angle;
+			++pointCount;
+		}
 		
-	}
-	
-	static final float getAngleDifference(final float from, final float to) {
-		final float transCurrent = to - from;
+		/**
+		 * Sorts light geometry points by angle and removes the
+		 * duplicates.
+		 */
+		void sortPoints() {
+			for (int i = 0; i < pointCount; ++i) {
+				pointOrder[i] = i;
+			}
+			
+			Sorting.sort(pointOrder, pointAngles, 0, pointCount);
+			
+			int count = 0;
+			int groupStart = 0;
+			
+			for (int i = 0; i < pointCount; ++i) {
+				final int point = pointOrder[i];
+				
+				if (count > 0 && pointAngles[pointOrder[count - 1]] != pointAngles[point]) {
+					groupStart = count;
+				}
+				
+				if (!isDuplicate(point, groupStart, count)) {
+					pointOrder[count++] = point;
+				}
+			}
+			
+			pointCount = count;
+		}
 		
-		if (transCurrent > 180.0f) {
-			return -180.0f + (transCurrent - 180.0f);
-		} else if (transCurrent < -180.0f) {
-			return 180.0f + (transCurrent + 180.0f);
+		/**
+		 * Checks if the same point is already in sorted points from
+		 * <code>from</code> to <code>to</code>.
+		 */
+		private boolean isDuplicate(final int point, final int from, final int to) {
+			final float x = points[2 * point];
+			final float y = points[2 * point + 1];
+			
+			for (int i = from; i < to; ++i) {
+				final int other = pointOrder[i];
+				
+				if (points[2 * other] == x && points[2 * other + 1] == y) {
+					return true;
+				}
+			}
+			
+			return false;
 		}
 		
-		return transCurrent;
+		private void addStartAction(final int segment) {
+			if (startActionCount == startActions.length) {
+				final int[] grown = new int[startActionCount * 2];
+				System.arraycopy(startActions, 0, grown, 0, startActionCount);
+				startActions = grown;
+			}
+			
+			startActions[startActionCount++] = segment;
+		}
 	}
 	
-	static final int getDirection(final float lastAngle, final float currentAngle) {
-		return (getAngleDifference(lastAngle, currentAngle) > 0) ? Direction.Left : Direction.Right;
+	/**
+	 * See {@link #setExactCorners(boolean)}
+	 * 
+	 * @return <code>true</code> if corners are traced exactly.
+	 */
+	public boolean isExactCorners() {
+		return exactCorners;
 	}
 	
-	static final boolean isVisible(final ViewportPoint point, final List viewport, final List/*ViewportPoint*/ openActions) {
-		// make copy of actions
-		final Set/*<ViewportPoint>*/ actions = new HashSet(openActions);
-		
-		for (final Iterator itor = viewport.iterator(); itor.hasNext();) {
-			final ViewportPoint vp = (ViewportPoint) itor.next();
+	/**
+	 * Enables exact tracing of resistor corners. By default every
+	 * visible corner is tested with two more rays turned by
+	 * <code>0.01</code> degree to both sides, and segments are expanded
+	 * by one percent to hide holes between them made by calculation
+	 * inaccuracy. Exact tracing uses orientation of points which sign
+	 * is always correct, so one ray per corner goes past it to the next
+	 * segment and segments are not expanded. Each corner adds at most
+	 * two points that lie exactly on the shadow edges.
+	 * Like in the default mode crossings of overlapping resistors are
+	 * not traced, use {@link SweepLightAlgorithm} for such scenes.
+	 * <p>
+	 * By default exact tracing is disabled.
+	 * 
+	 * @param exactCorners <code>true</code> to trace corners exactly.
+	 */
+	public void setExactCorners(boolean exactCorners) {
+		this.exactCorners = exactCorners;
+		clearCache();
+	}
 
+	/*
+	 * @see pl.graniec.coralreef.light2d.AbstractLightingAlgorithm#computeRays(pl.graniec.coralreef.light2d.LightSource)
+	 */
+	protected Geometry computeRays(final LightSource source) {
+		final LightingContext context = LightingContext.current();
+		final Workspace workspace = compute(source, context);
+		final float[] points = workspace.points;
+		final float axisX = workspace.axisX, axisY = workspace.axisY;
+		final long time = context.stats != null ? System.nanoTime() : 0;
+		
+		final Geometry light = new Geometry();
+		
+		for (int i = 0; i < workspace.pointCount; ++i) {
+			final int point = workspace.pointOrder[i];
+			final float x = points[2 * point], y = points[2 * point + 1];
 			
-			if (!actions.add(vp)) {
-				System.err.println("" + vp + " already in actions list");
-				continue;
-			}
-			
-			if (vp.angle > point.angle) {
-				// this is the break point
-				// where intersection should be checked
-				break;
-			}
-			
-			actions.remove(vp.other);
-			
+			light.addVerticle(new Point2(x * axisX - y * axisY + source.x, x * axisY + y * axisX + source.y));
 		}
 		
-		// check intersection with all segments
-		final Segment checkedSegment = new Segment(0, 0, point.x, point.y);
+		if (context.stats != null) {
+			context.stats.endPhase(LightingStats.Phase.OUTPUT, time);
+		}
 		
-		for (final Iterator itor = actions.iterator(); itor.hasNext();) {
-			final Segment otherSegment = ((ViewportPoint) itor.next()).segment;
+		return light;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.AbstractLightingAlgorithm#computeRays(pl.graniec.coralreef.light2d.LightSource, pl.graniec.coralreef.light2d.LightingContext, float[], int)
+	 */
+	protected int computeRays(final LightSource source, final LightingContext context, final float[] out, final int offset) {
+		final Workspace workspace = compute(source, context);
+		final float[] points = workspace.points;
+		final float axisX = workspace.axisX, axisY = workspace.axisY;
+		final int count = Math.min(workspace.pointCount, (out.length - offset) / 2);
+		final long time = context.stats != null ? System.nanoTime() : 0;
+		
+		for (int i = 0; i < count; ++i) {
+			final int point = workspace.pointOrder[i];
+			final float x = points[2 * point], y = points[2 * point + 1];
 			
-			if (checkedSegment.intersects(otherSegment)) {
-				return false;
-			}
+			out[offset + 2 * i] = x * axisX - y * axisY + source.x;
+			out[offset + 2 * i + 1] = x * axisY + y * axisX + source.y;
+		}
+		
+		if (context.stats != null) {
+			context.stats.endPhase(LightingStats.Phase.OUTPUT, time);
 		}
 		
-		return true;
+		return workspace.pointCount;
 	}
 	
+	/**
+	 * Adds non-resistance ray <code>part</code> of <code>fan</code> to
+	 * the light geometry. Cone borders are added even if they are not
+	 * visible, so the geometry is closed along them.
+	 */
+	private static void tryPart(final Workspace workspace, final RayFan fan, final int part) {
+		if (fan.isCone() && (part == 0 || part == fan.count - 1)) {
+			workspace.addBorder(fan, part);
+		} else {
+			workspace.tryPart(fan, part);
+		}
+	}
 	
-	/*
-	 * @see pl.graniec.coralreef.light2d.AbstractLightingAlgorithm#createRays(pl.graniec.coralreef.light2d.LightSource)
+	/**
+	 * Computes the light geometry in workspace of <code>context</code>.
+	 * 
+	 * @return The workspace with sorted light geometry points relative
+	 * to light source.
 	 */
-	public Geometry createRays(final LightSource source) {
+	private Workspace compute(final LightSource source, final LightingContext context) {
+		final Workspace workspace = context.getSimple();
+		final RayFan fan = getRayFan(source, context);
+		workspace.reset(source.intensity, fan,
+				source instanceof SpotLightSource ? ((SpotLightSource) source).direction : 0);
+		workspace.exact = exactCorners;
+		
+		final LightingStats stats = context.stats;
+		long time = stats != null ? System.nanoTime() : 0;
 		
 		// build resistors list that can make the shadow (its near light source)
-		final List/*<LightResistor>*/ nearResistors = determineNearResistors(source);
+		final List/*<LightResistor>*/ nearResistors = context.nearResistors;
+		nearResistors.clear();
+		findNearResistors(source, nearResistors);
 		
-		// build segments from this resistors
-		final List/*<Segment>*/ segments = buildSegments(nearResistors, source);
+		if (stats != null) {
+			time = stats.endPhase(LightingStats.Phase.QUERY, time);
+			stats.nearResistors = nearResistors.size();
+		}
 		
-		// translate them to be relative to light source
-		makeRelative(segments, source);
+		// build segments from this resistors relative to light source
+		final int edgeCount = collectEdges(source, context);
+		final float[] edges = context.edges;
 		
-		// expand all segments to prevent possible holes (calculation inaccuracy)
-		expandSegments(segments);
+		for (int i = 0; i < edgeCount * 4; i += 4) {
+			workspace.addSegment(edges[i], edges[i + 1], edges[i + 2], edges[i + 3]);
+		}
+		
+		if (stats != null) {
+			time = stats.endPhase(LightingStats.Phase.BUILD, time);
+		}
 		
 		// Create one dimensional axis with left and right side point of a
 		// resistor like this:
@@ -325,228 +793,96 @@ public class SimpleLightAlgorithm extends AbstractLightingAlgorithm {
 		// The resistors bounding points exists in resistor geomery as one
 		// of its verticles.
 		
-		final List viewport/*<ViewportPoint>*/ = buildViewport(source, segments);
-		
 		// its very important to have this viewport sorted
-		Collections.sort(viewport);
-		
-		// get the actions that are open on 180 angle
-		final List/*<ViewportPoint>*/ startActions = getStartActions(segments, source, viewport); 
+		workspace.buildViewport();
 		
-		// go thru all points and create a light geometry
-		// but first create a hash set to remove duplicates
-		final Set/*<AngledPoint>*/ points = new HashSet();
-		final float delta = 360f / partsNum;
-		float position = -180f;
-		
-		for (final Iterator itor = viewport.iterator(); itor.hasNext();) {
-			final ViewportPoint point = (ViewportPoint) itor.next();
-		
-			// non-resistance rays
-			while (point.angle - position > delta) {
-				position += delta;
-				tryPoint(position, source, points, viewport, startActions);
-			}
-			
-			if (isVisible(point, viewport, startActions)) {
-				tryPoint(point.angle - 0.01f, source, points, viewport, startActions);
-				points.add(new AngledPoint(point.x, point.y));
-				tryPoint(point.angle + 0.01f, source, points, viewport, startActions);
-			}
-			
-			position = point.angle;
+		if (stats != null) {
+			time = stats.endPhase(LightingStats.Phase.SORT, time);
 		}
 		
-		// end non-resistance rays
-		while (position + delta <= 180f) {
-			position += delta;
-			tryPoint(position, source, points, viewport, startActions);
-		}
-		
-		final Geometry light = new Geometry();
-		
-		final List pointList/*<AngledPoint>*/ = new LinkedList(points);
-		Collections.sort(pointList);
+		// get the actions that are open on 180 angle
+		workspace.findStartActions();
 		
-		for (final Iterator itor = pointList.iterator(); itor.hasNext();) {
-			final Point2 p = (Point2) itor.next();
-			light.addVerticle(new Point2(p.x + source.x, p.y + source.y));
+		if (stats != null) {
+			time = stats.endPhase(LightingStats.Phase.PREPARE, time);
 		}
 		
-		return light;
-	}
-	
-	/**
-	 * Creates a list of resistors that can create shadow (they're in
-	 * light distance).
-	 */
-	private List/*<LightResistor>*/ determineNearResistors(final LightSource source) {
-		
-		final List result = new LinkedList();
-		
-		Box2 bbox;
-		
-		float diagonal;
-		float distance, distanceMin;
-		Point2 otherVerticles[] = new Point2[3];
-		boolean foundOther;
-		
-		for (final Iterator itor = resistors.iterator(); itor.hasNext();) {
-			final LightResistor r = (LightResistor) itor.next();
-			bbox = r.getBoundingBox();
-			diagonal = bbox.diagonal();
+		// go thru all points and create a light geometry
+		final int[] viewport = workspace.viewport;
+		final float[] angles = workspace.angles;
+		final int pointCount = workspace.segmentCount * 2;
+		final float coneAngle = workspace.coneAngle;
+		// non-resistance rays of full circle are walked from the last
+		// viewport point, cones have their fixed fan
+		final boolean walk = !fan.isCone();
+		int part = 0;
+		
+		if (coneAngle < RayFan.HALF_TURN) {
+			// cone starts at the light source, before all other points
+			workspace.addPoint(0, 0, -RayFan.HALF_TURN);
+		}
 		
-			distance = Segment.length(bbox.left, bbox.top, source.x, source.y);
-			
-			// get the minimal possible distance
-			distanceMin = distance - diagonal;
+		for (int i = 0; i < pointCount; ++i) {
+			final int point = viewport[i];
+			final float angle = angles[point];
 			
-			if (distanceMin > source.intensity) {
-				// this resistor is far away of the light
+			if (angle < -coneAngle) {
+				// before the cone, still used for visibility
 				continue;
 			}
 			
-			if (distance <= source.intensity) {
-				// this is most probably in light radius
-				result.add(r);
-				continue;
+			if (angle > coneAngle) {
+				break;
 			}
 			
-			// check the other 3 bounding verticles
-			otherVerticles[0] = new Point2(bbox.right, bbox.top);
-			otherVerticles[1] = new Point2(bbox.right, bbox.bottom);
-			otherVerticles[2] = new Point2(bbox.left, bbox.bottom);
-			
-			foundOther = false;
-			
-			for (int i = 0; i < otherVerticles.length; ++i) {
-				final Point2 p = otherVerticles[i];
-				distance = Segment.length(p.x, p.y, source.x, source.y);
-				
-				if (distance <= source.intensity) {
-					foundOther = true;
-					break;
+			final float x = workspace.getX(point);
+			final float y = workspace.getY(point);
+		
+			// non-resistance rays
+			if (walk) {
+				workspace.walk(fan, angle);
+			} else {
+				while (part < fan.count && fan.angles[part] < angle) {
+					tryPart(workspace, fan, part++);
 				}
 			}
 			
-			if (foundOther) {
-				result.add(r);
+			if (workspace.exact) {
+				workspace.addCorner(point, angle);
+			} else if (workspace.isVisible(x, y, angle)) {
+				workspace.tryNear(x, y, -NEAR_SIN);
+				workspace.addPoint(x, y, angle);
+				workspace.tryNear(x, y, NEAR_SIN);
 			}
-		}
-		
-		return result;
-		
-	}
-
-	private void expandSegments(final List/*<Segment>*/ segments) {
-		for (final Iterator itor = segments.iterator(); itor.hasNext();) {
-			final Segment segment = (Segment) itor.next();
-			segment.resize(1.01f);
-		}
-	}
-
-	/**
-	 * Gets the segment point <code>point1</code> from viewport.
-	 * The segment must be build from <code>point1</code> to <code>point2</code>
-	 * but only the first one is wanted.
-	 */
-	private ViewportPoint getPoint(final Point2 point1, final Point2 point2, final List viewport) {
-		for (final Iterator itor = viewport.iterator(); itor.hasNext();) {
-			final ViewportPoint vp = (ViewportPoint) itor.next();
-			final Segment segment = vp.segment;
-			
-			if (
-					point1.x == segment.x1 &&
-					point1.y == segment.y1 &&
-					point2.x == segment.x2 &&
-					point2.y == segment.y2
-					||
-					point2.x == segment.x1 &&
-					point2.y == segment.y1 &&
-					point1.x == segment.x2 &&
-					point1.y == segment.y2
-					) {
-				return new ViewportPoint(segment, point1.x, point1.y);
-			}
-			
 			
+			workspace.walkFrom(x, y, angle);
 		}
 		
-		throw new RuntimeException("Point " + point1 + " and " + point2 + " as a segment not found");
-	}
-
-	private List/*<ViewportPoint>*/ getStartActions(final List/*<Segment*/ segments, final LightSource source, final List/*<ViewportPoint>*/ viewport) {
-		
-		final List/*<ViewportPoint>*/ startActions = new LinkedList();
-		
-		final Segment borderSegment = new Segment(0, 0, -source.intensity, 0);
-		
-		for (final Iterator itor = segments.iterator(); itor.hasNext();) {
-			final Segment segment = (Segment) itor.next();
-			
-			if (segment.intersects(borderSegment)) {
-				// if one point is on border segment and the other
-				// on the positive y half, then ignore this intersection
-				if (
-						segment.y1 == 0 && -segment.x1 <= source.intensity && segment.y2 >= 0 ||
-						segment.y2 == 0 && -segment.x2 <= source.intensity && segment.y1 >= 0
-						) {
-					continue;
-				}
-				
-				// got intersection. Get point with y >= 0
-				ViewportPoint vp;
-				
-				if (segment.y1 >= 0) {
-					vp = getPoint(new Point2(segment.x1, segment.y1), new Point2(segment.x2, segment.y2), viewport);
-				} else {
-					vp = getPoint(new Point2(segment.x2, segment.y2), new Point2(segment.x1, segment.y1), viewport);
-				}
-				
-				startActions.add(vp);
-			}
-			
-			// check also if there are points that lies on the border segment
-			// then this can be a open actions too
-			else if (segment.y1 == 0 && segment.x1 < 0 && -segment.x1 <= source.intensity && segment.y2 < 0) {
-				startActions.add(getPoint(new Point2(segment.x1, segment.y1), new Point2(segment.x2, segment.y2), viewport));
-			}
-			else if (segment.y2 == 0 && segment.x2 < 0 && -segment.x2 <= source.intensity && segment.y1 < 0) {
-				startActions.add(getPoint(new Point2(segment.x2, segment.y2), new Point2(segment.x1, segment.y1), viewport));
+		// end non-resistance rays
+		if (walk) {
+			workspace.walkToEnd(fan);
+		} else {
+			while (part < fan.count) {
+				tryPart(workspace, fan, part++);
 			}
 		}
 		
-		return startActions;
-	}
-
-	private void makeRelative(final List segments, final LightSource source) {
-		for (final Iterator itor = segments.iterator(); itor.hasNext();) {
-			final Segment segment = (Segment) itor.next();
-			
-			segment.x1 -= source.x;
-			segment.x2 -= source.x;
-			segment.y1 -= source.y;
-			segment.y2 -= source.y;
+		if (stats != null) {
+			time = stats.endPhase(LightingStats.Phase.SWEEP, time);
 		}
-	}
-
-	private void tryPoint(
-			final float angle,
-			final LightSource source,
-			final Set/*<Point2>*/ points,
-			final List/*<ViewportPoint>*/ viewport,
-			final List/*<ViewportPoint>*/ openActions) {
-	
-		final float rad = (float) Math.toRadians(angle);
 		
-		final float x = (float) Math.cos(rad) * source.intensity;
-		final float y = (float) Math.sin(rad) * source.intensity;
+		// sort points and remove duplicates
+		workspace.sortPoints();
 		
-		final ViewportPoint point = new ViewportPoint(null, x, y);
-		
-		if (isVisible(point, viewport, openActions)) {
-			points.add(new AngledPoint(point.x, point.y));
+		if (stats != null) {
+			stats.endPhase(LightingStats.Phase.OUTPUT, time);
+			
+			stats.segments = workspace.segmentCount;
+			stats.visibilityTests = workspace.visibilityTests;
+			stats.intersectionTests = workspace.intersectionTests;
+			stats.outputVerticles = workspace.pointCount;
 		}
+		
+		return workspace;
 	}
-
 }
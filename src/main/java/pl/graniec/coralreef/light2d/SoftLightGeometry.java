@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import pl.graniec.coralreef.geometry.Geometry;
+
+/**
+ * Approximate geometry of {@link AreaLightSource} made of the polygon
+ * where the whole light disc is visible and penumbra fans around
+ * shadow edges, see
+ * {@link SweepLightAlgorithm#createApproximateSoftRays(AreaLightSource)}.
+ * <p>
+ * Each penumbra triangle starts at a silhouette verticle of a resistor
+ * and spreads between the tangents from both sides of the light disc.
+ * Every triangle verticle has the fraction of the disc that is visible
+ * from there, from <code>0</code> on the umbra side to <code>1</code>
+ * on the lit side, where the fan touches the polygon. Fans end at the
+ * resistors behind the silhouette. So a renderer draws the polygon with
+ * full light and adds the light scaled by the coverage inside of the
+ * fans.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class SoftLightGeometry {
+	
+	/** Floats per triangle, x, y and coverage of three verticles */
+	public static final int TRIANGLE_SIZE = 9;
+	
+	private final Geometry light;
+	private final float[] penumbra;
+	
+	SoftLightGeometry(final Geometry light, final float[] penumbra) {
+		this.light = light;
+		this.penumbra = penumbra;
+	}
+	
+	/**
+	 * @return Polygon where the whole light disc is visible.
+	 */
+	public Geometry getLight() {
+		return light;
+	}
+	
+	/**
+	 * @return Penumbra triangles as x, y, coverage of each verticle,
+	 * see {@link #TRIANGLE_SIZE}.
+	 */
+	public float[] getPenumbra() {
+		return penumbra;
+	}
+	
+	/**
+	 * @return Number of penumbra triangles.
+	 */
+	public int getPenumbraTriangleCount() {
+		return penumbra.length / TRIANGLE_SIZE;
+	}
+}
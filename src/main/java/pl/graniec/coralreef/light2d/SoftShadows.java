@@ -0,0 +1,622 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * Builds {@link SoftLightGeometry} from the sweep of the disc center
+ * that has recorded its shadow steps. Every step has a silhouette
+ * verticle <code>v</code> and the side where light goes on. Light disc
+ * seen from <code>v</code> spans the angle <code>2 * half</code>, so
+ * the whole disc is visible only on the far side of the inner tangent,
+ * the line thru <code>v</code> rotated by <code>half</code> from the
+ * center ray towards the lit side.
+ * <p>
+ * The center polygon is clipped by the inner tangent of each step
+ * between the center ray and the tangent, which leaves the fully lit
+ * polygon. If a point of the polygon next to <code>v</code> sticks out
+ * across the tangent, like the far end of an edge nearly parallel to
+ * the center ray, the tangent goes thru that point instead.
+ * <p>
+ * The penumbra fan of each step spreads from <code>v</code> between
+ * both tangents and every fan ray ends at the first edge of the sweep
+ * it hits, so walls behind the silhouette cut the fans. Sweep edges
+ * are put to buckets by pseudo angle, a fan is within the tangent
+ * angle from its center ray, so it tests only the edges of few
+ * buckets. Shadows of other resistors overlapping a fan are not
+ * accounted for.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class SoftShadows {
+	
+	/** Number of triangles of each penumbra fan */
+	private static final int PENUMBRA_PARTS = 4;
+	/** Pseudo angle difference treated as inaccuracy */
+	private static final float ANGLE_EPSILON = 1e-5f;
+	/** Fraction of verticle distance treated as touching the verticle */
+	private static final float DISTANCE_EPSILON = 1e-4f;
+	/** Number of pseudo angle ranges the sweep edges are put to */
+	private static final int BUCKETS = 64;
+	
+	/**
+	 * Offset of the chord cutting the disc along each fan ray, as
+	 * fraction of radius from the shadow side to the lit side. Rays are
+	 * spread evenly by the offsets, so every fan has the same coverage
+	 * on each ray.
+	 */
+	private static final float[] OFFSETS = new float[PENUMBRA_PARTS + 1];
+	/** Visible part of the disc on each fan ray */
+	private static final float[] COVERAGES = new float[PENUMBRA_PARTS + 1];
+	
+	static {
+		for (int i = 0; i <= PENUMBRA_PARTS; ++i) {
+			OFFSETS[i] = 2f * i / PENUMBRA_PARTS - 1;
+			COVERAGES[i] = discCoverage(OFFSETS[i]);
+		}
+	}
+	
+	private final SweepLightAlgorithm.Sweep sweep;
+	private final float radius;
+	
+	/** Fully lit polygon as x, y pairs relative to the light */
+	private float[] polygon;
+	private int count;
+	
+	/**
+	 * Offset of polygon indices of the points before the last splice
+	 * from their sweep output indices
+	 */
+	private int offset;
+	
+	/** Replacement of the clipped part of polygon */
+	private float[] chain = new float[16];
+	private int chainCount;
+	
+	/** Penumbra triangles relative to the light */
+	private float[] penumbra = new float[SoftLightGeometry.TRIANGLE_SIZE * PENUMBRA_PARTS * 8];
+	private int size;
+	
+	/** Unit direction and length of each ray of current fan */
+	private final float[] rayX = new float[PENUMBRA_PARTS + 1], rayY = new float[PENUMBRA_PARTS + 1];
+	private final float[] reach = new float[PENUMBRA_PARTS + 1];
+	
+	/**
+	 * Sweep edges of each pseudo angle range, edges of bucket
+	 * <code>b</code> are from <code>bucketStart[b]</code> to
+	 * <code>bucketStart[b + 1]</code>, built with the first fan
+	 */
+	private int[] bucketStart, bucketEdges;
+	/** Number of the last fan that has tested each edge */
+	private int[] taken;
+	/** Number of current fan */
+	private int fan;
+	
+	// silhouette verticle of current step, unit direction of the center
+	// ray, unit normal towards the lit side and the inner tangent
+	private float vx, vy, distance;
+	private float ux, uy, wx, wy;
+	/** Side of the center ray where light goes on, see {@link SweepLightAlgorithm.Sweep#stepSides} */
+	private int litSide;
+	/** Cosine and sine of the angle between the center ray and tangents */
+	private float cos, sin;
+	/** Pseudo angle of the tangent measured from the center ray */
+	private float tangentAngle;
+	
+	SoftShadows(final SweepLightAlgorithm.Sweep sweep, final float radius) {
+		this.sweep = sweep;
+		this.radius = radius;
+	}
+	
+	/**
+	 * @param x Position of the light.
+	 * @param y Position of the light.
+	 * 
+	 * @return Soft light geometry of the sweep.
+	 */
+	SoftLightGeometry create(final float x, final float y) {
+		final SweepLightAlgorithm.Sweep sweep = this.sweep;
+		
+		count = sweep.outputCount;
+		polygon = new float[count * 2 + 16];
+		System.arraycopy(sweep.output, 0, polygon, 0, count * 2);
+		
+		// from the last step, so the points of the next steps don't move
+		for (int k = sweep.stepCount - 1; k >= 0; --k) {
+			final int point = sweep.stepPoints[k];
+			final int side = sweep.stepSides[k];
+			
+			if (!aim(sweep.output[2 * point], sweep.output[2 * point + 1], side)) {
+				continue;
+			}
+			
+			addFan();
+			
+			clip(step(pivot(point, side), offset), side);
+		}
+		
+		final Geometry light = new Geometry();
+		
+		for (int i = 0; i < count; ++i) {
+			light.addVerticle(new Point2(polygon[2 * i] + x, polygon[2 * i + 1] + y));
+		}
+		
+		final float[] exact = new float[size];
+		
+		for (int i = 0; i < size; i += 3) {
+			exact[i] = penumbra[i] + x;
+			exact[i + 1] = penumbra[i + 1] + y;
+			exact[i + 2] = penumbra[i + 2];
+		}
+		
+		return new SoftLightGeometry(light, exact);
+	}
+	
+	/**
+	 * Sets the silhouette verticle with light on its <code>side</code>.
+	 * 
+	 * @return <code>false</code> if the verticle is inside of the disc.
+	 */
+	private boolean aim(final float x, final float y, final int side) {
+		final float distance = (float) Math.sqrt(x * x + y * y);
+		
+		if (distance <= radius) {
+			return false;
+		}
+		
+		vx = x;
+		vy = y;
+		this.distance = distance;
+		litSide = side;
+		
+		ux = x / distance;
+		uy = y / distance;
+		wx = -uy * side;
+		wy = ux * side;
+		sin = radius / distance;
+		cos = (float) Math.sqrt(1 - sin * sin);
+		tangentAngle = RayFan.pseudoAngle(cos, sin);
+		
+		return true;
+	}
+	
+	/**
+	 * Moves the inner tangent to the point that sticks out the most of
+	 * the sweep output on the shadow side of the silhouette verticle.
+	 * Edge nearly parallel to the center ray hides more of the disc
+	 * with its other end than the silhouette verticle does. Only the
+	 * points across the inner tangent, in the strip along the center
+	 * ray as wide as the disc, can stick out.
+	 * 
+	 * @return Output index of the point the tangent goes thru.
+	 */
+	private int pivot(final int point, final int side) {
+		final float[] output = sweep.output;
+		final int n = sweep.outputCount;
+		int pivot = point;
+		
+		for (int k = 1, i = point; k < n; ++k) {
+			i = (i - side + n) % n;
+			
+			final float x = output[2 * i], y = output[2 * i + 1];
+			
+			if (ux * x + uy * y <= 0 || -(wx * x + wy * y) > radius / cos) {
+				break;
+			}
+			
+			if (side(x, y) > distance * DISTANCE_EPSILON && aim(x, y, side)) {
+				pivot = i;
+			}
+		}
+		
+		return pivot;
+	}
+	
+	/**
+	 * Gets the part of disc area on one side of a chord.
+	 * 
+	 * @param h Distance of the disc center from the chord as fraction of
+	 * radius, positive when the center is on the measured side.
+	 */
+	static float discCoverage(final double h) {
+		final double c = Math.max(-1, Math.min(1, h));
+		return (float) (1 - (Math.acos(c) - c * Math.sqrt(1 - c * c)) / Math.PI);
+	}
+	
+	/**
+	 * Clips the polygon by the inner tangent between the center ray and
+	 * the tangent. The polygon is walked in <code>direction</code>,
+	 * that is towards the lit side.
+	 * 
+	 * @param hint Index of polygon point where the search of the center
+	 * ray starts.
+	 */
+	private void clip(final int hint, final int direction) {
+		final int n = count;
+		int start = -1;
+		
+		if (n < 3) {
+			return;
+		}
+		
+		// the first point not before the center ray, looked for around
+		// the hint in both directions
+		for (int k = 0; k < n; ++k) {
+			final int i = step(hint, (k & 1) == 0 ? k / 2 : -(k / 2 + 1));
+			
+			if (angle(i) >= -ANGLE_EPSILON && angle(step(i, -direction)) < -ANGLE_EPSILON) {
+				start = i;
+				break;
+			}
+		}
+		
+		if (start < 0) {
+			return;
+		}
+		
+		float x = polygon[2 * start], y = polygon[2 * start + 1];
+		int removed = 0;
+		
+		if (angle(start) > ANGLE_EPSILON) {
+			// polygon edge crosses the center ray, start at the crossing
+			final int previous = step(start, -direction);
+			final float px = polygon[2 * previous], py = polygon[2 * previous + 1];
+			final float a = wx * px + wy * py, b = wx * x + wy * y;
+			final float t = a / (a - b);
+			
+			x = px + (x - px) * t;
+			y = py + (y - py) * t;
+		} else {
+			++removed;
+		}
+		
+		chainCount = 0;
+		addChain(x, y);
+		
+		float lastSide = side(x, y);
+		
+		if (ux * x + uy * y > distance * (1 + DISTANCE_EPSILON)) {
+			// polygon is beyond the verticle on the center ray, go down
+			// to the verticle along the ray
+			addChain(vx, vy);
+		} else {
+			lastSide = Math.max(0, lastSide);
+		}
+		
+		int i = step(start, removed * direction);
+		
+		for (; removed < n; ++removed, i = step(i, direction)) {
+			final float cx = polygon[2 * i], cy = polygon[2 * i + 1];
+			final float a = angle(i);
+			final float s = side(cx, cy);
+			
+			if ((s >= 0) != (lastSide >= 0)) {
+				final float t = lastSide / (lastSide - s);
+				addChain(x + (cx - x) * t, y + (cy - y) * t);
+			}
+			
+			if (a < -ANGLE_EPSILON || a >= tangentAngle) {
+				// the first point after the tangent is on the lit side
+				break;
+			}
+			
+			if (s >= 0) {
+				addChain(cx, cy);
+			}
+			
+			x = cx;
+			y = cy;
+			lastSide = s;
+		}
+		
+		if (removed >= n) {
+			return;
+		}
+		
+		splice(direction > 0 ? start : start - removed + 1, removed, direction);
+	}
+	
+	/**
+	 * Replaces <code>removed</code> polygon points from <code>first</code>
+	 * by the chain, reversed if <code>direction</code> is negative.
+	 */
+	private void splice(int first, final int removed, final int direction) {
+		if (first < 0) {
+			first += count;
+		}
+		
+		if (first + removed > count) {
+			// the replaced points wrap around, rotate them to the front
+			final float[] rotated = new float[polygon.length];
+			
+			System.arraycopy(polygon, 2 * first, rotated, 0, 2 * (count - first));
+			System.arraycopy(polygon, 0, rotated, 2 * (count - first), 2 * first);
+			
+			polygon = rotated;
+			offset += count - first;
+			first = 0;
+		}
+		
+		final int newCount = count - removed + chainCount;
+		
+		if (newCount * 2 > polygon.length) {
+			final float[] grown = new float[newCount * 4];
+			System.arraycopy(polygon, 0, grown, 0, count * 2);
+			polygon = grown;
+		}
+		
+		System.arraycopy(polygon, 2 * (first + removed), polygon, 2 * (first + chainCount), 2 * (count - first - removed));
+		
+		for (int k = 0; k < chainCount; ++k) {
+			final int c = direction > 0 ? k : chainCount - 1 - k;
+			
+			polygon[2 * (first + k)] = chain[2 * c];
+			polygon[2 * (first + k) + 1] = chain[2 * c + 1];
+		}
+		
+		if (first == 0) {
+			// the points before the splice are after it now
+			offset += chainCount - removed;
+		}
+		
+		count = newCount;
+	}
+	
+	/**
+	 * Writes the penumbra fan of current step. Each ray ends at the
+	 * first sweep edge it hits or at the light range.
+	 */
+	private void addFan() {
+		final float length = sweep.intensity - distance;
+		
+		if (length <= 0) {
+			return;
+		}
+		
+		for (int i = 0; i <= PENUMBRA_PARTS; ++i) {
+			// sine of the angle from the center ray is the chord offset
+			// of the ray times sine of the tangent angle
+			final float raySin = sin * OFFSETS[i];
+			final float rayCos = (float) Math.sqrt(1 - raySin * raySin);
+			
+			rayX[i] = ux * rayCos + wx * raySin;
+			rayY[i] = uy * rayCos + wy * raySin;
+			reach[i] = length;
+		}
+		
+		clipFan();
+		
+		if (size + SoftLightGeometry.TRIANGLE_SIZE * PENUMBRA_PARTS > penumbra.length) {
+			final float[] grown = new float[penumbra.length * 2];
+			System.arraycopy(penumbra, 0, grown, 0, size);
+			penumbra = grown;
+		}
+		
+		for (int i = 1; i <= PENUMBRA_PARTS; ++i) {
+			// apex takes the mean so coverage stays even across the fan part
+			penumbra[size++] = vx;
+			penumbra[size++] = vy;
+			penumbra[size++] = (COVERAGES[i - 1] + COVERAGES[i]) / 2;
+			penumbra[size++] = vx + rayX[i - 1] * reach[i - 1];
+			penumbra[size++] = vy + rayY[i - 1] * reach[i - 1];
+			penumbra[size++] = COVERAGES[i - 1];
+			penumbra[size++] = vx + rayX[i] * reach[i];
+			penumbra[size++] = vy + rayY[i] * reach[i];
+			penumbra[size++] = COVERAGES[i];
+		}
+	}
+	
+	/**
+	 * Shortens the rays of current fan to the nearest sweep edges they
+	 * hit. Fan rays go from the verticle at most the tangent angle away
+	 * from the center ray, so seen from the light all the fan is within
+	 * that angle from the center ray and only the edges in buckets of
+	 * that range are tested. Edges touching the verticle are not hit.
+	 */
+	private void clipFan() {
+		if (bucketStart == null) {
+			index();
+		}
+		
+		final SweepLightAlgorithm.Sweep sweep = this.sweep;
+		final float[] x1 = sweep.x1, y1 = sweep.y1, x2 = sweep.x2, y2 = sweep.y2;
+		final float[] rayX = this.rayX, rayY = this.rayY, reach = this.reach;
+		final int[] bucketStart = this.bucketStart, bucketEdges = this.bucketEdges, taken = this.taken;
+		final float vx = this.vx, vy = this.vy, ux = this.ux, uy = this.uy;
+		
+		// border rays with the side they sweep away from the center ray
+		final float shadowX = rayX[0] * -litSide, shadowY = rayY[0] * -litSide;
+		final float litX = rayX[PENUMBRA_PARTS] * litSide, litY = rayY[PENUMBRA_PARTS] * litSide;
+		
+		final float a = RayFan.pseudoAngle(rayX[0], rayY[0]);
+		final float b = RayFan.pseudoAngle(rayX[PENUMBRA_PARTS], rayY[PENUMBRA_PARTS]);
+		
+		int first = bucket(Math.min(a, b));
+		int last = bucket(Math.max(a, b));
+		
+		if (Math.abs(b - a) > RayFan.HALF_TURN) {
+			// the fan goes around the half turn angle
+			first = last;
+			last = bucket(Math.min(a, b)) + BUCKETS;
+		}
+		
+		final float min = distance * DISTANCE_EPSILON;
+		final int fan = ++this.fan;
+		
+		for (int k = first; k <= last; ++k) {
+			final int bucket = k % BUCKETS;
+			
+			for (int i = bucketStart[bucket]; i < bucketStart[bucket + 1]; ++i) {
+				final int e = bucketEdges[i];
+				
+				if (taken[e] == fan) {
+					continue;
+				}
+				
+				taken[e] = fan;
+				
+				final float ax = x1[e] - vx, ay = y1[e] - vy;
+				final float bx = x2[e] - vx, by = y2[e] - vy;
+				
+				// fan rays go away from the light, they can't hit edges
+				// behind the verticle or outside of the border rays
+				if (ux * ax + uy * ay <= 0 && ux * bx + uy * by <= 0
+						|| shadowX * ay - shadowY * ax > 0 && shadowX * by - shadowY * bx > 0
+						|| litX * ay - litY * ax > 0 && litX * by - litY * bx > 0) {
+					continue;
+				}
+				
+				final float ex = bx - ax, ey = by - ay;
+				
+				for (int r = 0; r <= PENUMBRA_PARTS; ++r) {
+					final float dx = rayX[r], dy = rayY[r];
+					
+					// ray distance t and edge position u are divided by
+					// the denominator only for the hit
+					float denominator = dx * ey - dy * ex;
+					float t = ax * ey - ay * ex;
+					float u = ax * dy - ay * dx;
+					
+					if (denominator < 0) {
+						denominator = -denominator;
+						t = -t;
+						u = -u;
+					}
+					
+					if (u < 0 || u > denominator || t <= min * denominator || t >= reach[r] * denominator) {
+						continue;
+					}
+					
+					reach[r] = t / denominator;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Puts the sweep edges to buckets of pseudo angle ranges they span.
+	 */
+	private void index() {
+		final int edgeCount = sweep.edgeCount;
+		
+		bucketStart = new int[BUCKETS + 1];
+		taken = new int[edgeCount];
+		
+		// count edges of each bucket first, then fill them
+		for (int e = 0; e < edgeCount; ++e) {
+			addToBuckets(e, null);
+		}
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			bucketStart[i + 1] += bucketStart[i];
+		}
+		
+		bucketEdges = new int[bucketStart[BUCKETS]];
+		
+		final int[] fill = new int[BUCKETS];
+		System.arraycopy(bucketStart, 0, fill, 0, BUCKETS);
+		
+		for (int e = 0; e < edgeCount; ++e) {
+			addToBuckets(e, fill);
+		}
+	}
+	
+	/**
+	 * Counts the edge in its buckets if <code>fill</code> is
+	 * <code>null</code>, otherwise writes it at the fill positions.
+	 */
+	private void addToBuckets(final int e, final int[] fill) {
+		final float a = Math.min(sweep.angles[2 * e], sweep.angles[2 * e + 1]);
+		final float b = Math.max(sweep.angles[2 * e], sweep.angles[2 * e + 1]);
+		
+		int first = bucket(a);
+		int last = bucket(b);
+		
+		if (b - a > RayFan.HALF_TURN) {
+			// the edge goes around the half turn angle
+			first = last;
+			last = bucket(a) + BUCKETS;
+		}
+		
+		for (int k = first; k <= last; ++k) {
+			final int bucket = k % BUCKETS;
+			
+			if (fill == null) {
+				++bucketStart[bucket + 1];
+			} else {
+				bucketEdges[fill[bucket]++] = e;
+			}
+		}
+	}
+	
+	private static int bucket(final float angle) {
+		return Math.min(BUCKETS - 1, (int) ((angle + RayFan.HALF_TURN) * BUCKETS / (2 * RayFan.HALF_TURN)));
+	}
+	
+	private void addChain(final float x, final float y) {
+		if (chainCount * 2 == chain.length) {
+			final float[] grown = new float[chain.length * 2];
+			System.arraycopy(chain, 0, grown, 0, chain.length);
+			chain = grown;
+		}
+		
+		chain[2 * chainCount] = x;
+		chain[2 * chainCount + 1] = y;
+		++chainCount;
+	}
+	
+	/**
+	 * @return Pseudo angle of polygon point measured from the center ray
+	 * towards the lit side.
+	 */
+	private float angle(final int i) {
+		final float x = polygon[2 * i], y = polygon[2 * i + 1];
+		return RayFan.pseudoAngle(ux * x + uy * y, wx * x + wy * y);
+	}
+	
+	/**
+	 * @return Positive if the point is on the light side of the inner
+	 * tangent, negative if it's in the penumbra.
+	 */
+	private float side(final float x, final float y) {
+		return cos * (wx * x + wy * y) - sin * (ux * x + uy * y - distance);
+	}
+	
+	/**
+	 * @return Index of polygon point <code>steps</code> away from
+	 * <code>i</code>.
+	 */
+	private int step(final int i, final int steps) {
+		final int j = (i + steps) % count;
+		return j < 0 ? j + count : j;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+/**
+ * Sorting of primitive index arrays by float keys. It doesn't
+ * allocate anything so it can be used on every frame.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class Sorting {
+	
+	/** Ranges smaller than this are sorted by insertion */
+	private static final int INSERTION_THRESHOLD = 16;
+	/** Average number of moves per item after which repair gives up */
+	private static final int REPAIR_MOVES = 8;
+	
+	private Sorting() {
+	}
+	
+	/**
+	 * Sorts <code>items</code> in range <code>[from, to)</code> so that
+	 * <code>keys[items[i]]</code> are ascending. Items with equal keys
+	 * are ordered by their value, so ascending items keep their order
+	 * like in a stable sort.
+	 */
+	static void sort(final int[] items, final float[] keys, final int from, final int to) {
+		int lo = from;
+		int hi = to - 1;
+		
+		// recurse into smaller part, loop over the bigger one
+		while (hi - lo >= INSERTION_THRESHOLD) {
+			final int p = partition(items, keys, lo, hi);
+			
+			if (p - lo < hi - p) {
+				sort(items, keys, lo, p);
+				lo = p + 1;
+			} else {
+				sort(items, keys, p + 1, hi + 1);
+				hi = p - 1;
+			}
+		}
+		
+		insertionSort(items, keys, lo, hi + 1);
+	}
+	
+	/**
+	 * Sorts by insertion. It's fast for small or nearly sorted ranges.
+	 */
+	static void insertionSort(final int[] items, final float[] keys, final int from, final int to) {
+		for (int i = from + 1; i < to; ++i) {
+			final int item = items[i];
+			
+			int j = i - 1;
+			
+			while (j >= from && less(item, items[j], keys)) {
+				items[j + 1] = items[j];
+				--j;
+			}
+			
+			items[j + 1] = item;
+		}
+	}
+	
+	/**
+	 * Sorts range that was sorted before its keys changed a little. It
+	 * works like {@link #insertionSort(int[], float[], int, int)}, so
+	 * it takes time proportional to the number of items that changed
+	 * their place, but when there are too many of them the range is
+	 * sorted by {@link #sort(int[], float[], int, int)} instead.
+	 */
+	static void repair(final int[] items, final float[] keys, final int from, final int to) {
+		int moves = (to - from) * REPAIR_MOVES;
+		
+		for (int i = from + 1; i < to; ++i) {
+			final int item = items[i];
+			
+			int j = i - 1;
+			
+			while (j >= from && less(item, items[j], keys)) {
+				items[j + 1] = items[j];
+				--j;
+			}
+			
+			items[j + 1] = item;
+			moves -= i - 1 - j;
+			
+			if (moves < 0) {
+				sort(items, keys, from, to);
+				return;
+			}
+		}
+	}
+	
+	private static int partition(final int[] items, final float[] keys, final int lo, final int hi) {
+		// median of three as the pivot
+		final int mid = (lo + hi) >>> 1;
+		
+		if (less(items[mid], items[lo], keys)) {
+			swap(items, mid, lo);
+		}
+		
+		if (less(items[hi], items[lo], keys)) {
+			swap(items, hi, lo);
+		}
+		
+		if (less(items[hi], items[mid], keys)) {
+			swap(items, hi, mid);
+		}
+		
+		final int pivot = items[mid];
+		swap(items, mid, hi - 1);
+		
+		int i = lo;
+		int j = hi - 1;
+		
+		for (;;) {
+			while (less(items[++i], pivot, keys)) {
+			}
+			
+			while (less(pivot, items[--j], keys)) {
+			}
+			
+			if (i >= j) {
+				break;
+			}
+			
+			swap(items, i, j);
+		}
+		
+		swap(items, i, hi - 1);
+		
+		return i;
+	}
+	
+	/**
+	 * Tells if <code>item</code> goes before <code>other</code>.
+	 */
+	private static boolean less(final int item, final int other, final float[] keys) {
+		final float key = keys[item];
+		final float otherKey = keys[other];
+		return key < otherKey || key == otherKey && item < other;
+	}
+	
+	private static void swap(final int[] items, final int i, final int j) {
+		final int tmp = items[i];
+		items[i] = items[j];
+		items[j] = tmp;
+	}
+}
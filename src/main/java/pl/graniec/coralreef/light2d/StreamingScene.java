@@ -0,0 +1,430 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps in the lighting algorithm only resistors of the tiles around
+ * active lights, so memory depends on the area that is lit and not on
+ * the size of the world. Tiles are loaded from {@link ResistorProvider}
+ * when lights reach them and the least recently used ones are removed
+ * when there are more than the limit.
+ * <p>
+ * Tiles that lights are about to reach (see
+ * {@link #setPrefetchDistance(float)}) are loaded by a background thread
+ * in advance, as long as there is room for them below the limit. All
+ * resistors are added and removed by
+ * {@link #update(Collection)} on the thread calling it, so it must not
+ * run together with light computation.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class StreamingScene {
+	
+	/** Tile of the world */
+	private static final class Tile {
+		final int column, row;
+		/** Loading by the prefetch thread, null if loaded in place */
+		Future/*<List<LightResistor>>*/ pending;
+		/** Loaded resistors, null while pending */
+		List/*<LightResistor>*/ resistors;
+		/** Are the resistors added to the algorithm */
+		boolean added;
+		/** Number of the last update that needed this tile in light range */
+		long used;
+		/** Number of the last update that prefetched this tile */
+		long prefetched;
+		
+		Tile(final int column, final int row) {
+			this.column = column;
+			this.row = row;
+		}
+	}
+	
+	private final AbstractLightingAlgorithm algorithm;
+	private final ResistorProvider provider;
+	private final float tileSize;
+	/** Maximum number of kept tiles */
+	private final int maxTiles;
+	
+	/** Tiles by key, the least recently used first */
+	private final Map/*<Long, Tile>*/ tiles = new LinkedHashMap(16, 0.75f, true);
+	/** Distance from light range where tiles are prefetched */
+	private float prefetchDistance;
+	/** Prefetch thread, created when needed */
+	private ExecutorService executor;
+	/** Number of updates so far */
+	private long updateCount;
+	/** Number of tiles loaded so far */
+	private int loadCount;
+	
+	/**
+	 * Creates the streaming scene of the algorithm. Resistors added to
+	 * the algorithm in other way are not touched.
+	 * 
+	 * @param algorithm The lighting algorithm.
+	 * @param provider Source of the tiles.
+	 * @param tileSize Size of the tile.
+	 * @param maxTiles Maximum number of kept tiles. It's exceeded only
+	 * when more tiles are lit at once.
+	 */
+	public StreamingScene(AbstractLightingAlgorithm algorithm, ResistorProvider provider, float tileSize, int maxTiles) {
+		if (algorithm == null || provider == null) {
+			throw new IllegalArgumentException("algorithm and provider cannot be null");
+		}
+		
+		if (tileSize <= 0) {
+			throw new IllegalArgumentException("tile size must be positive");
+		}
+		
+		if (maxTiles < 1) {
+			throw new IllegalArgumentException("at least one tile must be kept");
+		}
+		
+		this.algorithm = algorithm;
+		this.provider = provider;
+		this.tileSize = tileSize;
+		this.maxTiles = maxTiles;
+	}
+	
+	/**
+	 * Makes sure that resistors of all tiles in range of the lights are
+	 * in the algorithm, starts prefetching tiles near the lights and
+	 * removes the least recently used tiles above the limit. Call it
+	 * every frame before computing the lights.
+	 * 
+	 * @param lights Active light sources.
+	 * 
+	 * @throws IOException When needed tile cannot be loaded.
+	 */
+	public void update(Collection/*<LightSource>*/ lights) throws IOException {
+		final long frame = ++updateCount;
+		
+		for (final Iterator itor = lights.iterator(); itor.hasNext();) {
+			final LightSource source = (LightSource) itor.next();
+			require(source.x, source.y, source.intensity, frame);
+		}
+		
+		// needed tiles are loaded in place, only the ones further away
+		// are queued on the prefetch thread
+		if (prefetchDistance > 0) {
+			for (final Iterator itor = lights.iterator(); itor.hasNext();) {
+				final LightSource source = (LightSource) itor.next();
+				prefetch(source.x, source.y, source.intensity + prefetchDistance, frame);
+			}
+		}
+		
+		evict(frame);
+	}
+	
+	/**
+	 * Loads and adds tiles overlapping the circle.
+	 */
+	private void require(final float x, final float y, final float radius, final long frame) throws IOException {
+		final int left = toTile(x - radius), right = toTile(x + radius);
+		final int bottom = toTile(y - radius), top = toTile(y + radius);
+		
+		for (int row = bottom; row <= top; ++row) {
+			for (int column = left; column <= right; ++column) {
+				if (!intersectsCircle(column, row, x, y, radius)) {
+					continue;
+				}
+				
+				final Tile tile = getTile(column, row);
+				tile.used = frame;
+				
+				if (tile.resistors == null) {
+					final Future/*<List<LightResistor>>*/ pending = tile.pending;
+					
+					// failed prefetch is not waited for again, the next update loads the tile
+					tile.pending = null;
+					tile.resistors = pending != null ? waitFor(pending) : load(column, row);
+				}
+				
+				if (!tile.added) {
+					for (int i = 0; i < tile.resistors.size(); ++i) {
+						algorithm.addLightResistor((LightResistor) tile.resistors.get(i));
+					}
+					
+					tile.added = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Starts loading tiles overlapping the circle that are not loaded
+	 * yet.
+	 */
+	private void prefetch(final float x, final float y, final float radius, final long frame) {
+		final int left = toTile(x - radius), right = toTile(x + radius);
+		final int bottom = toTile(y - radius), top = toTile(y + radius);
+		
+		for (int row = bottom; row <= top; ++row) {
+			for (int column = left; column <= right; ++column) {
+				if (!intersectsCircle(column, row, x, y, radius)) {
+					continue;
+				}
+				
+				final Long key = toKey(column, row);
+				Tile tile = (Tile) tiles.get(key);
+				
+				if (tile == null) {
+					if (!makeRoom(frame)) {
+						// prefetched tiles only take the room left by the limit
+						continue;
+					}
+					
+					tile = new Tile(column, row);
+					tiles.put(key, tile);
+				}
+				
+				tile.prefetched = frame;
+				
+				if (tile.resistors == null && tile.pending == null) {
+					final int c = column, r = row;
+					
+					tile.pending = getExecutor().submit(new Callable() {
+						public Object call() throws IOException {
+							return load(c, r);
+						}
+					});
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Removes the least recently used tiles not needed by the current
+	 * update while there are more than the limit. Prefetched tiles are
+	 * not needed, even if they were prefetched by this update.
+	 */
+	private void evict(final long frame) {
+		for (final Iterator itor = tiles.values().iterator(); itor.hasNext() && tiles.size() > maxTiles;) {
+			final Tile tile = (Tile) itor.next();
+			
+			if (tile.used == frame) {
+				continue;
+			}
+			
+			remove(tile);
+			itor.remove();
+		}
+	}
+	
+	/**
+	 * Removes the least recently used tiles not touched by the current
+	 * update until there is room for another tile.
+	 * 
+	 * @return <code>true</code> if there is room for another tile.
+	 */
+	private boolean makeRoom(final long frame) {
+		for (final Iterator itor = tiles.values().iterator(); itor.hasNext() && tiles.size() >= maxTiles;) {
+			final Tile tile = (Tile) itor.next();
+			
+			if (tile.used == frame || tile.prefetched == frame) {
+				// the rest was touched by this update too
+				break;
+			}
+			
+			remove(tile);
+			itor.remove();
+		}
+		
+		return tiles.size() < maxTiles;
+	}
+	
+	/**
+	 * Stops loading of the tile and removes its resistors from the
+	 * algorithm.
+	 */
+	private void remove(final Tile tile) {
+		if (tile.pending != null) {
+			tile.pending.cancel(false);
+		}
+		
+		if (tile.added) {
+			for (int i = 0; i < tile.resistors.size(); ++i) {
+				algorithm.removeLightResistor((LightResistor) tile.resistors.get(i));
+			}
+		}
+	}
+	
+	private Tile getTile(final int column, final int row) {
+		final Long key = toKey(column, row);
+		Tile tile = (Tile) tiles.get(key);
+		
+		if (tile == null) {
+			tile = new Tile(column, row);
+			tiles.put(key, tile);
+		}
+		
+		return tile;
+	}
+	
+	private static Long toKey(final int column, final int row) {
+		return new Long(((long) column << 32) | (row & 0xFFFFFFFFL));
+	}
+	
+	private List/*<LightResistor>*/ load(final int column, final int row) throws IOException {
+		final List/*<LightResistor>*/ resistors = new ArrayList();
+		provider.load(column, row, resistors);
+		
+		synchronized (this) {
+			++loadCount;
+		}
+		
+		return resistors;
+	}
+	
+	private static List/*<LightResistor>*/ waitFor(final Future/*<List<LightResistor>>*/ pending) throws IOException {
+		boolean interrupted = false;
+		
+		try {
+			while (true) {
+				try {
+					return (List) pending.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			
+			throw new IOException(String.valueOf(cause));
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private int toTile(final float coordinate) {
+		return (int) Math.floor(coordinate / tileSize);
+	}
+	
+	private boolean intersectsCircle(final int column, final int row, final float x, final float y, final float radius) {
+		return Bounds.intersectsCircle(column * tileSize, row * tileSize, (column + 1) * tileSize, (row + 1) * tileSize, x, y, radius);
+	}
+	
+	private ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "StreamingScene prefetch");
+					thread.setDaemon(true);
+					
+					return thread;
+				}
+			});
+		}
+		
+		return executor;
+	}
+	
+	/**
+	 * Stops the prefetch thread. Resistors stay in the algorithm.
+	 */
+	public void dispose() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		
+		for (final Iterator itor = tiles.values().iterator(); itor.hasNext();) {
+			final Tile tile = (Tile) itor.next();
+			
+			if (tile.pending != null) {
+				tile.pending.cancel(false);
+				itor.remove();
+			}
+		}
+	}
+	
+	/**
+	 * See {@link #setPrefetchDistance(float)}
+	 * 
+	 * @return Distance from light range where tiles are prefetched.
+	 */
+	public float getPrefetchDistance() {
+		return prefetchDistance;
+	}
+	
+	/**
+	 * Sets the distance from light range where tiles are loaded in
+	 * advance by the background thread. It should be about the distance
+	 * lights move during loading of a tile. By default it's
+	 * <code>0</code> and tiles are loaded only when they are needed.
+	 * 
+	 * @param prefetchDistance Distance from light range.
+	 */
+	public void setPrefetchDistance(float prefetchDistance) {
+		if (prefetchDistance < 0) {
+			throw new IllegalArgumentException("prefetch distance cannot be negative");
+		}
+		
+		this.prefetchDistance = prefetchDistance;
+	}
+	
+	/**
+	 * @return Number of tiles kept, including the prefetched ones.
+	 */
+	public int getTileCount() {
+		return tiles.size();
+	}
+	
+	/**
+	 * @return Number of tiles loaded so far.
+	 */
+	public synchronized int getLoadCount() {
+		return loadCount;
+	}
+}
@@ -0,0 +1,1002 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.List;
+
+import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * Lighting algorithm that makes a single angular sweep around the
+ * light source.
+ * <p>
+ * All edges of near resistors are translated to be relative to the
+ * light source and their end points are sorted by pseudo angle (see
+ * {@link RayFan#pseudoAngle(float, float)}). Then the sweep ray goes
+ * from <code>-180</code> to <code>180</code> degrees
+ * keeping all edges that it crosses in {@link ActiveEdgeSet} ordered by
+ * the distance from the light. Every end point updates the set in
+ * <code>O(log n)</code> time so the whole light costs
+ * <code>O(n log n)</code> in number of edges.
+ * <p>
+ * Edges of overlapping resistors can cross each other. Crossings of
+ * neighbor edges in the active set are kept in a heap and processed
+ * in the same sweep, like in Bentley-Ottmann algorithm, so each of
+ * them adds another <code>O(log n)</code>.
+ * <p>
+ * Scene of {@link SpotLightSource} is rotated so that its cone looks
+ * along the positive x axis. Then edges outside of the cone are
+ * dropped and the sweep goes only from one cone border to the other.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SweepLightAlgorithm extends AbstractLightingAlgorithm {
+
+	/** Edges touching closer than this fraction of length doesn't cross */
+	private static final float CROSSING_EPSILON = 1e-5f;
+	/** Pseudo angle difference (about 0.001 degree) treated as inaccuracy */
+	private static final float ANGLE_EPSILON = 1.5e-5f;
+	
+	/**
+	 * State of single sweep. Edge <code>i</code> has two end points
+	 * indexed as <code>2 * i</code> and <code>2 * i + 1</code>.
+	 */
+	static final class Sweep {
+		
+		float[] x1 = new float[16], y1 = new float[16], x2 = new float[16], y2 = new float[16];
+		/** Is the first point of edge the one where sweep ray enters it */
+		boolean[] firstEnters = new boolean[16];
+		/** Is the edge collinear with light, such edges are never entered */
+		boolean[] flat = new boolean[16];
+		int edgeCount;
+		/**
+		 * Should edges that can't cast any shadow be kept, so that edge
+		 * <code>i</code> is always the <code>i</code>-th added one
+		 */
+		boolean keepAll;
+		
+		/** Pseudo angle of each edge end point */
+		float[] angles = new float[32];
+		/** End points sorted by angle */
+		int[] order = new int[32];
+		
+		final ActiveEdgeSet active = new ActiveEdgeSet();
+		
+		// heap of crossings of neighbor edges, ordered by angle
+		float[] crossingAngle = new float[16], crossingX = new float[16], crossingY = new float[16];
+		int[] crossingFront = new int[16], crossingBack = new int[16];
+		int crossingCount;
+		
+		float intensity;
+		/** Direction of the cone axis, the scene is rotated by its inverse */
+		float axisX, axisY;
+		/** Pseudo angle of the cone border, {@link RayFan#HALF_TURN} if there's no cone */
+		float coneAngle;
+		
+		/** Light geometry as x, y pairs */
+		float[] output = new float[64];
+		/** Number of points in output */
+		int outputCount;
+		
+		/** Should shadow steps of the output be recorded */
+		boolean recordSteps;
+		/**
+		 * Output index of the nearer point of each shadow step, it's the
+		 * silhouette verticle
+		 */
+		int[] stepPoints = new int[16];
+		/**
+		 * Side of each step where light goes on, <code>1</code> if it's
+		 * counter clockwise from the silhouette verticle, <code>-1</code>
+		 * otherwise
+		 */
+		int[] stepSides = new int[16];
+		int stepCount;
+		
+		/** Counters of statistics */
+		int visibilityTests, intersectionTests;
+		
+		/** Pseudo angle of the sweep ray */
+		float current;
+		/** Non-resistance rays and the next one to emit */
+		RayFan fan;
+		int part;
+		
+		/**
+		 * Prepares this sweep for the next light.
+		 * 
+		 * @param fan Non-resistance rays of the light.
+		 * @param direction Direction of the cone axis in degrees, used
+		 * only if <code>fan</code> is a cone.
+		 */
+		void reset(final float intensity, final RayFan fan, final float direction) {
+			this.intensity = intensity;
+			this.fan = fan;
+			
+			if (fan.isCone()) {
+				final double rad = Math.toRadians(direction);
+				
+				axisX = (float) Math.cos(rad);
+				axisY = (float) Math.sin(rad);
+				coneAngle = fan.angles[fan.count - 1];
+			} else {
+				axisX = 1;
+				axisY = 0;
+				coneAngle = RayFan.HALF_TURN;
+			}
+			
+			edgeCount = 0;
+			keepAll = false;
+			outputCount = 0;
+			recordSteps = false;
+			stepCount = 0;
+			visibilityTests = 0;
+			intersectionTests = 0;
+		}
+		
+		/**
+		 * Adds edge given relatively to the light source. Edges that
+		 * can't cast any shadow are skipped unless {@link #keepAll} is
+		 * set.
+		 */
+		void addEdge(float ax, float ay, float bx, float by) {
+			if (coneAngle < RayFan.HALF_TURN) {
+				final float rx = ax * axisX + ay * axisY;
+				final float ry = ay * axisX - ax * axisY;
+				
+				ax = rx;
+				ay = ry;
+				
+				final float sx = bx * axisX + by * axisY;
+				final float sy = by * axisX - bx * axisY;
+				
+				bx = sx;
+				by = sy;
+			}
+			
+			final float cross = ax * by - ay * bx;
+			
+			if (cross == 0 && !keepAll) {
+				// edge is collinear with light, it has no angular width
+				return;
+			}
+			
+			if (!keepAll && distanceSquared(ax, ay, bx, by) > intensity * intensity) {
+				// edge is out of light range
+				return;
+			}
+			
+			if (edgeCount == x1.length) {
+				grow(edgeCount * 2);
+			}
+			
+			final int i = edgeCount++;
+			
+			x1[i] = ax;
+			y1[i] = ay;
+			x2[i] = bx;
+			y2[i] = by;
+			firstEnters[i] = cross > 0;
+			flat[i] = cross == 0;
+			
+			angles[2 * i] = RayFan.pseudoAngle(ax, ay);
+			angles[2 * i + 1] = RayFan.pseudoAngle(bx, by);
+			
+			if (coneAngle < RayFan.HALF_TURN && !keepAll && !overlapsCone(i)) {
+				--edgeCount;
+			}
+		}
+		
+		/**
+		 * Tells if the angular range of <code>edge</code> overlaps the
+		 * cone from <code>-coneAngle</code> to <code>coneAngle</code>.
+		 */
+		private boolean overlapsCone(final int edge) {
+			final float enter = enterAngle(edge);
+			final float exit = exitAngle(edge);
+			
+			if (enter <= exit) {
+				return enter <= coneAngle && exit >= -coneAngle;
+			}
+			
+			// edge crossing the negative x axis
+			return enter <= coneAngle || exit >= -coneAngle;
+		}
+		
+		/**
+		 * Runs the sweep and puts the light geometry points to
+		 * {@link #output}. Points are in the rotated scene if the light
+		 * has a cone.
+		 * 
+		 * @param stats Statistics to fill or <code>null</code>.
+		 * @param repair <code>true</code> if the same edges were added
+		 * as in the previous run, then the previous order of end points
+		 * is repaired instead of sorting them from scratch.
+		 */
+		void run(final LightingStats stats, final boolean repair) {
+			final int pointCount = edgeCount * 2;
+			long time = stats != null ? System.nanoTime() : 0;
+			
+			if (repair) {
+				Sorting.repair(order, angles, 0, pointCount);
+			} else {
+				for (int i = 0; i < pointCount; ++i) {
+					order[i] = i;
+				}
+				
+				Sorting.sort(order, angles, 0, pointCount);
+			}
+			
+			if (stats != null) {
+				time = stats.endPhase(LightingStats.Phase.SORT, time);
+			}
+			
+			active.reset(x1, y1, x2, y2, edgeCount);
+			crossingCount = 0;
+			current = -coneAngle;
+			part = 0;
+			
+			int index = 0;
+			
+			if (coneAngle < RayFan.HALF_TURN) {
+				// cone starts at the light source
+				put(0, 0);
+				
+				// edges crossing the first cone border
+				active.setRay(fan.x[0], fan.y[0]);
+				
+				for (int i = 0; i < edgeCount; ++i) {
+					if (isCrossing(i, current)) {
+						active.insert(i);
+					}
+				}
+				
+				// end points before the cone
+				while (index < pointCount && angles[order[index]] < current) {
+					++index;
+				}
+			} else {
+				// edges crossing the ray at -180 degrees
+				active.setRay(-1, 0);
+				
+				for (int i = 0; i < edgeCount; ++i) {
+					if (enterAngle(i) > exitAngle(i)) {
+						active.insert(i);
+					}
+				}
+			}
+			
+			for (int e = active.first(); e != ActiveEdgeSet.NULL; e = active.next(e)) {
+				checkCrossing(e, active.next(e));
+			}
+			
+			if (stats != null) {
+				time = stats.endPhase(LightingStats.Phase.PREPARE, time);
+			}
+			
+			while (index < pointCount || crossingCount > 0) {
+				final float pointAngle = index < pointCount ? angles[order[index]] : Float.POSITIVE_INFINITY;
+				
+				if (crossingCount > 0 && crossingAngle[0] < pointAngle) {
+					if (crossingAngle[0] > coneAngle) {
+						break;
+					}
+					
+					processCrossing();
+				} else {
+					if (pointAngle > coneAngle) {
+						break;
+					}
+					
+					index = processPoints(index);
+				}
+			}
+			
+			// non-resistance rays after last point
+			emitParts(Float.POSITIVE_INFINITY);
+			
+			if (stats != null) {
+				stats.endPhase(LightingStats.Phase.SWEEP, time);
+				
+				stats.segments = edgeCount;
+				stats.visibilityTests = visibilityTests;
+				stats.intersectionTests = intersectionTests;
+				stats.outputVerticles = outputCount;
+			}
+		}
+		
+		/**
+		 * Processes all end points on the same angle starting from
+		 * <code>index</code> in sorted order.
+		 * 
+		 * @return Index of first not processed point.
+		 */
+		private int processPoints(final int index) {
+			final int pointCount = edgeCount * 2;
+			final float angle = angles[order[index]];
+			
+			// non-resistance rays before this point
+			emitParts(angle);
+			
+			current = angle;
+			
+			// ray direction goes thru the end point
+			final int point = order[index];
+			final float px = (point & 1) == 0 ? x1[point >> 1] : x2[point >> 1];
+			final float py = (point & 1) == 0 ? y1[point >> 1] : y2[point >> 1];
+			final float length = (float) Math.sqrt(px * px + py * py);
+			final float dx = px / length;
+			final float dy = py / length;
+			
+			active.setRay(dx, dy);
+			
+			final int before = active.first();
+			
+			// all points on this angle, first the exits then the entries
+			int end = index;
+			
+			while (end < pointCount && angles[order[end]] == angle) {
+				final int p = order[end++];
+				final int edge = p >> 1;
+				
+				if (!isEnter(p) && active.contains(edge)) {
+					final int previous = active.previous(edge);
+					final int next = active.next(edge);
+					
+					active.remove(edge);
+					checkCrossing(previous, next);
+				}
+			}
+			
+			for (int i = index; i < end; ++i) {
+				final int p = order[i];
+				final int edge = p >> 1;
+				
+				if (isEnter(p) && !flat[edge] && !active.contains(edge)) {
+					active.insert(edge);
+					
+					checkCrossing(active.previous(edge), edge);
+					checkCrossing(edge, active.next(edge));
+				}
+			}
+			
+			final int after = active.first();
+			
+			emit(dx, dy, before);
+			
+			if (after != before) {
+				final int first = outputCount - 1;
+				
+				emit(dx, dy, after);
+				
+				if (recordSteps && outputCount - 1 > first) {
+					addStep(first);
+				}
+			}
+			
+			return end;
+		}
+		
+		/**
+		 * Records the shadow step between output points <code>first</code>
+		 * and the next one.
+		 */
+		private void addStep(final int first) {
+			final float ax = output[2 * first], ay = output[2 * first + 1];
+			final float bx = output[2 * first + 2], by = output[2 * first + 3];
+			
+			if (stepCount == stepPoints.length) {
+				stepPoints = grow(stepPoints, stepCount * 2);
+				stepSides = grow(stepSides, stepCount * 2);
+			}
+			
+			// light goes on from the nearer point to the side of the
+			// farther one
+			if (ax * ax + ay * ay < bx * bx + by * by) {
+				stepPoints[stepCount] = first;
+				stepSides[stepCount] = 1;
+			} else {
+				stepPoints[stepCount] = first + 1;
+				stepSides[stepCount] = -1;
+			}
+			
+			++stepCount;
+		}
+		
+		/**
+		 * Swaps two edges at the nearest crossing point.
+		 */
+		private void processCrossing() {
+			final float angle = crossingAngle[0];
+			final int front = crossingFront[0];
+			final int back = crossingBack[0];
+			final float cx = crossingX[0];
+			final float cy = crossingY[0];
+			
+			popCrossing();
+			
+			if (!active.contains(front) || !active.contains(back) || active.next(front) != back) {
+				// edges are not neighbors any more, the crossing will be
+				// found again if they become neighbors
+				return;
+			}
+			
+			emitParts(angle);
+			
+			current = angle;
+			
+			final int before = active.first();
+			
+			active.swap(front, back);
+			
+			if (before != active.first()) {
+				// the crossing point is a corner of light geometry
+				final float length = (float) Math.sqrt(cx * cx + cy * cy);
+				emit(cx / length, cy / length, back);
+			}
+			
+			checkCrossing(active.previous(back), back);
+			checkCrossing(front, active.next(front));
+		}
+		
+		/**
+		 * Schedules the crossing of neighbor edges if they cross
+		 * ahead of the sweep ray.
+		 */
+		private void checkCrossing(final int front, final int back) {
+			if (front == ActiveEdgeSet.NULL || back == ActiveEdgeSet.NULL) {
+				return;
+			}
+			
+			++intersectionTests;
+			
+			// always compute in the same order to get the same result
+			final int a = Math.min(front, back);
+			final int b = Math.max(front, back);
+			
+			final float ax = x2[a] - x1[a];
+			final float ay = y2[a] - y1[a];
+			final float bx = x2[b] - x1[b];
+			final float by = y2[b] - y1[b];
+			
+			final float denominator = ax * by - ay * bx;
+			
+			if (denominator == 0) {
+				return;
+			}
+			
+			final float ox = x1[b] - x1[a];
+			final float oy = y1[b] - y1[a];
+			
+			final float t = (ox * by - oy * bx) / denominator;
+			final float u = (ox * ay - oy * ax) / denominator;
+			
+			// touching at the end points is not a crossing
+			if (t <= CROSSING_EPSILON || t >= 1 - CROSSING_EPSILON || u <= CROSSING_EPSILON || u >= 1 - CROSSING_EPSILON) {
+				return;
+			}
+			
+			// the back edge comes to front only if it leaves the crossing
+			// on the light side of front edge, otherwise they have
+			// already been swapped
+			final float exitX = firstEnters[back] ? x2[back] : x1[back];
+			final float exitY = firstEnters[back] ? y2[back] : y1[back];
+			
+			final float fx = x2[front] - x1[front];
+			final float fy = y2[front] - y1[front];
+			
+			final float exitSide = fx * (exitY - y1[front]) - fy * (exitX - x1[front]);
+			final float lightSide = fx * -y1[front] - fy * -x1[front];
+			
+			if (exitSide == 0 || (exitSide > 0) != (lightSide > 0)) {
+				return;
+			}
+			
+			final float cx = x1[a] + ax * t;
+			final float cy = y1[a] + ay * t;
+			final float angle = RayFan.pseudoAngle(cx, cy);
+			
+			if (angle >= current) {
+				pushCrossing(angle, front, back, cx, cy);
+			} else if (current - angle < ANGLE_EPSILON) {
+				// crossing just behind the ray is an inaccuracy
+				pushCrossing(current, front, back, cx, cy);
+			}
+			
+			// crossing far behind the ray is on the part of edges that
+			// has been swept before they were entered again
+		}
+		
+		/**
+		 * Emits non-resistance rays with angle lower than <code>limit</code>.
+		 */
+		private void emitParts(final float limit) {
+			final RayFan fan = this.fan;
+			
+			for (; part < fan.count && fan.angles[part] < limit; ++part) {
+				emit(fan.x[part], fan.y[part], active.first());
+			}
+		}
+		
+		private void pushCrossing(final float angle, final int front, final int back, final float x, final float y) {
+			if (crossingCount == crossingAngle.length) {
+				final int capacity = crossingCount * 2;
+				
+				crossingAngle = grow(crossingAngle, capacity);
+				crossingX = grow(crossingX, capacity);
+				crossingY = grow(crossingY, capacity);
+				crossingFront = grow(crossingFront, capacity);
+				crossingBack = grow(crossingBack, capacity);
+			}
+			
+			// sift up
+			int i = crossingCount++;
+			
+			while (i > 0) {
+				final int parent = (i - 1) >> 1;
+				
+				if (crossingAngle[parent] <= angle) {
+					break;
+				}
+				
+				moveCrossing(parent, i);
+				i = parent;
+			}
+			
+			crossingAngle[i] = angle;
+			crossingFront[i] = front;
+			crossingBack[i] = back;
+			crossingX[i] = x;
+			crossingY[i] = y;
+		}
+		
+		private void popCrossing() {
+			final int last = --crossingCount;
+			
+			if (last == 0) {
+				return;
+			}
+			
+			final float angle = crossingAngle[last];
+			
+			// sift down
+			int i = 0;
+			
+			for (;;) {
+				int child = 2 * i + 1;
+				
+				if (child >= last) {
+					break;
+				}
+				
+				if (child + 1 < last && crossingAngle[child + 1] < crossingAngle[child]) {
+					++child;
+				}
+				
+				if (crossingAngle[child] >= angle) {
+					break;
+				}
+				
+				moveCrossing(child, i);
+				i = child;
+			}
+			
+			moveCrossing(last, i);
+		}
+		
+		private void moveCrossing(final int from, final int to) {
+			crossingAngle[to] = crossingAngle[from];
+			crossingFront[to] = crossingFront[from];
+			crossingBack[to] = crossingBack[from];
+			crossingX[to] = crossingX[from];
+			crossingY[to] = crossingY[from];
+		}
+		
+		/**
+		 * Puts point where ray of unit direction hits the edge or the
+		 * light range.
+		 */
+		private void emit(final float dx, final float dy, final int edge) {
+			++visibilityTests;
+			
+			float distance = intensity;
+			
+			if (edge != ActiveEdgeSet.NULL) {
+				final float d = active.distance(edge, dx, dy);
+				
+				if (d >= 0 && d < distance) {
+					distance = d;
+				}
+			}
+			
+			put(dx * distance, dy * distance);
+		}
+		
+		/**
+		 * Puts point to the output unless it's the same as the last one.
+		 */
+		private void put(final float x, final float y) {
+			final int i = outputCount * 2;
+			
+			if (outputCount > 0 && output[i - 2] == x && output[i - 1] == y) {
+				return;
+			}
+			
+			if (i == output.length) {
+				output = grow(output, i * 2);
+			}
+			
+			output[i] = x;
+			output[i + 1] = y;
+			++outputCount;
+		}
+		
+		/**
+		 * Tells if the edge crosses ray on pseudo <code>angle</code>
+		 * between its end points.
+		 */
+		private boolean isCrossing(final int edge, final float angle) {
+			final float enter = enterAngle(edge);
+			final float exit = exitAngle(edge);
+			
+			if (enter <= exit) {
+				return enter < angle && angle < exit;
+			}
+			
+			return angle > enter || angle < exit;
+		}
+		
+		private boolean isEnter(final int point) {
+			return ((point & 1) == 0) == firstEnters[point >> 1];
+		}
+		
+		private float enterAngle(final int edge) {
+			return angles[firstEnters[edge] ? 2 * edge : 2 * edge + 1];
+		}
+		
+		private float exitAngle(final int edge) {
+			return angles[firstEnters[edge] ? 2 * edge + 1 : 2 * edge];
+		}
+		
+		private void grow(final int capacity) {
+			x1 = grow(x1, capacity);
+			y1 = grow(y1, capacity);
+			x2 = grow(x2, capacity);
+			y2 = grow(y2, capacity);
+			angles = grow(angles, capacity * 2);
+			order = new int[capacity * 2];
+			
+			final boolean[] enters = new boolean[capacity];
+			System.arraycopy(firstEnters, 0, enters, 0, edgeCount);
+			firstEnters = enters;
+			
+			final boolean[] flats = new boolean[capacity];
+			System.arraycopy(flat, 0, flats, 0, edgeCount);
+			flat = flats;
+		}
+		
+		private static float[] grow(final float[] array, final int size) {
+			final float[] result = new float[size];
+			System.arraycopy(array, 0, result, 0, array.length);
+			return result;
+		}
+		
+		private static int[] grow(final int[] array, final int size) {
+			final int[] result = new int[size];
+			System.arraycopy(array, 0, result, 0, array.length);
+			return result;
+		}
+	}
+	
+	/**
+	 * State of {@link TrackedLight} between frames: resistor edges
+	 * gathered around the light and the sweep of the previous frame.
+	 */
+	static final class Tracking {
+		
+		/** Settings version of the algorithm when the edges were gathered */
+		int settingsVersion;
+		/** Number of scene changes when the edges were gathered */
+		long changeStamp;
+		/** Light position when the edges were gathered */
+		float gatherX, gatherY;
+		/** Distance the light can move from gather position */
+		float margin;
+		/** Range of gathered edges around gather position */
+		float radius;
+		/** Cell of the visibility set where edges were gathered, -1 if none */
+		int visibilityCell = -1;
+		
+		/** Gathered edges relative to gather position as x1, y1, x2, y2 */
+		float[] edges = new float[64];
+		int edgeCount;
+		
+		/** Sweep of the previous frame */
+		final Sweep sweep = new Sweep();
+		
+		/**
+		 * Stores gathered edges given relative to the light position.
+		 */
+		void setEdges(final float[] edges, final int count, final LightSource source) {
+			if (this.edges.length < count * 4) {
+				this.edges = new float[count * 4];
+			}
+			
+			System.arraycopy(edges, 0, this.edges, 0, count * 4);
+			edgeCount = count;
+			gatherX = source.x;
+			gatherY = source.y;
+		}
+	}
+	
+	/**
+	 * Gets the squared distance from <code>(0, 0)</code> to the segment.
+	 */
+	static final float distanceSquared(final float ax, final float ay, final float bx, final float by) {
+		final float ex = bx - ax;
+		final float ey = by - ay;
+		final float lengthSquared = ex * ex + ey * ey;
+		
+		float t = lengthSquared == 0 ? 0 : -(ax * ex + ay * ey) / lengthSquared;
+		
+		if (t < 0) {
+			t = 0;
+		} else if (t > 1) {
+			t = 1;
+		}
+		
+		final float x = ax + ex * t;
+		final float y = ay + ey * t;
+		
+		return x * x + y * y;
+	}
+	
+	/**
+	 * Creates approximate soft light geometry of the area light in a
+	 * single sweep of the disc center. The sweep records its shadow
+	 * steps, then the center polygon is clipped by the inner tangent of
+	 * every silhouette verticle, so the polygon is the region where the
+	 * whole disc is visible. Every silhouette verticle gets a penumbra
+	 * fan between its tangents, with the visible part of the disc
+	 * computed exactly for each fan ray. Fan rays end at the first edge
+	 * collected by the sweep they hit.
+	 * <p>
+	 * Shadows of other resistors overlapping the fans are not accounted
+	 * for. Light with radius not greater than zero has no penumbra.
+	 * 
+	 * @param source The area light.
+	 * 
+	 * @return The soft light geometry.
+	 */
+	public SoftLightGeometry createApproximateSoftRays(final AreaLightSource source) {
+		final LightingContext context = LightingContext.current();
+		final Sweep sweep = sweep(source, context, source.radius > 0);
+		
+		return new SoftShadows(sweep, source.radius).create(source.x, source.y);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.AbstractLightingAlgorithm#computeRays(pl.graniec.coralreef.light2d.LightSource)
+	 */
+	protected Geometry computeRays(final LightSource source) {
+		final LightingContext context = LightingContext.current();
+		final Sweep sweep = sweep(source, context, false);
+		final float[] output = sweep.output;
+		final float axisX = sweep.axisX, axisY = sweep.axisY;
+		final long time = context.stats != null ? System.nanoTime() : 0;
+		
+		final Geometry light = new Geometry();
+		
+		for (int i = 0; i < sweep.outputCount; ++i) {
+			final float x = output[2 * i], y = output[2 * i + 1];
+			light.addVerticle(new Point2(x * axisX - y * axisY + source.x, x * axisY + y * axisX + source.y));
+		}
+		
+		if (context.stats != null) {
+			context.stats.endPhase(LightingStats.Phase.OUTPUT, time);
+		}
+		
+		return light;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.AbstractLightingAlgorithm#computeRays(pl.graniec.coralreef.light2d.LightSource, pl.graniec.coralreef.light2d.LightingContext, float[], int)
+	 */
+	protected int computeRays(final LightSource source, final LightingContext context, final float[] out, final int offset) {
+		return write(sweep(source, context, false), source, context, out, offset);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.light2d.AbstractLightingAlgorithm#computeRays(pl.graniec.coralreef.light2d.TrackedLight, pl.graniec.coralreef.light2d.LightingContext, float[], int)
+	 */
+	protected int computeRays(final TrackedLight light, final LightingContext context, final float[] out, final int offset) {
+		final LightSource source = light.getSource();
+		
+		if (!(light.state instanceof Tracking)) {
+			light.owner = null;
+			light.state = new Tracking();
+		}
+		
+		final Tracking tracking = (Tracking) light.state;
+		final boolean repair = track(light, tracking, context);
+		
+		final Sweep sweep = tracking.sweep;
+		sweep.reset(source.intensity, getRayFan(source, context),
+				source instanceof SpotLightSource ? ((SpotLightSource) source).direction : 0);
+		sweep.keepAll = true;
+		
+		final LightingStats stats = context.stats;
+		final long time = stats != null ? System.nanoTime() : 0;
+		
+		// gathered edges are relative to the gather position
+		final float dx = tracking.gatherX - source.x;
+		final float dy = tracking.gatherY - source.y;
+		final float[] edges = tracking.edges;
+		
+		for (int i = 0; i < tracking.edgeCount * 4; i += 4) {
+			sweep.addEdge(edges[i] + dx, edges[i + 1] + dy, edges[i + 2] + dx, edges[i + 3] + dy);
+		}
+		
+		if (stats != null) {
+			stats.endPhase(LightingStats.Phase.BUILD, time);
+		}
+		
+		sweep.run(stats, repair);
+		
+		return write(sweep, source, context, out, offset);
+	}
+	
+	/**
+	 * Gathers edges of resistors around tracked <code>light</code>
+	 * unless the edges gathered before are still valid for its current
+	 * position, see {@link TrackedLight}.
+	 * 
+	 * @return <code>true</code> if edges gathered before are kept.
+	 */
+	private boolean track(final TrackedLight light, final Tracking tracking, final LightingContext context) {
+		final LightSource source = light.getSource();
+		
+		if (light.owner == this && tracking.settingsVersion == settingsVersion) {
+			final float dx = source.x - tracking.gatherX;
+			final float dy = source.y - tracking.gatherY;
+			final float moved = (float) Math.sqrt(dx * dx + dy * dy);
+			final float radius = tracking.radius;
+			
+			if (moved <= tracking.margin && moved + source.intensity <= radius
+					&& getVisibilityCell(source.x, source.y) == tracking.visibilityCell
+					&& !changes.isChanged(tracking.changeStamp, tracking.gatherX - radius, tracking.gatherY - radius,
+							tracking.gatherX + radius, tracking.gatherY + radius)) {
+				return true;
+			}
+		}
+		
+		final LightingStats stats = context.stats;
+		long time = stats != null ? System.nanoTime() : 0;
+		
+		final float margin = light.getSlack() * source.intensity;
+		final float radius = source.intensity + margin;
+		
+		final List/*<LightResistor>*/ nearResistors = context.nearResistors;
+		nearResistors.clear();
+		findNearResistors(new LightSource(source.x, source.y, radius), nearResistors);
+		
+		if (stats != null) {
+			time = stats.endPhase(LightingStats.Phase.QUERY, time);
+			stats.nearResistors = nearResistors.size();
+		}
+		
+		final int count = collectEdges(source.x, source.y, source.intensity, margin, context);
+		
+		tracking.setEdges(context.edges, count, source);
+		tracking.settingsVersion = settingsVersion;
+		tracking.changeStamp = changes.getCount();
+		tracking.margin = margin;
+		tracking.radius = radius;
+		tracking.visibilityCell = getVisibilityCell(source.x, source.y);
+		light.owner = this;
+		light.gathered();
+		
+		if (stats != null) {
+			stats.endPhase(LightingStats.Phase.BUILD, time);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Writes light geometry of the sweep to <code>out</code>.
+	 * 
+	 * @return Number of verticles of light geometry.
+	 */
+	private static int write(final Sweep sweep, final LightSource source, final LightingContext context, final float[] out, final int offset) {
+		final float[] output = sweep.output;
+		final float axisX = sweep.axisX, axisY = sweep.axisY;
+		final int count = Math.min(sweep.outputCount, (out.length - offset) / 2);
+		final long time = context.stats != null ? System.nanoTime() : 0;
+		
+		for (int i = 0; i < count; ++i) {
+			final float x = output[2 * i], y = output[2 * i + 1];
+			
+			out[offset + 2 * i] = x * axisX - y * axisY + source.x;
+			out[offset + 2 * i + 1] = x * axisY + y * axisX + source.y;
+		}
+		
+		if (context.stats != null) {
+			context.stats.endPhase(LightingStats.Phase.OUTPUT, time);
+		}
+		
+		return sweep.outputCount;
+	}
+	
+	/**
+	 * Runs the sweep of <code>source</code> on sweep object of the
+	 * <code>context</code>.
+	 * 
+	 * @param soft Should the sweep record shadow steps for the soft
+	 * shadows.
+	 * 
+	 * @return The sweep with light geometry relative to light source.
+	 */
+	private Sweep sweep(final LightSource source, final LightingContext context, final boolean soft) {
+		final Sweep sweep = context.getSweep();
+		sweep.reset(source.intensity, getRayFan(source, context),
+				source instanceof SpotLightSource ? ((SpotLightSource) source).direction : 0);
+		sweep.recordSteps = soft;
+		
+		final LightingStats stats = context.stats;
+		long time = stats != null ? System.nanoTime() : 0;
+		
+		final List/*<LightResistor>*/ nearResistors = context.nearResistors;
+		nearResistors.clear();
+		findNearResistors(source, nearResistors);
+		
+		if (stats != null) {
+			time = stats.endPhase(LightingStats.Phase.QUERY, time);
+			stats.nearResistors = nearResistors.size();
+		}
+		
+		// build edges relative to light source
+		final int edgeCount = collectEdges(source, context);
+		final float[] edges = context.edges;
+		
+		for (int i = 0; i < edgeCount * 4; i += 4) {
+			sweep.addEdge(edges[i], edges[i + 1], edges[i + 2], edges[i + 3]);
+		}
+		
+		if (stats != null) {
+			stats.endPhase(LightingStats.Phase.BUILD, time);
+		}
+		
+		sweep.run(stats, false);
+		
+		return sweep;
+	}
+}
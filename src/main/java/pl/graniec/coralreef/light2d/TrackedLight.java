@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+/**
+ * Light source that is computed frame after frame, usually while it
+ * moves. Between frames it keeps the resistor edges around the light
+ * and the algorithm state, so the next frame only repairs the previous
+ * one instead of building it from scratch.
+ * <p>
+ * Edges are gathered from a bit bigger range than light intensity
+ * (see {@link #setSlack(float)}) together with back facing edges
+ * that can become front facing in that range. As long as the light
+ * stays in the range and no resistor in the range is added, removed or
+ * updated, the same edges are used and {@link SweepLightAlgorithm}
+ * fixes its angular order of end points by insertion sort, which takes
+ * nearly linear time when the light moved a little. Otherwise the
+ * light is gathered and sorted again.
+ * <p>
+ * Tracked light keeps its own state, so it can be computed by one
+ * thread at a time. The light should not move into a closed resistor.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class TrackedLight {
+	
+	/** The tracked light source */
+	private final LightSource source;
+	/** Additional range of gathered edges as fraction of light intensity */
+	private float slack = 0.1f;
+	
+	/** Algorithm that computed the previous frame, null if there is none */
+	AbstractLightingAlgorithm owner;
+	/** State of the previous frame, kept by the owner algorithm */
+	Object state;
+	
+	/** Number of times the edges were gathered */
+	private int gatherCount;
+	
+	public TrackedLight(LightSource source) {
+		if (source == null) {
+			throw new IllegalArgumentException("source cannot be null");
+		}
+		
+		this.source = source;
+	}
+	
+	/**
+	 * @return The tracked light source. It can be moved and changed
+	 * between frames.
+	 */
+	public LightSource getSource() {
+		return source;
+	}
+	
+	/**
+	 * See {@link #setSlack(float)}
+	 * 
+	 * @return Additional range of gathered edges as fraction of light
+	 * intensity.
+	 */
+	public float getSlack() {
+		return slack;
+	}
+	
+	/**
+	 * Sets how far the light can move before resistor edges are
+	 * gathered again. Bigger slack gathers edges less often, but every
+	 * frame has to process more edges.
+	 * <p>
+	 * By default slack is set to <code>0.1</code>.
+	 * 
+	 * @param slack Fraction of light intensity.
+	 */
+	public void setSlack(float slack) {
+		if (slack < 0) {
+			throw new IllegalArgumentException("slack cannot be negative");
+		}
+		
+		this.slack = slack;
+		invalidate();
+	}
+	
+	/**
+	 * Drops the state of previous frame, so the next frame is computed
+	 * from scratch.
+	 */
+	public void invalidate() {
+		owner = null;
+	}
+	
+	/**
+	 * @return Number of frames that gathered the edges and computed the
+	 * light from scratch.
+	 */
+	public int getGatherCount() {
+		return gatherCount;
+	}
+	
+	/**
+	 * Counts the edges gathered by the owner algorithm.
+	 */
+	void gathered() {
+		++gatherCount;
+	}
+}
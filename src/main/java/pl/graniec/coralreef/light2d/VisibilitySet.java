@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import pl.graniec.coralreef.geometry.Box2;
+
+/**
+ * Potentially visible set of static resistors. The scene is divided
+ * into square cells and every cell knows the resistors that can be
+ * seen from it, so lights inside of rooms don't get the resistors
+ * behind the walls although they are in light range (see
+ * {@link AbstractLightingAlgorithm#setVisibilitySet(VisibilitySet)}).
+ * <p>
+ * The set is conservative. Resistor is left out of the cell only when
+ * a single edge of another resistor hides all of it from every point
+ * of the cell, that is when all segments from the cell corners to the
+ * resistor verticles cross that edge. Segments crossing an edge from a
+ * point form a convex region, so the segments from the rest of the
+ * cell cross it too. Resistors hidden only by several edges together,
+ * like behind the joint of two walls, are kept.
+ * <p>
+ * The set is valid as long as its resistors are not removed or
+ * updated, then it's ignored until it's built again. Resistors added
+ * after the set was built are always used.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class VisibilitySet {
+	
+	/** Bottom left corner of the first cell */
+	private final float left, bottom;
+	private final float cellSize;
+	/** Maximum intensity of lights using this set */
+	private final float range;
+	private final int columns, rows;
+	/** Visible resistors of each cell, row after row */
+	private final LightResistor[][] cells;
+	/** All resistors the set was built of */
+	private final Map/*<LightResistor, Boolean>*/ members;
+	/** Is false when any of the members has been changed */
+	private volatile boolean valid = true;
+	
+	private VisibilitySet(final float left, final float bottom, final float cellSize, final float range, final int columns, final int rows, final Map members) {
+		this.left = left;
+		this.bottom = bottom;
+		this.cellSize = cellSize;
+		this.range = range;
+		this.columns = columns;
+		this.rows = rows;
+		this.members = members;
+		this.cells = new LightResistor[columns * rows][];
+	}
+	
+	/**
+	 * Builds the set of resistors currently added to the
+	 * <code>algorithm</code>.
+	 * 
+	 * @param algorithm The lighting algorithm with static resistors.
+	 * @param cellSize Size of the cell.
+	 * @param range Maximum intensity of lights using the set.
+	 * 
+	 * @return The built set.
+	 */
+	public static VisibilitySet build(AbstractLightingAlgorithm algorithm, float cellSize, float range) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("cell size must be positive");
+		}
+		
+		final Map members = new IdentityHashMap();
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		
+		for (final Iterator itor = algorithm.resistors.iterator(); itor.hasNext();) {
+			final LightResistor resistor = (LightResistor) itor.next();
+			final Box2 bbox = resistor.getBoundingBox();
+			
+			members.put(resistor, Boolean.TRUE);
+			
+			if (bbox != null) {
+				minX = Math.min(minX, bbox.left);
+				minY = Math.min(minY, bbox.bottom);
+				maxX = Math.max(maxX, bbox.right);
+				maxY = Math.max(maxY, bbox.top);
+			}
+		}
+		
+		if (minX > maxX) {
+			return new VisibilitySet(0, 0, cellSize, range, 0, 0, members);
+		}
+		
+		final int columns = Math.max(1, (int) Math.ceil((maxX - minX) / cellSize));
+		final int rows = Math.max(1, (int) Math.ceil((maxY - minY) / cellSize));
+		final VisibilitySet set = new VisibilitySet(minX, minY, cellSize, range, columns, rows, members);
+		
+		final CompiledScene scene = algorithm.scene;
+		final List/*<LightResistor>*/ near = new ArrayList();
+		final List/*<LightResistor>*/ visible = new ArrayList();
+		final float[] corners = new float[8];
+		
+		// resistors in range of any point of the cell
+		final float halfCell = cellSize / 2;
+		final float reach = range + halfCell * (float) Math.sqrt(2);
+		
+		for (int row = 0; row < rows; ++row) {
+			for (int column = 0; column < columns; ++column) {
+				final float left = minX + column * cellSize;
+				final float bottom = minY + row * cellSize;
+				
+				corners[0] = left;
+				corners[1] = bottom;
+				corners[2] = left + cellSize;
+				corners[3] = bottom;
+				corners[4] = left + cellSize;
+				corners[5] = bottom + cellSize;
+				corners[6] = left;
+				corners[7] = bottom + cellSize;
+				
+				near.clear();
+				algorithm.resistorIndex.query(left + halfCell, bottom + halfCell, reach, near);
+				
+				visible.clear();
+				
+				for (int r = 0; r < near.size(); ++r) {
+					final CompiledScene.Slot slot = scene.getSlot((LightResistor) near.get(r));
+					
+					if (slot != null && !isHidden(scene, slot, near, corners)) {
+						visible.add(near.get(r));
+					}
+				}
+				
+				set.cells[row * columns + column] = (LightResistor[]) visible.toArray(new LightResistor[visible.size()]);
+			}
+		}
+		
+		return set;
+	}
+	
+	/**
+	 * Tells if a single edge of other <code>near</code> resistor hides
+	 * the resistor of <code>slot</code> from the whole cell.
+	 * 
+	 * @param corners Cell corners as x, y pairs.
+	 */
+	private static boolean isHidden(final CompiledScene scene, final CompiledScene.Slot slot, final List near, final float[] corners) {
+		for (int r = 0; r < near.size(); ++r) {
+			final CompiledScene.Slot occluder = scene.getSlot((LightResistor) near.get(r));
+			
+			if (occluder == null || occluder == slot) {
+				continue;
+			}
+			
+			for (int e = occluder.first; e < occluder.first + occluder.count; ++e) {
+				if (hides(scene, e, slot, corners)) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Tells if all segments from cell corners to the verticles of the
+	 * resistor of <code>slot</code> cross the <code>edge</code>.
+	 */
+	private static boolean hides(final CompiledScene scene, final int edge, final CompiledScene.Slot slot, final float[] corners) {
+		final float ax = scene.x1[edge], ay = scene.y1[edge];
+		final float bx = scene.x2[edge], by = scene.y2[edge];
+		
+		for (int e = slot.first; e < slot.first + slot.count; ++e) {
+			for (int i = 0; i < 8; i += 2) {
+				if (!crosses(corners[i], corners[i + 1], scene.x1[e], scene.y1[e], ax, ay, bx, by)
+						|| !crosses(corners[i], corners[i + 1], scene.x2[e], scene.y2[e], ax, ay, bx, by)) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Tells if segment from <code>p</code> to <code>q</code> crosses
+	 * segment from <code>a</code> to <code>b</code>. Touching doesn't
+	 * count.
+	 */
+	private static boolean crosses(final double px, final double py, final double qx, final double qy,
+			final double ax, final double ay, final double bx, final double by) {
+		
+		final double a = (qx - px) * (ay - py) - (qy - py) * (ax - px);
+		final double b = (qx - px) * (by - py) - (qy - py) * (bx - px);
+		
+		if (a > 0 == b > 0 || a == 0 || b == 0) {
+			return false;
+		}
+		
+		final double p = (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+		final double q = (bx - ax) * (qy - ay) - (by - ay) * (qx - ax);
+		
+		return p > 0 != q > 0 && p != 0 && q != 0;
+	}
+	
+	/**
+	 * @return Size of the cell.
+	 */
+	public float getCellSize() {
+		return cellSize;
+	}
+	
+	/**
+	 * @return Maximum intensity of lights using this set.
+	 */
+	public float getRange() {
+		return range;
+	}
+	
+	/**
+	 * @return <code>false</code> if any resistor of this set has been
+	 * changed since it was built.
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+	
+	/**
+	 * Gets the number of resistors visible from the cell of the point.
+	 * 
+	 * @return Number of resistors or <code>-1</code> if the point is
+	 * out of all cells.
+	 */
+	public int getVisibleCount(float x, float y) {
+		final LightResistor[] cell = getCell(x, y);
+		return cell != null ? cell.length : -1;
+	}
+	
+	/**
+	 * @return Index of the cell of the point or <code>-1</code>.
+	 */
+	int getCellIndex(final float x, final float y) {
+		final int column = (int) Math.floor((x - left) / cellSize);
+		final int row = (int) Math.floor((y - bottom) / cellSize);
+		
+		if (column < 0 || column >= columns || row < 0 || row >= rows) {
+			return -1;
+		}
+		
+		return row * columns + column;
+	}
+	
+	/**
+	 * @return Resistors visible from the cell of the point or
+	 * <code>null</code> if it's out of all cells.
+	 */
+	LightResistor[] getCell(final float x, final float y) {
+		final int index = getCellIndex(x, y);
+		return index != -1 ? cells[index] : null;
+	}
+	
+	/**
+	 * Tells if the set was built with the resistor.
+	 */
+	boolean contains(final LightResistor resistor) {
+		return members.containsKey(resistor);
+	}
+	
+	/**
+	 * Marks this set as out of date.
+	 */
+	void invalidate() {
+		valid = false;
+	}
+}
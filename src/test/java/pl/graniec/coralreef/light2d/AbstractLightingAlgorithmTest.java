@@ -0,0 +1,600 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class AbstractLightingAlgorithmTest extends TestCase {
+	
+	/** Algorithm counting the computed lights */
+	private static class CountingAlgorithm extends SweepLightAlgorithm {
+		int computed;
+		
+		protected Geometry computeRays(LightSource source) {
+			++computed;
+			return super.computeRays(source);
+		}
+	}
+	
+	public void testCachedGeometryReused() {
+		final CountingAlgorithm algorithm = new CountingAlgorithm();
+		algorithm.setCacheSize(10);
+		algorithm.addLightResistor(Scenes.createBox(10, 10, 5));
+		
+		final LightSource light = new LightSource(0, 0, 50);
+		
+		final Geometry first = algorithm.createRays(light);
+		final Geometry second = algorithm.createRays(light);
+		
+		assertEquals(1, algorithm.computed);
+		assertEquals(first.getVerticles().length, second.getVerticles().length);
+		
+		// moved light is a different light
+		light.x = 1;
+		algorithm.createRays(light);
+		
+		assertEquals(2, algorithm.computed);
+	}
+	
+	public void testChangeOutOfRangeKeepsCache() {
+		final CountingAlgorithm algorithm = new CountingAlgorithm();
+		algorithm.setCacheSize(10);
+		
+		final LightSource light = new LightSource(0, 0, 50);
+		algorithm.createRays(light);
+		
+		algorithm.addLightResistor(Scenes.createBox(100, 100, 5));
+		algorithm.createRays(light);
+		
+		assertEquals(1, algorithm.computed);
+	}
+	
+	public void testChangeInRangeInvalidatesCache() {
+		final CountingAlgorithm algorithm = new CountingAlgorithm();
+		algorithm.setCacheSize(10);
+		
+		final LightResistor resistor = Scenes.createBox(100, 100, 5);
+		algorithm.addLightResistor(resistor);
+		
+		final LightSource light = new LightSource(0, 0, 50);
+		algorithm.createRays(light);
+		
+		// moving into the range
+		resistor.translate(-90, -90);
+		algorithm.updateLightResistor(resistor);
+		algorithm.createRays(light);
+		
+		assertEquals(2, algorithm.computed);
+		
+		// moving out of the range
+		resistor.translate(90, 90);
+		algorithm.updateLightResistor(resistor);
+		algorithm.createRays(light);
+		
+		assertEquals(3, algorithm.computed);
+		
+		algorithm.removeLightResistor(resistor);
+		algorithm.createRays(light);
+		
+		assertEquals(3, algorithm.computed);
+	}
+	
+	public void testLeastRecentlyUsedDropped() {
+		final CountingAlgorithm algorithm = new CountingAlgorithm();
+		algorithm.setCacheSize(2);
+		
+		final LightSource a = new LightSource(0, 0, 50);
+		final LightSource b = new LightSource(100, 0, 50);
+		final LightSource c = new LightSource(200, 0, 50);
+		
+		algorithm.createRays(a);
+		algorithm.createRays(b);
+		algorithm.createRays(a);
+		algorithm.createRays(c);
+		
+		assertEquals(3, algorithm.computed);
+		
+		// b was the least recently used
+		algorithm.createRays(a);
+		algorithm.createRays(b);
+		
+		assertEquals(4, algorithm.computed);
+	}
+	
+	public void testChordErrorAdaptsParts() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setChordError(0.5f);
+		
+		final int small = algorithm.createRays(new LightSource(0, 0, 5)).getVerticles().length;
+		
+		final LightSource big = new LightSource(0, 0, 5000);
+		final Point2[] v = algorithm.createRays(big).getVerticles();
+		
+		assertTrue(small < algorithm.getPartsNum());
+		assertTrue(v.length > algorithm.getPartsNum());
+		
+		// chords are close enough to the range, but not much closer
+		float maxError = 0;
+		
+		for (int i = 0; i < v.length; ++i) {
+			final Point2 a = v[i];
+			final Point2 b = v[(i + 1) % v.length];
+			final float mx = (a.x + b.x) / 2, my = (a.y + b.y) / 2;
+			
+			maxError = Math.max(maxError, 5000 - (float) Math.sqrt(mx * mx + my * my));
+		}
+		
+		assertTrue(maxError <= 0.5f);
+		assertTrue(maxError > 0.25f);
+		
+		// disabled again
+		algorithm.setChordError(0);
+		assertEquals(algorithm.getPartsNum(), algorithm.createRays(big).getVerticles().length);
+	}
+	
+	public void testLineOfSight() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.addLightResistor(Scenes.createBox(10, 10, 5));
+		
+		assertFalse(algorithm.hasLineOfSight(0, 12, 20, 12));
+		assertFalse(algorithm.hasLineOfSight(12, 0, 12, 20));
+		assertTrue(algorithm.hasLineOfSight(0, 0, 20, 0));
+		assertTrue(algorithm.hasLineOfSight(0, 0, 20, 5));
+		
+		// point on the border sees the side it faces
+		assertTrue(algorithm.hasLineOfSight(0, 12, 10, 12));
+		assertFalse(algorithm.hasLineOfSight(0, 12, 15, 12));
+	}
+	
+	public void testLitByAddedLights() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.addLightResistor(Scenes.createBox(10, -5, 10));
+		
+		final LightSource front = new LightSource(0, 0, 50);
+		final LightSource back = new LightSource(40, 0, 50);
+		final SpotLightSource spot = new SpotLightSource(0, 30, 50, 0, 45);
+		
+		algorithm.addLightSource(front);
+		algorithm.addLightSource(back);
+		algorithm.addLightSource(spot);
+		
+		final List found = new ArrayList();
+		
+		assertEquals(1, algorithm.litBy(5, 0, found));
+		assertSame(front, found.get(0));
+		
+		found.clear();
+		assertEquals(2, algorithm.litBy(35, 10, found));
+		assertTrue(found.contains(back) && found.contains(spot));
+		
+		// out of range or out of spot cone
+		assertFalse(algorithm.isLit(100, 0));
+		assertFalse(algorithm.isLit(-30, 60));
+		
+		algorithm.removeLightSource(front);
+		assertFalse(algorithm.isLit(5, 0));
+		
+		back.x = 0;
+		algorithm.updateLightSource(back);
+		assertTrue(algorithm.isLit(5, 0));
+	}
+	
+	public void testBatchQueriesMatchSingle() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final Random random = new Random(5);
+		
+		algorithm.setParallelism(2);
+		
+		for (int i = 0; i < 100; ++i) {
+			algorithm.addLightResistor(Scenes.createBox(random.nextFloat() * 500, random.nextFloat() * 500, 5 + random.nextFloat() * 20));
+		}
+		
+		for (int i = 0; i < 20; ++i) {
+			algorithm.addLightSource(new LightSource(random.nextFloat() * 500, random.nextFloat() * 500, 100));
+		}
+		
+		final int count = 2000;
+		final float[] points = new float[count * 2];
+		final float[] segments = new float[count * 4];
+		
+		for (int i = 0; i < segments.length; ++i) {
+			segments[i] = random.nextFloat() * 500;
+		}
+		
+		System.arraycopy(segments, 0, points, 0, points.length);
+		
+		final boolean[] lit = new boolean[count];
+		final boolean[] seen = new boolean[count];
+		
+		algorithm.isLit(points, lit);
+		algorithm.hasLineOfSight(segments, seen);
+		
+		int litCount = 0, seenCount = 0;
+		
+		for (int i = 0; i < count; ++i) {
+			assertEquals(algorithm.isLit(points[i * 2], points[i * 2 + 1]), lit[i]);
+			assertEquals(algorithm.hasLineOfSight(segments[i * 4], segments[i * 4 + 1], segments[i * 4 + 2], segments[i * 4 + 3]), seen[i]);
+			
+			litCount += lit[i] ? 1 : 0;
+			seenCount += seen[i] ? 1 : 0;
+		}
+		
+		// both answers occur
+		assertTrue(litCount > 0 && litCount < count);
+		assertTrue(seenCount > 0 && seenCount < count);
+	}
+	
+	public void testRaycastHitsNearestEdge() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final LightResistor box = Scenes.createBox(10, 10, 5);
+		
+		algorithm.addLightResistor(box);
+		algorithm.addLightResistor(Scenes.createBox(30, 10, 5));
+		
+		final RaycastHit hit = algorithm.raycast(new Point2(0, 12), new Point2(2, 0), 100);
+		
+		assertSame(box, hit.resistor);
+		assertEquals(10, hit.x, 1e-5f);
+		assertEquals(12, hit.y, 1e-5f);
+		assertEquals(10, hit.distance, 1e-5f);
+		assertEquals(-1, hit.normalX, 1e-5f);
+		assertEquals(0, hit.normalY, 1e-5f);
+		
+		// too short, missing and starting on the border
+		assertNull(algorithm.raycast(new Point2(0, 12), new Point2(1, 0), 5));
+		assertNull(algorithm.raycast(new Point2(0, 12), new Point2(-1, 0), 100));
+		assertNull(algorithm.raycast(new Point2(10, 12), new Point2(-1, 0), 100));
+		
+		// from inside the box
+		assertEquals(3, algorithm.raycast(new Point2(12, 12), new Point2(1, 0), 100).distance, 1e-5f);
+	}
+	
+	public void testBatchRaycastMatchesBruteForce() {
+		final Random random = new Random(11);
+		final SweepLightAlgorithm tree = new SweepLightAlgorithm();
+		final SweepLightAlgorithm grid = new SweepLightAlgorithm();
+		final List boxes = new ArrayList();
+		
+		tree.setParallelism(2);
+		grid.setResistorIndex(new GridResistorIndex(20));
+		
+		for (int i = 0; i < 200; ++i) {
+			final LightResistor r = Scenes.createBox(random.nextFloat() * 500, random.nextFloat() * 500, 2 + random.nextFloat() * 20);
+			
+			boxes.add(r);
+			tree.addLightResistor(r);
+			grid.addLightResistor(r);
+		}
+		
+		final int count = 1000;
+		final float[] rays = new float[count * 4];
+		
+		for (int i = 0; i < count; ++i) {
+			final double angle = random.nextDouble() * Math.PI * 2;
+			
+			rays[i * 4] = random.nextFloat() * 500;
+			rays[i * 4 + 1] = random.nextFloat() * 500;
+			rays[i * 4 + 2] = (float) Math.cos(angle);
+			rays[i * 4 + 3] = (float) Math.sin(angle);
+		}
+		
+		final float[] distances = new float[count];
+		final LightResistor[] hits = new LightResistor[count];
+		int hitCount = 0;
+		
+		tree.raycast(rays, 150, distances, hits);
+		
+		for (int i = 0; i < count; ++i) {
+			float expected = Float.POSITIVE_INFINITY;
+			
+			for (int j = 0; j < boxes.size(); ++j) {
+				final Point2[] v = ((LightResistor) boxes.get(j)).getVerticles();
+				
+				for (int k = 0; k < v.length; ++k) {
+					expected = Math.min(expected, intersect(rays, i, v[k], v[(k + 1) % v.length]));
+				}
+			}
+			
+			if (expected > 150) {
+				expected = Float.POSITIVE_INFINITY;
+				assertNull(hits[i]);
+			} else {
+				assertNotNull(hits[i]);
+				++hitCount;
+			}
+			
+			assertEquals(expected, distances[i], 1e-3f);
+			
+			final RaycastHit hit = new RaycastHit();
+			assertEquals(hits[i] != null, grid.raycast(rays[i * 4], rays[i * 4 + 1], rays[i * 4 + 2], rays[i * 4 + 3], 150, hit));
+			
+			if (hits[i] != null) {
+				assertEquals(expected, hit.distance, 1e-3f);
+			}
+		}
+		
+		assertTrue(hitCount > 0 && hitCount < count);
+	}
+	
+	/**
+	 * @return Distance along unit ray <code>i</code> to the segment.
+	 */
+	private static float intersect(float[] rays, int i, Point2 a, Point2 b) {
+		final float t = Scenes.intersect(rays[i * 4], rays[i * 4 + 1], rays[i * 4 + 2], rays[i * 4 + 3], a.x, a.y, b.x, b.y);
+		
+		// edges thru the ray origin are not hit
+		return t > 0 ? t : Float.POSITIVE_INFINITY;
+	}
+	
+	public void testSoftShadowPenumbraMatchesSampledDisc() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.addLightResistor(Scenes.createBox(10, -5, 10));
+		
+		final AreaLightSource source = new AreaLightSource(0, 0, 100, 2);
+		final SoftLightGeometry geometry = algorithm.createApproximateSoftRays(source);
+		final float[] p = geometry.getPenumbra();
+		
+		assertTrue(geometry.getLight().getVerticles().length > 0);
+		
+		// two visible silhouette corners of the box
+		assertEquals(8, geometry.getPenumbraTriangleCount());
+		
+		for (int t = 0; t < geometry.getPenumbraTriangleCount(); ++t) {
+			for (int v = 1; v < 3; ++v) {
+				final int i = t * SoftLightGeometry.TRIANGLE_SIZE + v * 3;
+				
+				// point half way from the apex to the fan end
+				final float x = (p[t * SoftLightGeometry.TRIANGLE_SIZE] + p[i]) / 2;
+				final float y = (p[t * SoftLightGeometry.TRIANGLE_SIZE + 1] + p[i + 1]) / 2;
+				
+				assertEquals(sampleDisc(algorithm, source, x, y), p[i + 2], 0.05f);
+			}
+		}
+		
+		// polygon verticles moved a bit towards the light see the whole disc
+		final Point2[] polygon = geometry.getLight().getVerticles();
+		
+		for (int i = 0; i < polygon.length; ++i) {
+			assertTrue(sampleDisc(algorithm, source, polygon[i].x * 0.98f, polygon[i].y * 0.98f) > 0.98f);
+		}
+		
+		assertEquals(0.5f, SoftShadows.discCoverage(0), 1e-6f);
+		assertEquals(0f, SoftShadows.discCoverage(-1), 1e-6f);
+		assertEquals(1f, SoftShadows.discCoverage(1), 1e-6f);
+	}
+	
+	public void testPenumbraFanEndsAtWallBehind() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.addLightResistor(Scenes.createBox(10, -5, 10));
+		
+		// wall across the whole fan of the upper corner
+		final LightResistor wall = new LightResistor();
+		wall.addVerticle(new Point2(40, 10));
+		wall.addVerticle(new Point2(40, 35));
+		algorithm.addLightResistor(wall);
+		
+		final AreaLightSource source = new AreaLightSource(0, 0, 100, 2);
+		final SoftLightGeometry geometry = algorithm.createApproximateSoftRays(source);
+		final float[] p = geometry.getPenumbra();
+		
+		int fan = 0;
+		
+		for (int t = 0; t < geometry.getPenumbraTriangleCount(); ++t) {
+			final int apex = t * SoftLightGeometry.TRIANGLE_SIZE;
+			
+			if (p[apex] != 10 || p[apex + 1] != 5) {
+				continue;
+			}
+			
+			++fan;
+			
+			for (int v = 1; v < 3; ++v) {
+				final int i = apex + v * 3;
+				
+				// fan rays end on the wall
+				assertEquals(40, p[i], 1e-3f);
+				assertEquals(sampleDisc(algorithm, source, (p[apex] + p[i]) / 2, (p[apex + 1] + p[i + 1]) / 2), p[i + 2], 0.05f);
+			}
+		}
+		
+		assertEquals(4, fan);
+	}
+	
+	public void testPointAreaLightHasNoPenumbra() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.addLightResistor(Scenes.createBox(10, -5, 10));
+		
+		final AreaLightSource source = new AreaLightSource(0, 0, 100, 0);
+		final SoftLightGeometry geometry = algorithm.createApproximateSoftRays(source);
+		
+		assertEquals(0, geometry.getPenumbraTriangleCount());
+		assertEquals(algorithm.createRays(source).getVerticles().length, geometry.getLight().getVerticles().length);
+		
+		try {
+			new AreaLightSource(0, 0, 100, -1);
+			fail("negative radius accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * @return Fraction of the light disc seen from the point.
+	 */
+	private static float sampleDisc(AbstractLightingAlgorithm algorithm, AreaLightSource source, float x, float y) {
+		int seen = 0, total = 0;
+		
+		for (int i = -20; i <= 20; ++i) {
+			for (int j = -20; j <= 20; ++j) {
+				final float sx = source.radius * i / 20f, sy = source.radius * j / 20f;
+				
+				if (sx * sx + sy * sy > source.radius * source.radius) {
+					continue;
+				}
+				
+				++total;
+				seen += algorithm.hasLineOfSight(source.x + sx, source.y + sy, x, y) ? 1 : 0;
+			}
+		}
+		
+		return seen / (float) total;
+	}
+	
+	public void testDirtyLightsAfterSceneChanges() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final LightSource first = new LightSource(0, 0, 50);
+		final LightSource second = new LightSource(200, 0, 50);
+		final LightSource third = new LightSource(400, 0, 50);
+		final List dirty = new ArrayList();
+		
+		algorithm.addLightSource(first);
+		algorithm.addLightSource(second);
+		algorithm.addLightSource(third);
+		
+		// new lights are out of date
+		assertEquals(3, algorithm.pollDirtyLights(dirty));
+		assertEquals(3, dirty.size());
+		assertEquals(0, algorithm.pollDirtyLights(dirty));
+		
+		// only the light in range of the new resistor
+		final LightResistor door = Scenes.createBox(190, 0, 5);
+		algorithm.addLightResistor(door);
+		
+		assertFalse(algorithm.isLightDirty(first));
+		assertTrue(algorithm.isLightDirty(second));
+		
+		dirty.clear();
+		assertEquals(1, algorithm.pollDirtyLights(dirty));
+		assertSame(second, dirty.get(0));
+		
+		// moved resistor changes both the old and the new place
+		door.translate(200, 0);
+		algorithm.updateLightResistor(door);
+		
+		dirty.clear();
+		assertEquals(2, algorithm.pollDirtyLights(dirty));
+		assertTrue(dirty.contains(second) && dirty.contains(third));
+		
+		// in range box of the light but out of its circle
+		algorithm.addLightResistor(Scenes.createBox(40, 40, 5));
+		assertEquals(0, algorithm.pollDirtyLights(dirty));
+		
+		first.x = 10;
+		algorithm.updateLightSource(first);
+		assertTrue(algorithm.isLightDirty(first));
+		
+		algorithm.removeLightSource(first);
+		assertFalse(algorithm.isLightDirty(first));
+		
+		// settings change all light geometries
+		algorithm.setPartsNum(algorithm.getPartsNum() * 2);
+		
+		dirty.clear();
+		assertEquals(2, algorithm.pollDirtyLights(dirty));
+	}
+	
+	public void testTranslateLeavesSharedPointsAlone() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final Point2 corner = new Point2(10, 0);
+		
+		// two walls sharing the corner point
+		final LightResistor first = new LightResistor();
+		first.addVerticle(new Point2(10, -10));
+		first.addVerticle(corner);
+		
+		final LightResistor second = new LightResistor();
+		second.addVerticle(corner);
+		second.addVerticle(new Point2(10, 10));
+		
+		algorithm.addLightResistor(first);
+		algorithm.addLightResistor(second);
+		
+		first.translate(0, -100);
+		algorithm.updateLightResistor(first);
+		
+		assertEquals(10, corner.x, 0);
+		assertEquals(0, corner.y, 0);
+		assertFalse(algorithm.hasLineOfSight(0, 5, 30, 5));
+		assertTrue(algorithm.hasLineOfSight(0, -5, 30, -5));
+	}
+	
+	public void testEqualResistorsAreKeptApart() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final LightResistor first = Scenes.createBox(10, -5, 10);
+		final LightResistor second = Scenes.createBox(10, -5, 10);
+		
+		algorithm.addLightResistor(first);
+		algorithm.addLightResistor(second);
+		algorithm.removeLightResistor(first);
+		
+		// the same verticles don't make them the same resistor
+		assertFalse(algorithm.hasLineOfSight(0, 0, 30, 0));
+		
+		second.getVerticles()[0].x = 11;
+		algorithm.updateLightResistor(second);
+		algorithm.removeLightResistor(second);
+		
+		assertTrue(algorithm.hasLineOfSight(0, 0, 30, 0));
+	}
+	
+	public void testUpdateOfResistorNeverAdded() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final LightResistor stray = Scenes.createBox(10, -5, 10);
+		final LightSource light = new LightSource(0, 0, 50);
+		
+		algorithm.addLightSource(light);
+		algorithm.pollDirtyLights(new ArrayList());
+		algorithm.updateLightResistor(stray);
+		
+		final List found = new ArrayList();
+		algorithm.findNearResistors(light, found);
+		
+		assertTrue(found.isEmpty());
+		assertFalse(algorithm.isLightDirty(light));
+		assertTrue(algorithm.hasLineOfSight(0, 0, 30, 0));
+		
+		// removed one is not indexed again either
+		algorithm.addLightResistor(stray);
+		algorithm.removeLightResistor(stray);
+		algorithm.updateLightResistor(stray);
+		
+		algorithm.findNearResistors(light, found);
+		assertTrue(found.isEmpty());
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class CompiledSceneTest extends TestCase {
+
+	private static void assertEdges(final CompiledScene scene, final LightResistor resistor) {
+		final CompiledScene.Slot slot = scene.getSlot(resistor);
+		final Point2[] v = resistor.getVerticles();
+		
+		assertEquals(v.length, slot.count);
+		
+		for (int i = 0; i < v.length; ++i) {
+			final int e = slot.first + i;
+			
+			assertEquals(v[i].x, scene.x1[e], 0f);
+			assertEquals(v[i].y, scene.y1[e], 0f);
+			assertEquals(v[(i + 1) % v.length].x, scene.x2[e], 0f);
+			assertEquals(v[(i + 1) % v.length].y, scene.y2[e], 0f);
+			assertSame(resistor, scene.getResistor(scene.owner[e]));
+		}
+	}
+	
+	public void testTwoVerticlesMakeSingleEdge() {
+		final CompiledScene scene = new CompiledScene();
+		final LightResistor line = new LightResistor();
+		line.addVerticle(new Point2(0, 0));
+		line.addVerticle(new Point2(10, 0));
+		
+		scene.add(line);
+		
+		assertEquals(1, scene.getSlot(line).count);
+		assertEquals(1, scene.getLiveEdgeCount());
+	}
+	
+	public void testEdgesSurviveRemovalsAndUpdates() {
+		final CompiledScene scene = new CompiledScene();
+		final LightResistor[] boxes = new LightResistor[200];
+		
+		for (int i = 0; i < boxes.length; ++i) {
+			boxes[i] = Scenes.createRect(i * 10, 0, i * 10 + 5, 5);
+			scene.add(boxes[i]);
+		}
+		
+		// remove most of them so the arrays get compacted
+		for (int i = 0; i < boxes.length; ++i) {
+			if (i % 4 != 0) {
+				scene.remove(boxes[i]);
+				assertNull(scene.getSlot(boxes[i]));
+			}
+		}
+		
+		// reshape one of the rest
+		boxes[8].addVerticle(new Point2(82, 7));
+		scene.update(boxes[8]);
+		
+		boxes[4].translate(1, 1);
+		scene.update(boxes[4]);
+		
+		assertEquals(50 * 4 + 1, scene.getLiveEdgeCount());
+		
+		for (int i = 0; i < boxes.length; i += 4) {
+			assertEdges(scene, boxes[i]);
+		}
+	}
+	
+	public void testSimplifyMergesNearlyCollinearEdges() {
+		final CompiledScene scene = new CompiledScene();
+		final LightResistor resistor = new LightResistor();
+		resistor.addVerticle(new Point2(0, 0));
+		resistor.addVerticle(new Point2(5, 0.01f));
+		resistor.addVerticle(new Point2(10, 0));
+		resistor.addVerticle(new Point2(10, 5));
+		resistor.addVerticle(new Point2(10, 10));
+		resistor.addVerticle(new Point2(5, 10));
+		resistor.addVerticle(new Point2(0, 10));
+		resistor.addVerticle(new Point2(-0.01f, 5));
+		
+		scene.add(resistor);
+		assertEquals(8, scene.getSlot(resistor).count);
+		
+		scene.setTolerance(0.1f);
+		
+		final CompiledScene.Slot slot = scene.getSlot(resistor);
+		assertEquals(4, slot.count);
+		assertEquals(1, slot.winding);
+		
+		for (int i = 0; i < 4; ++i) {
+			final int e = slot.first + i;
+			
+			assertEquals(scene.x2[e], scene.x1[slot.first + (i + 1) % 4], 0f);
+			assertEquals(scene.y2[e], scene.y1[slot.first + (i + 1) % 4], 0f);
+			assertTrue(scene.x1[e] == 0 || scene.x1[e] == 10);
+			assertTrue(scene.y1[e] == 0 || scene.y1[e] == 10);
+		}
+	}
+	
+	public void testConcaveResistorKeepsHull() {
+		final CompiledScene scene = new CompiledScene();
+		final LightResistor resistor = new LightResistor();
+		resistor.addVerticle(new Point2(0, 0));
+		resistor.addVerticle(new Point2(10, 0));
+		resistor.addVerticle(new Point2(10, 5));
+		resistor.addVerticle(new Point2(5, 5));
+		resistor.addVerticle(new Point2(5, 10));
+		resistor.addVerticle(new Point2(0, 10));
+		
+		scene.add(resistor);
+		
+		final CompiledScene.Slot slot = scene.getSlot(resistor);
+		assertEquals(6, slot.count);
+		assertEquals(5, slot.hullCount);
+		assertEquals(11, scene.getLiveEdgeCount());
+		
+		// hull goes counter-clockwise around all verticles
+		for (int e = slot.first + slot.count; e < slot.first + slot.count + slot.hullCount; ++e) {
+			assertTrue(scene.isFrontFacing(e, 1, 20, 20) || scene.isFrontFacing(e, 1, -20, -20));
+			assertFalse(scene.isFrontFacing(e, 1, 4, 4));
+		}
+		
+		// convex resistor has no hull
+		final LightResistor box = Scenes.createRect(0, 0, 5, 5);
+		scene.add(box);
+		assertEquals(0, scene.getSlot(box).hullCount);
+	}
+}
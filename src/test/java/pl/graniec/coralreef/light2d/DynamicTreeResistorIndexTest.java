@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Box2;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class DynamicTreeResistorIndexTest extends TestCase {
+
+	private static Set bruteForce(List resistors, float x, float y, float radius) {
+		final Set result = new HashSet();
+		
+		for (int i = 0; i < resistors.size(); ++i) {
+			final LightResistor r = (LightResistor) resistors.get(i);
+			final Box2 bbox = r.getBoundingBox();
+			
+			if (Bounds.intersectsCircle(bbox, x, y, radius)) {
+				result.add(r);
+			}
+		}
+		
+		return result;
+	}
+	
+	public void testRemove() {
+		final DynamicTreeResistorIndex index = new DynamicTreeResistorIndex();
+		
+		final LightResistor r1 = Scenes.createBox(0, 0, 5);
+		final LightResistor r2 = Scenes.createBox(10, 0, 5);
+		
+		index.add(r1);
+		index.add(r2);
+		index.remove(r1);
+		
+		final List result = new ArrayList();
+		index.query(0, 0, 100, result);
+		
+		assertEquals(1, result.size());
+		assertSame(r2, result.get(0));
+	}
+	
+	public void testUpdateMovesResistor() {
+		final DynamicTreeResistorIndex index = new DynamicTreeResistorIndex(1f);
+		
+		final LightResistor r = Scenes.createBox(0, 0, 5);
+		index.add(r);
+		
+		r.translate(100, 100);
+		index.update(r);
+		
+		final List result = new ArrayList();
+		index.query(0, 0, 10, result);
+		assertEquals(0, result.size());
+		
+		index.query(100, 100, 10, result);
+		assertEquals(1, result.size());
+	}
+	
+	public void testRandomChangesMatchBruteForce() {
+		final Random random = new Random(1234);
+		final DynamicTreeResistorIndex index = new DynamicTreeResistorIndex();
+		final List resistors = new ArrayList();
+		
+		for (int i = 0; i < 500; ++i) {
+			final LightResistor r = Scenes.createBox(random.nextFloat() * 1000, random.nextFloat() * 1000, 1 + random.nextFloat() * 20);
+			resistors.add(r);
+			index.add(r);
+		}
+		
+		for (int step = 0; step < 2000; ++step) {
+			final LightResistor r = (LightResistor) resistors.get(random.nextInt(resistors.size()));
+			
+			if (random.nextInt(10) == 0) {
+				index.remove(r);
+				resistors.remove(r);
+			} else {
+				r.translate(random.nextFloat() * 20 - 10, random.nextFloat() * 20 - 10);
+				index.update(r);
+			}
+		}
+		
+		for (int i = 0; i < 100; ++i) {
+			final float x = random.nextFloat() * 1000;
+			final float y = random.nextFloat() * 1000;
+			final float radius = random.nextFloat() * 100;
+			
+			final List result = new ArrayList();
+			index.query(x, y, radius, result);
+			
+			assertEquals(bruteForce(resistors, x, y, radius), new HashSet(result));
+			assertEquals(result.size(), new HashSet(result).size());
+		}
+	}
+	
+	public void testSegmentQueryMatchesBruteForce() {
+		final Random random = new Random(99);
+		final DynamicTreeResistorIndex index = new DynamicTreeResistorIndex();
+		final List resistors = new ArrayList();
+		
+		for (int i = 0; i < 300; ++i) {
+			final LightResistor r = Scenes.createBox(random.nextFloat() * 1000, random.nextFloat() * 1000, 1 + random.nextFloat() * 20);
+			resistors.add(r);
+			index.add(r);
+		}
+		
+		for (int i = 0; i < 200; ++i) {
+			final float ax = random.nextFloat() * 1000, ay = random.nextFloat() * 1000;
+			final float bx = random.nextFloat() * 1000, by = random.nextFloat() * 1000;
+			
+			final Set expected = new HashSet();
+			
+			for (int j = 0; j < resistors.size(); ++j) {
+				final Box2 b = ((LightResistor) resistors.get(j)).getBoundingBox();
+				
+				if (Bounds.intersectsSegment(b.left, b.bottom, b.right, b.top, ax, ay, bx, by)) {
+					expected.add(resistors.get(j));
+				}
+			}
+			
+			final List result = new ArrayList();
+			index.querySegment(ax, ay, bx, by, result);
+			
+			assertEquals(expected, new HashSet(result));
+			assertEquals(result.size(), new HashSet(result).size());
+		}
+	}
+	
+	public void testUpdateIgnoresUnknownResistor() {
+		final DynamicTreeResistorIndex index = new DynamicTreeResistorIndex();
+		final LightResistor empty = new LightResistor();
+		
+		index.update(Scenes.createBox(0, 0, 10));
+		index.add(empty);
+		
+		// resistor added without verticles is indexed once it has them
+		empty.addVerticle(new Point2(20, 0));
+		empty.addVerticle(new Point2(25, 5));
+		index.update(empty);
+		
+		final List result = new ArrayList();
+		index.query(0, 0, 100, result);
+		
+		assertEquals(1, result.size());
+		assertSame(empty, result.get(0));
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Box2;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class GridResistorIndexTest extends TestCase {
+
+	public void testQueryFindsOnlyNearResistors() {
+		final GridResistorIndex index = new GridResistorIndex(10f);
+		
+		final LightResistor near = Scenes.createRect(5, 5, 8, 8);
+		final LightResistor far = Scenes.createRect(100, 100, 110, 110);
+		
+		index.add(near);
+		index.add(far);
+		
+		final List result = new ArrayList();
+		index.query(0, 0, 10, result);
+		
+		assertEquals(1, result.size());
+		assertSame(near, result.get(0));
+	}
+	
+	public void testResistorCoveringManyCellsReportedOnce() {
+		final GridResistorIndex index = new GridResistorIndex(10f);
+		
+		final LightResistor wide = Scenes.createRect(-25, -5, 25, 5);
+		index.add(wide);
+		
+		final List result = new ArrayList();
+		index.query(0, 0, 30, result);
+		
+		assertEquals(1, result.size());
+	}
+	
+	public void testCircleMissingBoxCorner() {
+		final GridResistorIndex index = new GridResistorIndex(10f);
+		
+		// light is next to the middle of long wall, no corner is in range
+		final LightResistor wall = Scenes.createRect(-50, 5, 50, 6);
+		index.add(wall);
+		
+		final List result = new ArrayList();
+		index.query(0, 0, 10, result);
+		
+		assertEquals(1, result.size());
+	}
+	
+	public void testOversizedResistor() {
+		final GridResistorIndex index = new GridResistorIndex(1f);
+		
+		final LightResistor huge = Scenes.createRect(-1000, -1000, 1000, 1000);
+		index.add(huge);
+		
+		final List result = new ArrayList();
+		index.query(500, 500, 1, result);
+		
+		assertEquals(1, result.size());
+	}
+	
+	public void testSegmentQueryMatchesBruteForce() {
+		final Random random = new Random(7);
+		final GridResistorIndex index = new GridResistorIndex(25f);
+		final List resistors = new ArrayList();
+		
+		for (int i = 0; i < 300; ++i) {
+			final float left = random.nextFloat() * 1000 - 500, bottom = random.nextFloat() * 1000 - 500;
+			final LightResistor r = Scenes.createRect(left, bottom, left + 1 + random.nextFloat() * 60, bottom + 1 + random.nextFloat() * 60);
+			
+			resistors.add(r);
+			index.add(r);
+		}
+		
+		// oversized one
+		final LightResistor huge = Scenes.createRect(-400, 100, 400, 110);
+		resistors.add(huge);
+		index.add(huge);
+		
+		for (int i = 0; i < 300; ++i) {
+			final float ax = random.nextFloat() * 1000 - 500, ay = random.nextFloat() * 1000 - 500;
+			
+			// some segments are axis aligned or inside one cell
+			float bx = random.nextFloat() * 1000 - 500, by = random.nextFloat() * 1000 - 500;
+			
+			if (i % 3 == 1) {
+				by = ay;
+			} else if (i % 3 == 2) {
+				bx = ax + random.nextFloat() * 10;
+				by = ay + random.nextFloat() * 10;
+			}
+			
+			final Set expected = new HashSet();
+			
+			for (int j = 0; j < resistors.size(); ++j) {
+				final Box2 b = ((LightResistor) resistors.get(j)).getBoundingBox();
+				
+				if (Bounds.intersectsSegment(b.left, b.bottom, b.right, b.top, ax, ay, bx, by)) {
+					expected.add(resistors.get(j));
+				}
+			}
+			
+			final List result = new ArrayList();
+			index.querySegment(ax, ay, bx, by, result);
+			
+			assertEquals(expected, new HashSet(result));
+			assertEquals(result.size(), new HashSet(result).size());
+		}
+	}
+	
+	public void testUpdateIgnoresUnknownResistor() {
+		final GridResistorIndex index = new GridResistorIndex(10f);
+		final LightResistor empty = new LightResistor();
+		
+		index.update(Scenes.createRect(0, 0, 10, 10));
+		index.add(empty);
+		
+		// resistor added without verticles is indexed once it has them
+		empty.addVerticle(new Point2(20, 0));
+		empty.addVerticle(new Point2(25, 5));
+		index.update(empty);
+		
+		final List result = new ArrayList();
+		index.query(0, 0, 100, result);
+		
+		assertEquals(1, result.size());
+		assertSame(empty, result.get(0));
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LightMapTest extends TestCase {
+	
+	public void testFalloffAndShadow() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setPartsNum(64);
+		algorithm.addLightResistor(Scenes.createBox(30, 18, 4));
+		
+		final LightMap map = new LightMap(algorithm, 40, 40);
+		final float[] grid = new float[40 * 40];
+		
+		map.render(Collections.singletonList(new LightSource(20, 20, 16)), grid);
+		
+		// cell centered at 20.5, 20.5
+		assertEquals(1 - (float) Math.sqrt(0.5) / 16, grid[20 * 40 + 20], 0.0001f);
+		// out of the range
+		assertEquals(0, grid[20 * 40 + 38], 0);
+		assertEquals(0, grid[0], 0);
+		// in front of and behind the box
+		assertTrue(grid[20 * 40 + 28] > 0);
+		assertEquals(0, grid[20 * 40 + 35], 0);
+	}
+	
+	public void testTilesMatchSingleThread() {
+		final Random random = new Random(7);
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		
+		for (int i = 0; i < 40; ++i) {
+			algorithm.addLightResistor(Scenes.createBox(random.nextFloat() * 200, random.nextFloat() * 200, 5));
+		}
+		
+		final List lights = new ArrayList();
+		
+		for (int i = 0; i < 30; ++i) {
+			lights.add(new LightSource(random.nextFloat() * 200, random.nextFloat() * 200, 10 + random.nextFloat() * 40));
+		}
+		
+		final LightMap map = new LightMap(algorithm, 100, 100);
+		map.setCellSize(2);
+		
+		algorithm.setParallelism(1);
+		map.setTileSize(100);
+		final int[] expected = new int[100 * 100];
+		map.render(lights, expected);
+		
+		algorithm.setParallelism(4);
+		map.setTileSize(7);
+		final int[] actual = new int[100 * 100];
+		map.render(lights, actual);
+		
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LightingContextTest extends TestCase {
+	
+	/** Bytes that single light may allocate on average */
+	private static final long BYTES_PER_LIGHT = 64;
+	
+	private static final int LIGHTS = 200;
+	
+	/**
+	 * @return Bytes allocated by current thread so far or <code>-1</code>
+	 * if JVM can't tell it.
+	 */
+	private static long allocatedBytes() {
+		try {
+			final Class type = Class.forName("com.sun.management.ThreadMXBean");
+			final Object bean = ManagementFactory.getThreadMXBean();
+			
+			if (!type.isInstance(bean)) {
+				return -1;
+			}
+			
+			final Method method = type.getMethod("getThreadAllocatedBytes", new Class[] {Long.TYPE});
+			final Long bytes = (Long) method.invoke(bean, new Object[] {new Long(Thread.currentThread().getId())});
+			
+			return bytes.longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Computes the same lights many times and checks that after the
+	 * warm up nearly nothing is allocated.
+	 */
+	private void assertSteadyStateAllocation(final AbstractLightingAlgorithm algorithm) {
+		final Random random = new Random(11);
+		
+		for (int i = 0; i < 300; ++i) {
+			algorithm.addLightResistor(Scenes.createBox(random.nextFloat() * 1000, random.nextFloat() * 1000, 10, 10));
+		}
+		
+		final LightSource[] lights = new LightSource[LIGHTS];
+		
+		for (int i = 0; i < lights.length; ++i) {
+			lights[i] = new LightSource(random.nextFloat() * 1000, random.nextFloat() * 1000, 80);
+		}
+		
+		final LightingContext context = new LightingContext();
+		final float[] out = new float[4096];
+		
+		// warm up, arrays grow to their final size
+		for (int frame = 0; frame < 3; ++frame) {
+			for (int i = 0; i < lights.length; ++i) {
+				assertTrue(algorithm.createRays(lights[i], context, out, 0) * 2 <= out.length);
+			}
+		}
+		
+		final long before = allocatedBytes();
+		
+		if (before == -1) {
+			// allocation counting is not supported by this JVM
+			return;
+		}
+		
+		for (int i = 0; i < lights.length; ++i) {
+			algorithm.createRays(lights[i], context, out, 0);
+		}
+		
+		final long allocated = allocatedBytes() - before;
+		
+		assertTrue("allocated " + allocated + " bytes", allocated < LIGHTS * BYTES_PER_LIGHT);
+	}
+	
+	public void testSweepAllocatesNothing() {
+		assertSteadyStateAllocation(new SweepLightAlgorithm());
+	}
+	
+	public void testSimpleAllocatesNothing() {
+		assertSteadyStateAllocation(new SimpleLightAlgorithm());
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LightingStatsTest extends TestCase {
+	
+	/** Listener remembering the last reported statistics */
+	private static class RecordingListener implements LightingStatsListener {
+		int calls;
+		int nearResistors;
+		int segments;
+		int visibilityTests;
+		int outputVerticles;
+		long totalNanos;
+		
+		public void lightComputed(LightingStats stats) {
+			++calls;
+			nearResistors = stats.getNearResistors();
+			segments = stats.getSegments();
+			visibilityTests = stats.getVisibilityTests();
+			outputVerticles = stats.getOutputVerticles();
+			totalNanos = stats.getTotalNanos();
+		}
+	}
+	
+	private static void checkReported(AbstractLightingAlgorithm algorithm) {
+		algorithm.addLightResistor(Scenes.createBox(10, 10, 5));
+		algorithm.addLightResistor(Scenes.createBox(500, 500, 5));
+		
+		final RecordingListener listener = new RecordingListener();
+		algorithm.setStatsListener(listener);
+		
+		final float[] out = new float[1024];
+		final int count = algorithm.createRays(new LightSource(0, 0, 50), out);
+		
+		assertEquals(1, listener.calls);
+		assertEquals(1, listener.nearResistors);
+		// edges facing the light
+		assertEquals(2, listener.segments);
+		assertTrue(listener.visibilityTests > 0);
+		assertEquals(count, listener.outputVerticles);
+		assertTrue(listener.totalNanos >= 0);
+		
+		// disabled listener is not notified anymore
+		algorithm.setStatsListener(null);
+		algorithm.createRays(new LightSource(0, 0, 50), out);
+		
+		assertEquals(1, listener.calls);
+	}
+	
+	public void testSweepReportsStats() {
+		checkReported(new SweepLightAlgorithm());
+	}
+	
+	public void testSimpleReportsStats() {
+		checkReported(new SimpleLightAlgorithm());
+	}
+	
+	public void testHistogramAggregates() {
+		final LightingStatsHistogram histogram = new LightingStatsHistogram();
+		final LightingStats stats = new LightingStats();
+		
+		for (int i = 0; i < 100; ++i) {
+			stats.reset();
+			stats.totalNanos = i < 90 ? 1000 : 1000000;
+			stats.nearResistors = 2;
+			histogram.lightComputed(stats);
+		}
+		
+		assertEquals(100, histogram.getLightCount());
+		
+		final long p50 = histogram.getPercentile(LightingStats.Phase.COUNT, 0.5);
+		final long p99 = histogram.getPercentile(LightingStats.Phase.COUNT, 0.99);
+		
+		assertTrue(p50 >= 1000 && p50 < 2048);
+		assertTrue(p99 >= 1000000 && p99 < 2097152);
+		
+		final Map metrics = histogram.getMetrics();
+		assertEquals(new Long(100), metrics.get("lights"));
+		assertEquals(new Long(200), metrics.get("resistors.near"));
+		
+		histogram.reset();
+		assertEquals(0, histogram.getLightCount());
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RayFanTest extends TestCase {
+
+	public void testPseudoAngleOnAxes() {
+		assertEquals(0f, RayFan.pseudoAngle(5, 0), 0f);
+		assertEquals(1f, RayFan.pseudoAngle(0, 5), 0f);
+		assertEquals(2f, RayFan.pseudoAngle(-5, 0), 0f);
+		assertEquals(2f, RayFan.pseudoAngle(-5, -0f), 0f);
+		assertEquals(-1f, RayFan.pseudoAngle(0, -5), 0f);
+		assertEquals(0f, RayFan.pseudoAngle(0, 0), 0f);
+	}
+	
+	public void testPseudoAngleOrderedLikeAngle() {
+		final Random random = new Random(13);
+		
+		for (int i = 0; i < 100000; ++i) {
+			final float ax = random.nextFloat() * 200 - 100;
+			final float ay = random.nextFloat() * 200 - 100;
+			final float bx = random.nextFloat() * 200 - 100;
+			final float by = random.nextFloat() * 200 - 100;
+			
+			final double a = Math.atan2(ay, ax);
+			final double b = Math.atan2(by, bx);
+			
+			if (Math.abs(a - b) < 1e-5) {
+				// too close to be ordered in float
+				continue;
+			}
+			
+			assertEquals(a < b, RayFan.pseudoAngle(ax, ay) < RayFan.pseudoAngle(bx, by));
+		}
+	}
+	
+	public void testRaysGoAroundFromNegativeXAxis() {
+		final RayFan fan = new RayFan(32);
+		
+		assertEquals(-1f, fan.x[0], 1e-6f);
+		assertEquals(-2f, fan.angles[0], 0f);
+		assertEquals(1f, fan.x[16], 1e-6f);
+		assertEquals(0f, fan.angles[16], 1e-6f);
+		
+		for (int k = 1; k < 32; ++k) {
+			assertTrue(fan.angles[k - 1] < fan.angles[k]);
+			assertEquals(1f, fan.x[k] * fan.x[k] + fan.y[k] * fan.y[k], 1e-5f);
+		}
+	}
+	
+	public void testConeCoversBordersWithFullDensity() {
+		final RayFan fan = new RayFan(32, 45);
+		
+		// 90 degrees of 32 rays on full circle
+		assertEquals(9, fan.count);
+		assertTrue(fan.isCone());
+		assertFalse(new RayFan(32).isCone());
+		
+		assertEquals(-fan.angles[8], fan.angles[0], 0f);
+		assertEquals(RayFan.pseudoAngle(1, 1), fan.angles[8], 1e-6f);
+		assertEquals(0f, fan.angles[4], 1e-6f);
+		
+		for (int k = 1; k < fan.count; ++k) {
+			assertTrue(fan.angles[k - 1] < fan.angles[k]);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SceneFileTest extends TestCase {
+	
+	private File file;
+	
+	/*
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("scene", ".crls");
+	}
+	
+	/*
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+	
+	public void testLoadedSceneGivesSameLight() throws IOException {
+		final Random random = new Random(3);
+		final List resistors = new ArrayList();
+		final SweepLightAlgorithm expected = new SweepLightAlgorithm();
+		
+		for (int i = 0; i < 50; ++i) {
+			final LightResistor r = Scenes.createBox(random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200, 1 + random.nextFloat() * 30);
+			
+			resistors.add(r);
+			expected.addLightResistor(r);
+		}
+		
+		SceneFile.write(resistors, 50, file);
+		final SceneFile scene = SceneFile.load(file);
+		
+		assertEquals(50, scene.getResistorCount());
+		assertEquals(50f, scene.getGridCellSize(), 0f);
+		assertTrue(scene.createIndex() instanceof GridResistorIndex);
+		
+		for (int i = 0; i < 50; ++i) {
+			final LightResistor r = (LightResistor) resistors.get(i);
+			
+			assertEquals(r.getBoundingBox().left, scene.getResistor(i).getBoundingBox().left, 0f);
+			assertEquals(r.getBoundingBox().top, scene.getResistor(i).getBoundingBox().top, 0f);
+		}
+		
+		final SweepLightAlgorithm actual = new SweepLightAlgorithm();
+		actual.setResistorIndex(scene.createIndex());
+		scene.addTo(actual);
+		
+		final LightSource light = new LightSource(5, 5, 300);
+		final Point2[] a = expected.createRays(light).getVerticles();
+		final Point2[] b = actual.createRays(light).getVerticles();
+		
+		assertEquals(a.length, b.length);
+		
+		for (int i = 0; i < a.length; ++i) {
+			assertEquals(a[i].x, b[i].x, 0f);
+			assertEquals(a[i].y, b[i].y, 0f);
+		}
+	}
+	
+	public void testResistorCanBeChangedAfterLoading() throws IOException {
+		final List resistors = new ArrayList();
+		resistors.add(Scenes.createBox(10, -5, 10));
+		
+		SceneFile.write(resistors, 0, file);
+		final SceneFile scene = SceneFile.load(file);
+		final LightResistor resistor = scene.getResistor(0);
+		
+		final Point2[] verticles = resistor.getVerticles();
+		assertEquals(4, verticles.length);
+		assertEquals(20f, verticles[2].x, 0f);
+		assertEquals(5f, verticles[2].y, 0f);
+		
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		scene.addTo(algorithm);
+		
+		resistor.translate(100, 0);
+		algorithm.updateLightResistor(resistor);
+		
+		assertEquals(110f, resistor.getBoundingBox().left, 0f);
+		
+		// the box moved out of the light
+		assertEquals(algorithm.getPartsNum(), algorithm.createRays(new LightSource(0, 0, 50)).getVerticles().length);
+	}
+	
+	public void testNotSceneFileRejected() throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20});
+		out.close();
+		
+		try {
+			SceneFile.load(file);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testOverflowingEntryRejected() throws IOException {
+		final List resistors = new ArrayList();
+		resistors.add(Scenes.createBox(10, -5, 10));
+		SceneFile.write(resistors, 0, file);
+		
+		// first verticle of the only entry, adding the count overflows
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		out.seek(20);
+		out.writeInt(Integer.MAX_VALUE);
+		out.close();
+		
+		try {
+			SceneFile.load(file);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
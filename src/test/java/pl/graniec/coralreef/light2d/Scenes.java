@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.List;
+
+import junit.framework.Assert;
+import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * Resistors and brute force ray casting shared by tests.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class Scenes {
+	
+	private Scenes() {
+	}
+	
+	/**
+	 * @return Square resistor going counter-clockwise.
+	 */
+	static LightResistor createBox(float left, float bottom, float size) {
+		return createBox(left, bottom, size, size);
+	}
+	
+	/**
+	 * @return Rectangle resistor going counter-clockwise.
+	 */
+	static LightResistor createBox(float left, float bottom, float width, float height) {
+		final LightResistor resistor = new LightResistor();
+		resistor.addVerticle(new Point2(left, bottom));
+		resistor.addVerticle(new Point2(left + width, bottom));
+		resistor.addVerticle(new Point2(left + width, bottom + height));
+		resistor.addVerticle(new Point2(left, bottom + height));
+		
+		return resistor;
+	}
+	
+	/**
+	 * @return Rectangle resistor given by its corners, going
+	 * counter-clockwise.
+	 */
+	static LightResistor createRect(float left, float bottom, float right, float top) {
+		final LightResistor resistor = new LightResistor();
+		resistor.addVerticle(new Point2(left, bottom));
+		resistor.addVerticle(new Point2(right, bottom));
+		resistor.addVerticle(new Point2(right, top));
+		resistor.addVerticle(new Point2(left, top));
+		
+		return resistor;
+	}
+	
+	/**
+	 * Distance from light to the nearest resistor edge along the ray,
+	 * tested against every edge.
+	 */
+	static float castRay(List resistors, LightSource light, float dx, float dy) {
+		float nearest = light.intensity;
+		
+		for (int r = 0; r < resistors.size(); ++r) {
+			nearest = Math.min(nearest, castRay(((LightResistor) resistors.get(r)).getVerticles(), light, dx, dy));
+		}
+		
+		return nearest;
+	}
+	
+	/**
+	 * @return Distance from the light to the polygon border along the
+	 * ray or infinity if the ray misses it.
+	 */
+	static float castRay(Point2[] v, LightSource light, float dx, float dy) {
+		float nearest = Float.POSITIVE_INFINITY;
+		
+		for (int i = 0; i < v.length; ++i) {
+			final Point2 a = v[i];
+			final Point2 b = v[(i + 1) % v.length];
+			
+			nearest = Math.min(nearest, intersect(light.x, light.y, dx, dy, a.x, a.y, b.x, b.y));
+		}
+		
+		return nearest;
+	}
+	
+	/**
+	 * Distance along the ray to the segment or infinity if there is no
+	 * intersection.
+	 */
+	static float intersect(float ox, float oy, float dx, float dy, float ax, float ay, float bx, float by) {
+		final float ex = bx - ax;
+		final float ey = by - ay;
+		final float denominator = dx * ey - dy * ex;
+		
+		if (denominator == 0) {
+			return Float.POSITIVE_INFINITY;
+		}
+		
+		final float t = ((ax - ox) * ey - (ay - oy) * ex) / denominator;
+		final float s = ((ax - ox) * dy - (ay - oy) * dx) / denominator;
+		
+		if (t < 0 || s < 0 || s > 1) {
+			return Float.POSITIVE_INFINITY;
+		}
+		
+		return t;
+	}
+	
+	/**
+	 * Checks the light geometry against brute force ray casting in
+	 * many directions.
+	 */
+	static void assertMatchesRayCasting(List resistors, LightSource light, Geometry geometry, float tolerance) {
+		final Point2[] v = geometry.getVerticles();
+		
+		for (int i = 0; i < 3600; ++i) {
+			final double rad = Math.toRadians(i / 10.0 + 0.05);
+			final float dx = (float) Math.cos(rad);
+			final float dy = (float) Math.sin(rad);
+			
+			Assert.assertEquals(castRay(resistors, light, dx, dy), castRay(v, light, dx, dy), tolerance);
+		}
+	}
+}
@@ -30,9 +30,12 @@ package pl.graniec.coralreef.light2d;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -40,7 +43,6 @@ import javax.swing.JPanel;
 import junit.framework.TestCase;
 import pl.graniec.coralreef.geometry.Geometry;
 import pl.graniec.coralreef.geometry.Point2;
-import pl.graniec.coralreef.light2d.SimpleLightAlgorithm.ViewportPoint;
 
 /**
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
@@ -94,57 +96,6 @@ public class SimpleLightAlgorithmTest extends TestCase {
 		super.tearDown();
 	}
 
-	/**
-	 * Test method for {@link pl.graniec.coralreef.light2d.SimpleLightAlgorithm#buildViewport(pl.graniec.coralreef.light2d.LightSource, java.util.List)}.
-	 */
-	public void testBuildViewport() {
-		
-//		final List resistors = new LinkedList(); 
-//		
-//		final LightResistor r1 = new LightResistor();
-//		r1.addVerticle(new Point2(2, 2));
-//		r1.addVerticle(new Point2(2, 6));
-//		r1.addVerticle(new Point2(-2, 6));
-//		r1.addVerticle(new Point2(-2, 2));
-//		
-//		resistors.add(r1);
-//		
-//		final LightSource source = new LightSource(0, 0, 100);
-//		
-//		final List viewport = SimpleLightAlgorithm.buildViewport(source, resistors);
-//		
-//		final Iterator itor = viewport.iterator();
-//		ViewportPoint point;
-//		
-//		point = (ViewportPoint) itor.next();
-//		
-//		assertEquals(45f, point.angle, 0f);
-//		assertEquals(2f, point.x, 0f);
-//		assertEquals(2f, point.y, 0f);
-//		
-//		
-//		point = (ViewportPoint) itor.next();
-//		
-////		assertEquals(71.56f, point.angle, 0.01f);
-////		assertEquals(2f, point.x, 0f);
-////		assertEquals(6f, point.y, 0f);
-////		
-////		
-////		point = (ViewportPoint) itor.next();
-////		
-////		assertEquals(108.43f, point.angle, 0.01f);
-////		assertEquals(-2f, point.x, 0f);
-////		assertEquals(6f, point.y, 0f);
-////		
-////		
-////		point = (ViewportPoint) itor.next();
-////		
-////		assertEquals(135f, point.angle, 0f);
-////		assertEquals(-2f, point.x, 0f);
-////		assertEquals(2f, point.y, 0f);?
-		
-	}
-	
 	public void te_stOverall() throws InterruptedException {
 		
 		final DisplayFrame frame = new DisplayFrame();
@@ -175,4 +126,218 @@ public class SimpleLightAlgorithmTest extends TestCase {
 		
 	}
 
+	public void testExactCornersOfSingleBox() {
+		final SimpleLightAlgorithm algorithm = new SimpleLightAlgorithm();
+		algorithm.setExactCorners(true);
+		algorithm.addLightResistor(Scenes.createBox(10, -5, 10, 10));
+		
+		final LightSource light = new LightSource(0, 0, 100);
+		final Point2[] v = algorithm.createRays(light).getVerticles();
+		
+		// only the front edge corners and their shadow edges are added
+		int corners = 0;
+		
+		for (int i = 0; i < v.length; ++i) {
+			final float distance = (float) Math.sqrt(v[i].x * v[i].x + v[i].y * v[i].y);
+			
+			if (v[i].x == 10 && Math.abs(v[i].y) == 5) {
+				++corners;
+			} else {
+				assertEquals(100, distance, 0.001f);
+			}
+		}
+		
+		assertEquals(2, corners);
+		// 13 rays walked up to the box and 13 walked from its last corner
+		assertEquals(13 + 13 + 4, v.length);
+		
+		// shadow edges go exactly along the rays thru the corners
+		for (int i = 0; i < v.length; ++i) {
+			if (v[i].x == 10 && v[i].y == -5) {
+				assertEquals(-0.5f, v[i - 1].y / v[i - 1].x, 1e-6f);
+				assertEquals(5f, v[i + 1].y, 0f);
+				assertEquals(0.5f, v[i + 2].y / v[i + 2].x, 1e-6f);
+			}
+		}
+	}
+	
+	public void testExactCornersRandomScenes() {
+		final Random random = new Random(7);
+		
+		for (int scene = 0; scene < 20; ++scene) {
+			final SimpleLightAlgorithm algorithm = new SimpleLightAlgorithm();
+			algorithm.setExactCorners(true);
+			algorithm.setPartsNum(3600);
+			
+			final List resistors = new ArrayList();
+			
+			// boxes in cells of a grid don't overlap, the middle cell has the light
+			for (int x = -5; x < 5; ++x) {
+				for (int y = -5; y < 5; ++y) {
+					if (x == 0 && y == 0 || random.nextInt(3) != 0) {
+						continue;
+					}
+					
+					final LightResistor r = Scenes.createBox(
+							x * 40 + random.nextFloat() * 20, y * 40 + random.nextFloat() * 20,
+							1 + random.nextFloat() * 19, 1 + random.nextFloat() * 19);
+					
+					resistors.add(r);
+					algorithm.addLightResistor(r);
+				}
+			}
+			
+			final LightSource light = new LightSource(random.nextFloat() * 40, random.nextFloat() * 40, 1000);
+			
+			Scenes.assertMatchesRayCasting(resistors, light, algorithm.createRays(light), 0.05f);
+		}
+	}
+	
+	public void testFillRaysWalkFromViewportPoints() {
+		final Random random = new Random(11);
+		final int partsNum = 64;
+		final float intensity = 1000;
+		
+		for (int scene = 0; scene < 10; ++scene) {
+			final SimpleLightAlgorithm algorithm = new SimpleLightAlgorithm();
+			algorithm.setExactCorners(true);
+			algorithm.setBackFaceCulling(false);
+			algorithm.setPartsNum(partsNum);
+			
+			final List resistors = new ArrayList();
+			
+			// boxes in cells of a grid don't overlap, the middle cell has the light
+			for (int x = -2; x < 2; ++x) {
+				for (int y = -2; y < 2; ++y) {
+					if (x == 0 && y == 0 || random.nextInt(2) != 0) {
+						continue;
+					}
+					
+					final LightResistor r = Scenes.createBox(
+							x * 40 + random.nextFloat() * 20, y * 40 + random.nextFloat() * 20,
+							1 + random.nextFloat() * 19, 1 + random.nextFloat() * 19);
+					
+					resistors.add(r);
+					algorithm.addLightResistor(r);
+				}
+			}
+			
+			final LightSource light = new LightSource(random.nextFloat() * 40, random.nextFloat() * 40, intensity);
+			
+			final double[] corners = getCornerAngles(resistors, light);
+			final double[] fill = getFillAngles(corners, partsNum);
+			final Point2[] v = algorithm.createRays(light).getVerticles();
+			
+			// every visible fill ray of the old placement is there
+			for (int i = 0; i < fill.length; ++i) {
+				if (distanceTo(corners, fill[i]) < 0.01) {
+					continue;
+				}
+				
+				final double rad = Math.toRadians(fill[i]);
+				final float dx = (float) Math.cos(rad), dy = (float) Math.sin(rad);
+				
+				if (Scenes.castRay(resistors, light, dx, dy) < intensity) {
+					continue;
+				}
+				
+				boolean found = false;
+				
+				for (int j = 0; j < v.length && !found; ++j) {
+					found = Math.abs(v[j].x - light.x - dx * intensity) < 0.01f
+							&& Math.abs(v[j].y - light.y - dy * intensity) < 0.01f;
+				}
+				
+				assertTrue("missing ray on " + fill[i], found);
+			}
+			
+			// and there are no other rays in the light range
+			for (int j = 0; j < v.length; ++j) {
+				final double dx = v[j].x - light.x, dy = v[j].y - light.y;
+				
+				if (Math.abs(Math.sqrt(dx * dx + dy * dy) - intensity) > 0.01) {
+					continue;
+				}
+				
+				final double angle = Math.toDegrees(Math.atan2(dy, dx));
+				
+				assertTrue("unexpected ray on " + angle,
+						distanceTo(fill, angle) < 0.01 || distanceTo(corners, angle) < 0.01);
+			}
+		}
+	}
+	
+	/**
+	 * @return Sorted angles in degrees of all resistor verticles seen
+	 * from <code>light</code>.
+	 */
+	private static double[] getCornerAngles(final List resistors, final LightSource light) {
+		final List angles = new ArrayList();
+		
+		for (int i = 0; i < resistors.size(); ++i) {
+			final Point2[] points = ((LightResistor) resistors.get(i)).getVerticles();
+			
+			for (int j = 0; j < points.length; ++j) {
+				angles.add(new Double(Math.toDegrees(Math.atan2(points[j].y - light.y, points[j].x - light.x))));
+			}
+		}
+		
+		final double[] result = new double[angles.size()];
+		
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = ((Double) angles.get(i)).doubleValue();
+		}
+		
+		Arrays.sort(result);
+		return result;
+	}
+	
+	/**
+	 * Places non-resistance rays the way they were placed before
+	 * precomputed directions: walked by <code>360 / partsNum</code>
+	 * degrees from the last viewport point up to 180 degrees.
+	 */
+	private static double[] getFillAngles(final double[] corners, final int partsNum) {
+		final List angles = new ArrayList();
+		final double delta = 360.0 / partsNum;
+		double position = -180;
+		
+		for (int i = 0; i < corners.length; ++i) {
+			while (corners[i] - position > delta) {
+				position += delta;
+				angles.add(new Double(position));
+			}
+			
+			position = corners[i];
+		}
+		
+		while (position + delta <= 180) {
+			position += delta;
+			angles.add(new Double(position));
+		}
+		
+		final double[] result = new double[angles.size()];
+		
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = ((Double) angles.get(i)).doubleValue();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return The smallest difference in degrees between
+	 * <code>angle</code> and one of <code>angles</code>.
+	 */
+	private static double distanceTo(final double[] angles, final double angle) {
+		double min = Double.POSITIVE_INFINITY;
+		
+		for (int i = 0; i < angles.length; ++i) {
+			final double difference = Math.abs(angles[i] - angle) % 360;
+			min = Math.min(min, Math.min(difference, 360 - difference));
+		}
+		
+		return min;
+	}
+
 }
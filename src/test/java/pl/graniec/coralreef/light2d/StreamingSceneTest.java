@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StreamingSceneTest extends TestCase {
+	
+	private static final float TILE_SIZE = 100;
+	
+	/** World with one box in the middle of every tile */
+	private static class BoxWorld implements ResistorProvider {
+		
+		/** Names of threads that loaded the tiles */
+		final List threads = Collections.synchronizedList(new ArrayList());
+		
+		public void load(int column, int row, Collection result) throws IOException {
+			threads.add(Thread.currentThread().getName());
+			result.add(Scenes.createBox(column * TILE_SIZE + 40, row * TILE_SIZE + 40, 20));
+		}
+	}
+	
+	public void testTilesAroundLightAreLoaded() throws IOException {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final SweepLightAlgorithm expected = new SweepLightAlgorithm();
+		final BoxWorld world = new BoxWorld();
+		final StreamingScene scene = new StreamingScene(algorithm, world, TILE_SIZE, 12);
+		
+		final List all = new ArrayList();
+		
+		for (int row = -3; row <= 3; ++row) {
+			for (int column = -3; column <= 3; ++column) {
+				world.load(column, row, all);
+			}
+		}
+		
+		for (int i = 0; i < all.size(); ++i) {
+			expected.addLightResistor((LightResistor) all.get(i));
+		}
+		
+		// covers 3 by 3 tiles
+		final LightSource light = new LightSource(50, 50, 90);
+		scene.update(Collections.singletonList(light));
+		
+		assertEquals(9, scene.getTileCount());
+		assertEquals(9, algorithm.resistors.size());
+		
+		final Point2[] a = expected.createRays(light).getVerticles();
+		final Point2[] b = algorithm.createRays(light).getVerticles();
+		
+		assertEquals(a.length, b.length);
+		
+		for (int i = 0; i < a.length; ++i) {
+			assertEquals(a[i].x, b[i].x, 0f);
+			assertEquals(a[i].y, b[i].y, 0f);
+		}
+		
+		// the same tiles are not loaded again
+		scene.update(Collections.singletonList(new LightSource(60, 40, 90)));
+		assertEquals(9, scene.getLoadCount());
+		
+		// moving far away drops the least recently used tiles
+		scene.update(Collections.singletonList(new LightSource(1050, 50, 90)));
+		
+		assertEquals(12, scene.getTileCount());
+		assertEquals(12, algorithm.resistors.size());
+		assertEquals(18, scene.getLoadCount());
+		
+		scene.dispose();
+	}
+	
+	public void testTilesAreLoadedInAdvance() throws IOException {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final BoxWorld world = new BoxWorld();
+		final StreamingScene scene = new StreamingScene(algorithm, world, TILE_SIZE, 100);
+		
+		scene.setPrefetchDistance(TILE_SIZE);
+		scene.update(Collections.singletonList(new LightSource(50, 50, 40)));
+		
+		// only the tile of the light is added, loaded in place
+		assertEquals(1, algorithm.resistors.size());
+		assertEquals(Thread.currentThread().getName(), world.threads.get(0));
+		assertEquals(9, scene.getTileCount());
+		
+		world.threads.clear();
+		scene.update(Collections.singletonList(new LightSource(150, 50, 40)));
+		
+		assertEquals(2, algorithm.resistors.size());
+		
+		// the next tile was loaded by prefetch thread, not by update
+		for (int i = 0; i < world.threads.size(); ++i) {
+			assertFalse(Thread.currentThread().getName().equals(world.threads.get(i)));
+		}
+		
+		scene.dispose();
+	}
+	
+	public void testPrefetchKeepsTileLimit() throws IOException {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final BoxWorld world = new BoxWorld();
+		final StreamingScene scene = new StreamingScene(algorithm, world, TILE_SIZE, 4);
+		
+		// prefetch range covers 3 by 3 tiles
+		scene.setPrefetchDistance(TILE_SIZE);
+		
+		for (int column = 0; column < 10; ++column) {
+			scene.update(Collections.singletonList(new LightSource(column * TILE_SIZE + 50, 50, 40)));
+			
+			// prefetched tiles fill the limit, but don't exceed it
+			assertEquals(4, scene.getTileCount());
+			
+			// the tile of the light is never evicted for prefetched ones
+			boolean found = false;
+			
+			for (final Iterator itor = algorithm.resistors.iterator(); itor.hasNext();) {
+				final LightResistor r = (LightResistor) itor.next();
+				found |= r.getBoundingBox().left == column * TILE_SIZE + 40;
+			}
+			
+			assertTrue(found);
+		}
+		
+		scene.dispose();
+	}
+	
+	public void testFailedPrefetchIsLoadedAgain() throws IOException {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		final BoxWorld world = new BoxWorld() {
+			private boolean failed;
+			
+			public void load(int column, int row, Collection result) throws IOException {
+				if (column == 1 && row == 0 && !failed) {
+					failed = true;
+					throw new IOException("tile is not ready");
+				}
+				
+				super.load(column, row, result);
+			}
+		};
+		
+		final StreamingScene scene = new StreamingScene(algorithm, world, TILE_SIZE, 100);
+		scene.setPrefetchDistance(TILE_SIZE);
+		scene.update(Collections.singletonList(new LightSource(50, 50, 40)));
+		
+		final List lights = Collections.singletonList(new LightSource(150, 50, 40));
+		
+		try {
+			scene.update(lights);
+			fail("prefetch failure should be reported");
+		} catch (IOException e) {
+			// expected
+		}
+		
+		scene.update(lights);
+		assertEquals(2, algorithm.resistors.size());
+		
+		scene.dispose();
+	}
+}
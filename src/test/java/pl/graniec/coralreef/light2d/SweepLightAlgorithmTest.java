@@ -0,0 +1,387 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Geometry;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SweepLightAlgorithmTest extends TestCase {
+
+	/**
+	 * Checks spot light geometry against brute force ray casting in
+	 * directions inside of the cone.
+	 */
+	private static void assertSpotMatchesRayCasting(List resistors, SpotLightSource light, Geometry geometry, float tolerance) {
+		final Point2[] v = geometry.getVerticles();
+		
+		// geometry starts at the light source
+		assertEquals(light.x, v[0].x, 0.001f);
+		assertEquals(light.y, v[0].y, 0.001f);
+		
+		for (int i = 1; i < 1000; ++i) {
+			final double rad = Math.toRadians(light.direction - light.halfAngle + i * light.halfAngle / 500.0);
+			final float dx = (float) Math.cos(rad);
+			final float dy = (float) Math.sin(rad);
+			
+			final float expected = Scenes.castRay(resistors, light, dx, dy);
+			
+			// distance to the light geometry border, without borders of the cone
+			float actual = Float.POSITIVE_INFINITY;
+			
+			for (int j = 1; j + 1 < v.length; ++j) {
+				actual = Math.min(actual, Scenes.intersect(light.x, light.y, dx, dy, v[j].x, v[j].y, v[j + 1].x, v[j + 1].y));
+			}
+			
+			assertEquals(expected, actual, tolerance);
+		}
+	}
+	
+	public void testSingleBox() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setPartsNum(3600);
+		
+		final List resistors = new ArrayList();
+		resistors.add(Scenes.createBox(10, -5, 10, 10));
+		algorithm.addLightResistor((LightResistor) resistors.get(0));
+		
+		final LightSource light = new LightSource(0, 0, 100);
+		final Geometry geometry = algorithm.createRays(light);
+		
+		Scenes.assertMatchesRayCasting(resistors, light, geometry, 0.05f);
+	}
+	
+	public void testBoxOnNegativeXAxis() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setPartsNum(3600);
+		
+		final List resistors = new ArrayList();
+		resistors.add(Scenes.createBox(-20, -5, 10, 10));
+		algorithm.addLightResistor((LightResistor) resistors.get(0));
+		
+		final LightSource light = new LightSource(0, 0, 100);
+		
+		Scenes.assertMatchesRayCasting(resistors, light, algorithm.createRays(light), 0.05f);
+	}
+	
+	public void testRandomScenes() {
+		final Random random = new Random(42);
+		
+		for (int scene = 0; scene < 20; ++scene) {
+			final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+			algorithm.setPartsNum(3600);
+			
+			final List resistors = new ArrayList();
+			
+			for (int i = 0; i < 30; ++i) {
+				final LightResistor r = Scenes.createBox(
+						random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200,
+						1 + random.nextFloat() * 40, 1 + random.nextFloat() * 40);
+				
+				resistors.add(r);
+				algorithm.addLightResistor(r);
+			}
+			
+			final LightSource light = new LightSource(random.nextFloat() * 10, random.nextFloat() * 10, 1000);
+			
+			Scenes.assertMatchesRayCasting(resistors, light, algorithm.createRays(light), 0.5f);
+		}
+	}
+	
+	public void testSpotLightRandomScenes() {
+		final Random random = new Random(11);
+		
+		for (int scene = 0; scene < 20; ++scene) {
+			final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+			algorithm.setPartsNum(3600);
+			
+			final List resistors = new ArrayList();
+			
+			for (int i = 0; i < 30; ++i) {
+				final LightResistor r = Scenes.createBox(
+						random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200,
+						1 + random.nextFloat() * 40, 1 + random.nextFloat() * 40);
+				
+				resistors.add(r);
+				algorithm.addLightResistor(r);
+			}
+			
+			final SpotLightSource light = new SpotLightSource(
+					random.nextFloat() * 10, random.nextFloat() * 10, 1000,
+					random.nextFloat() * 360 - 180, 5 + random.nextFloat() * 170);
+			
+			assertSpotMatchesRayCasting(resistors, light, algorithm.createRays(light), 0.5f);
+		}
+	}
+	
+	public void testSpotLightSkipsEdgesOutsideCone() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setBackFaceCulling(false);
+		algorithm.addLightResistor(Scenes.createBox(10, -5, 10, 10));
+		algorithm.addLightResistor(Scenes.createBox(-20, -5, 10, 10));
+		
+		final int[] segments = new int[1];
+		
+		algorithm.setStatsListener(new LightingStatsListener() {
+			public void lightComputed(LightingStats stats) {
+				segments[0] = stats.getSegments();
+			}
+		});
+		
+		final LightSource light = new LightSource(0, 0, 100);
+		final Point2[] full = algorithm.createRays(light).getVerticles();
+		
+		assertEquals(8, segments[0]);
+		
+		// cone of 90 degrees looking right sees only the right box
+		final SpotLightSource spot = new SpotLightSource(0, 0, 100, 0, 45);
+		final Point2[] cone = algorithm.createRays(spot).getVerticles();
+		
+		assertEquals(4, segments[0]);
+		assertTrue(cone.length < full.length);
+	}
+	
+	public void testBackFacingEdgesSkipped() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setPartsNum(3600);
+		
+		final List resistors = new ArrayList();
+		resistors.add(Scenes.createBox(10, -5, 10, 10));
+		
+		// the same box going clockwise
+		final LightResistor clockwise = new LightResistor();
+		clockwise.addVerticle(new Point2(-20, -5));
+		clockwise.addVerticle(new Point2(-20, 5));
+		clockwise.addVerticle(new Point2(-10, 5));
+		clockwise.addVerticle(new Point2(-10, -5));
+		resistors.add(clockwise);
+		
+		algorithm.addLightResistor((LightResistor) resistors.get(0));
+		algorithm.addLightResistor(clockwise);
+		
+		final int[] segments = new int[1];
+		
+		algorithm.setStatsListener(new LightingStatsListener() {
+			public void lightComputed(LightingStats stats) {
+				segments[0] = stats.getSegments();
+			}
+		});
+		
+		// only the edge of each box facing the light
+		final LightSource light = new LightSource(0, 0, 100);
+		Scenes.assertMatchesRayCasting(resistors, light, algorithm.createRays(light), 0.05f);
+		assertEquals(2, segments[0]);
+		
+		// light inside of the box uses all its edges
+		final LightSource inside = new LightSource(15, 0, 100);
+		Scenes.assertMatchesRayCasting(resistors, inside, algorithm.createRays(inside), 0.05f);
+		assertEquals(5, segments[0]);
+	}
+	
+	public void testDistantResistorReplacedByBox() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setPartsNum(3600);
+		algorithm.setDetailMode(AbstractLightingAlgorithm.Detail.Box);
+		
+		// comb of many teeth far from the light
+		final LightResistor comb = new LightResistor();
+		comb.addVerticle(new Point2(80, -10));
+		
+		for (int i = 0; i < 10; ++i) {
+			comb.addVerticle(new Point2(90, -10 + 2 * i));
+			comb.addVerticle(new Point2(90, -9 + 2 * i));
+			comb.addVerticle(new Point2(85, -9 + 2 * i));
+			comb.addVerticle(new Point2(85, -8 + 2 * i));
+		}
+		
+		comb.addVerticle(new Point2(80, 10));
+		algorithm.addLightResistor(comb);
+		
+		final int[] segments = new int[1];
+		
+		algorithm.setStatsListener(new LightingStatsListener() {
+			public void lightComputed(LightingStats stats) {
+				segments[0] = stats.getSegments();
+			}
+		});
+		
+		final LightSource light = new LightSource(0, 0, 100);
+		final List resistors = new ArrayList();
+		resistors.add(Scenes.createBox(80, -10, 10, 20));
+		
+		// only the box edge facing the light
+		Scenes.assertMatchesRayCasting(resistors, light, algorithm.createRays(light), 0.05f);
+		assertEquals(1, segments[0]);
+		
+		// near light uses all edges
+		algorithm.setDetailDistance(0.9f);
+		algorithm.createRays(light);
+		assertTrue(segments[0] > 1);
+	}
+	
+	public void testBatchMatchesSingleLights() {
+		final Random random = new Random(7);
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setParallelism(4);
+		
+		for (int i = 0; i < 200; ++i) {
+			algorithm.addLightResistor(Scenes.createBox(random.nextFloat() * 1000, random.nextFloat() * 1000, 10, 10));
+		}
+		
+		final List lights = new ArrayList();
+		
+		for (int i = 0; i < 50; ++i) {
+			lights.add(new LightSource(random.nextFloat() * 1000, random.nextFloat() * 1000, 100));
+		}
+		
+		final Geometry[] batch = algorithm.createRays(lights);
+		
+		assertEquals(lights.size(), batch.length);
+		
+		for (int i = 0; i < batch.length; ++i) {
+			final Point2[] expected = algorithm.createRays((LightSource) lights.get(i)).getVerticles();
+			final Point2[] actual = batch[i].getVerticles();
+			
+			assertEquals(expected.length, actual.length);
+			
+			for (int j = 0; j < expected.length; ++j) {
+				assertEquals(expected[j], actual[j]);
+			}
+		}
+	}
+	
+	public void testFloatOutputMatchesGeometry() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.addLightResistor(Scenes.createBox(10, -5, 10, 10));
+		algorithm.addLightResistor(Scenes.createBox(-30, 20, 5, 40));
+		
+		final LightSource light = new LightSource(0, 0, 100);
+		final Point2[] expected = algorithm.createRays(light).getVerticles();
+		
+		// too small array gets only the verticles that fit
+		final float[] small = new float[4];
+		assertEquals(expected.length, algorithm.createRays(light, small));
+		
+		final float[] out = new float[expected.length * 2];
+		assertEquals(expected.length, algorithm.createRays(light, out));
+		
+		final FloatBuffer buffer = FloatBuffer.allocate(expected.length * 2 + 2);
+		buffer.put(0);
+		buffer.put(0);
+		assertEquals(expected.length, algorithm.createRays(light, buffer));
+		assertEquals(buffer.capacity(), buffer.position());
+		
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i].x, out[2 * i], 0f);
+			assertEquals(expected[i].y, out[2 * i + 1], 0f);
+			assertEquals(expected[i].x, buffer.get(2 + 2 * i), 0f);
+			assertEquals(expected[i].y, buffer.get(3 + 2 * i), 0f);
+		}
+		
+		assertEquals(expected[1].y, small[3], 0f);
+	}
+	
+	public void testTrackedLightMatchesRayCasting() {
+		final Random random = new Random(5);
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setPartsNum(3600);
+		
+		final List resistors = new ArrayList();
+		
+		// boxes above and below the path of the light
+		for (int i = 0; i < 40; ++i) {
+			final float bottom = random.nextBoolean() ? 10 + random.nextFloat() * 150 : -50 - random.nextFloat() * 150;
+			final LightResistor r = Scenes.createBox(random.nextFloat() * 400 - 200, bottom,
+					1 + random.nextFloat() * 30, 1 + random.nextFloat() * 30);
+			
+			resistors.add(r);
+			algorithm.addLightResistor(r);
+		}
+		
+		final LightSource source = new LightSource(-100, 0, 1000);
+		final TrackedLight light = new TrackedLight(source);
+		
+		for (int frame = 0; frame < 40; ++frame) {
+			source.x += 5;
+			source.y = (float) Math.sin(frame * 0.3) * 5;
+			
+			if (frame == 20) {
+				// resistor added next to the light must be noticed
+				final LightResistor r = Scenes.createBox(source.x - 5, 8, 10, 4);
+				resistors.add(r);
+				algorithm.addLightResistor(r);
+			}
+			
+			Scenes.assertMatchesRayCasting(resistors, source, algorithm.createRays(light), 0.5f);
+		}
+		
+		// edges are gathered again only after moving by the slack
+		assertTrue(light.getGatherCount() > 1);
+		assertTrue(light.getGatherCount() < 20);
+	}
+	
+	public void testTrackedLightGathersAfterSceneChange() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		algorithm.setPartsNum(3600);
+		
+		final List resistors = new ArrayList();
+		resistors.add(Scenes.createBox(10, -5, 10, 10));
+		algorithm.addLightResistor((LightResistor) resistors.get(0));
+		
+		final LightSource source = new LightSource(0, 0, 100);
+		final TrackedLight light = new TrackedLight(source);
+		
+		algorithm.createRays(light);
+		algorithm.createRays(light);
+		assertEquals(1, light.getGatherCount());
+		
+		// change out of the light range keeps the edges
+		algorithm.addLightResistor(Scenes.createBox(500, 500, 10, 10));
+		algorithm.createRays(light);
+		assertEquals(1, light.getGatherCount());
+		
+		resistors.add(Scenes.createBox(-30, 20, 5, 40));
+		algorithm.addLightResistor((LightResistor) resistors.get(1));
+		Scenes.assertMatchesRayCasting(resistors, source, algorithm.createRays(light), 0.05f);
+		assertEquals(2, light.getGatherCount());
+		
+		algorithm.setBackFaceCulling(false);
+		Scenes.assertMatchesRayCasting(resistors, source, algorithm.createRays(light), 0.05f);
+		assertEquals(3, light.getGatherCount());
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.light2d;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.geometry.Point2;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class VisibilitySetTest extends TestCase {
+	
+	private SweepLightAlgorithm algorithm;
+	private LightResistor outside;
+	
+	/*
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		algorithm = new SweepLightAlgorithm();
+		
+		// closed room from 0 to 100 with 10 units thick walls
+		algorithm.addLightResistor(Scenes.createBox(-10, -10, 120, 10));
+		algorithm.addLightResistor(Scenes.createBox(-10, 100, 120, 10));
+		algorithm.addLightResistor(Scenes.createBox(-10, 0, 10, 100));
+		algorithm.addLightResistor(Scenes.createBox(100, 0, 10, 100));
+		
+		outside = Scenes.createBox(150, 40, 20, 20);
+		algorithm.addLightResistor(outside);
+		algorithm.addLightResistor(Scenes.createBox(-60, 60, 20, 20));
+	}
+	
+	public void testResistorsBehindWallsAreSkipped() {
+		final VisibilitySet set = VisibilitySet.build(algorithm, 25, 300);
+		final LightSource light = new LightSource(30, 60, 300);
+		
+		assertEquals(4, set.getVisibleCount(light.x, light.y));
+		assertEquals(-1, set.getVisibleCount(300, 300));
+		
+		final Point2[] expected = algorithm.createRays(light).getVerticles();
+		
+		algorithm.setVisibilitySet(set);
+		
+		final List found = new ArrayList();
+		algorithm.findNearResistors(light, found);
+		
+		assertEquals(4, found.size());
+		assertFalse(found.contains(outside));
+		
+		final Point2[] actual = algorithm.createRays(light).getVerticles();
+		
+		// hidden resistors can only add points lying on the same border
+		for (int i = 0; i < 360; ++i) {
+			final double rad = Math.toRadians(i + 0.5);
+			final float dx = (float) Math.cos(rad);
+			final float dy = (float) Math.sin(rad);
+			
+			assertEquals(Scenes.castRay(expected, light, dx, dy), Scenes.castRay(actual, light, dx, dy), 0.01f);
+		}
+	}
+	
+	public void testResistorSeenThruGapIsKept() {
+		final SweepLightAlgorithm algorithm = new SweepLightAlgorithm();
+		
+		// wall with a gap between 4.5 and 5.5
+		algorithm.addLightResistor(Scenes.createRect(-100, 20, 4.5f, 21));
+		algorithm.addLightResistor(Scenes.createRect(5.5f, 20, 100, 21));
+		
+		final LightResistor target = Scenes.createRect(4.8f, 50, 5.2f, 50.4f);
+		algorithm.addLightResistor(target);
+		
+		// far box so that cells start at the bottom of the scene
+		algorithm.addLightResistor(Scenes.createRect(-100, 0, -99, 1));
+		
+		// light in the middle of the cell sees the target thru the gap
+		final LightSource light = new LightSource(5, 5, 100);
+		final Point2[] expected = algorithm.createRays(light).getVerticles();
+		
+		algorithm.setVisibilitySet(VisibilitySet.build(algorithm, 10, 100));
+		
+		final List found = new ArrayList();
+		algorithm.findNearResistors(light, found);
+		
+		assertTrue(found.contains(target));
+		
+		final Point2[] actual = algorithm.createRays(light).getVerticles();
+		
+		assertEquals(45, Scenes.castRay(actual, light, 0, 1), 0.01f);
+		
+		for (int i = 0; i < 360; ++i) {
+			final double rad = Math.toRadians(i + 0.5);
+			final float dx = (float) Math.cos(rad);
+			final float dy = (float) Math.sin(rad);
+			
+			assertEquals(Scenes.castRay(expected, light, dx, dy), Scenes.castRay(actual, light, dx, dy), 0.01f);
+		}
+	}
+	
+	public void testChangedMemberInvalidatesSet() {
+		final VisibilitySet set = VisibilitySet.build(algorithm, 25, 300);
+		algorithm.setVisibilitySet(set);
+		
+		// resistors added later are always found
+		final LightResistor added = Scenes.createBox(40, 40, 10, 10);
+		algorithm.addLightResistor(added);
+		
+		final List found = new ArrayList();
+		algorithm.findNearResistors(new LightSource(30, 60, 300), found);
+		
+		assertTrue(set.isValid());
+		assertEquals(5, found.size());
+		assertTrue(found.contains(added));
+		
+		algorithm.removeLightResistor(added);
+		
+		found.clear();
+		algorithm.findNearResistors(new LightSource(30, 60, 300), found);
+		
+		assertTrue(set.isValid());
+		assertEquals(4, found.size());
+		
+		algorithm.updateLightResistor(outside);
+		assertFalse(set.isValid());
+		
+		found.clear();
+		algorithm.findNearResistors(new LightSource(30, 60, 300), found);
+		
+		assertEquals(6, found.size());
+	}
+}